@@ -37,9 +37,14 @@ import java.util.NoSuchElementException;
 import metal.utils.fileiterator.FileIterator;
 
 import org.apache.commons.configuration.XMLConfiguration;
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.data.UID;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.DicomOutputStream;
+import org.dcm4che2.io.StopTagInputHandler;
 import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.sdk.StorageInputStream;
@@ -184,10 +189,58 @@ public class FileStoragePlugin implements StorageInterface {
             return null;
         }
 
-        DicomInputStream inputStream = inStream;
-        DicomObject obj = inputStream.readDicomObject();
+        // Only the attributes before the pixel data are parsed, which is all it takes
+        // to place the file. The pixel data, usually most of the object, is copied as is.
+        DicomObject attrs = new BasicDicomObject();
+        inStream.setHandler(new StopTagInputHandler(Tag.PixelData));
+        inStream.readDicomObject(attrs, -1);
+        boolean atPixelData = inStream.tag() == Tag.PixelData;
+
+        TransferSyntax ts = inStream.getTransferSyntax();
+        // a deflated stream is read inflated, so it is written explicit VR little endian
+        String tsuid = ts.deflated() ? UID.ExplicitVRLittleEndian : ts.uid();
+        if (ts.deflated() || attrs.getString(Tag.TransferSyntaxUID) == null) {
+            attrs.initFileMetaInformation(attrs.getString(Tag.SOPClassUID),
+                    attrs.getString(Tag.SOPInstanceUID), tsuid);
+        }
+
+        String extraPath = DicomUtils.getDirectory(attrs);
+        String relPath = extraPath + "/" + DicomUtils.getBaseName(attrs);
+        String fileStr = rootDir.getAbsolutePath() + relPath;
+
+        URI fileUri;
+        try {
+            fileUri = new URI(scheme, fileStr, null);
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+
+        logger.debug("Trying to store in: {}", fileUri);
+
+        File file = new File(fileStr);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(file);
+                BufferedOutputStream bos = new BufferedOutputStream(fos);
+                DicomOutputStream dos = new DicomOutputStream(bos)) {
+            dos.writeFileMetaInformation(attrs);
+            dos.writeDataset(attrs, tsuid);
+            if (atPixelData) {
+                dos.writeHeader(Tag.PixelData, inStream.vr(), inStream.valueLength());
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = inStream.read(buf)) > 0) {
+                    dos.write(buf, 0, n);
+                }
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to store into {}", fileUri, ex);
+            file.delete();
+            return null;
+        }
 
-        return store(obj);
+        return (this.useRelativePath)
+                ? URI.create(this.scheme + ":" + relPath)
+                : fileUri;
     }
 
     /**
@@ -20,29 +20,39 @@ package dicoogle.lucene;
 
 import dicoogle.lucene.dicom.abstraction.DicomByteArrField;
 import dicoogle.lucene.dicom.abstraction.DicomDocument;
+import dicoogle.lucene.dicom.abstraction.DicomKeywordField;
 import dicoogle.lucene.dicom.abstraction.DicomLongField;
 import dicoogle.lucene.dicom.abstraction.DicomNumericField;
 import dicoogle.lucene.dicom.abstraction.DicomTextField;
 import dicoogle.lucene.dicom.abstraction.IDicomField;
 import dicoogle.lucene.dicom.abstraction.IDoc;
+import dicoogle.lucene.dedup.DuplicateIndex;
+import dicoogle.lucene.dicom.DicomValueDecoder;
+import dicoogle.lucene.query.DimColumns;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.XMLConfiguration;
@@ -51,6 +61,8 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.queryParser.ParseException;
@@ -98,6 +110,7 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 	static final String DEFAULT_INDEX_PATH = "./index/";
 	static final String INDEX_PATH_DIR_SUFFIX = "indexed";
 	static final String INDEX_PATH_COMPRESSED_SUFFIX = "compressed";
+	static final String DEDUP_FILE_NAME = "dedup.bloom";
 
 
     private ConfigurationHolder settings;
@@ -122,7 +135,11 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
     private FileWriter fileWriter = null;
     */
     
-    private final List<String> sopInstanceUIDs=Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * URIs and SOPInstanceUIDs of the indexed instances, for duplicate detection
+     */
+    private DuplicateIndex instances;
+    private long dedupCapacity;
 
     /**
      * constructs an indexer instance
@@ -161,12 +178,8 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             f.mkdirs();
             analyzer = new StandardAnalyzer(Version.LUCENE_30);
 
-            IndexWriterConfig indexConfig = new IndexWriterConfig(Version.LUCENE_30, analyzer);
-            indexConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
             // this will create the index if it does not exist yet
-            new IndexWriter(index, indexConfig).close();
-            
-            
+            openWriter();
             
         } catch (IOException ex) {
             //ex.printStackTrace();
@@ -175,13 +188,74 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 
         lQuery = new LuceneQuery();
         lQuery.setIndexPath(getLuceneDirectory());
+        lQuery.setIndexWriter(getIndexWriter());
 
+        openDuplicateIndex();
+    }
+
+    /**
+     * Opens the duplicate detection structure. If it could not be restored from a previous run,
+     * it is filled in the background from the index contents, and until then every lookup is
+     * confirmed against the index.
+     */
+    private synchronized void openDuplicateIndex() {
+        closeDuplicateIndex();
+        try {
+            final DuplicateIndex dedup = new DuplicateIndex(new File(indexFilePath, DEDUP_FILE_NAME), dedupCapacity);
+            this.instances = dedup;
+            if (dedup.isLoaded() || this.writer == null) {
+                return;
+            }
+            final IndexReader reader = IndexReader.open(this.writer, true);
+            Thread loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        dedup.load(reader);
+                    } catch (IOException | RuntimeException ex) {
+                        log.error("Failed to load the duplicate index", ex);
+                    } finally {
+                        try {
+                            reader.close();
+                        } catch (IOException ex) {
+                            log.warn("Failed to close index reader", ex);
+                        }
+                    }
+                }
+            }, "lucene-dedup-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } catch (IOException ex) {
+            log.error("Failed to open the duplicate index", ex);
+        }
+    }
+
+    private synchronized void closeDuplicateIndex() {
+        if (this.instances == null) {
+            return;
+        }
+        try {
+            this.instances.close();
+        } catch (IOException ex) {
+            log.warn("Failed to close the duplicate index", ex);
+        }
+        this.instances = null;
     }
 
     public Directory getLuceneDirectory() {
         return index;
     }
 
+    /**
+     * Obtains the index writer, which is kept open for the whole lifetime of the plugin.
+     * Query providers may open near real-time readers from it.
+     *
+     * @return the index writer, or null if the index could not be opened
+     */
+    public IndexWriter getIndexWriter() {
+        return writer;
+    }
+
     @Override
     public Task<Report> index(final StorageInputStream file, Object ... args) {
         
@@ -200,9 +274,11 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                         try
                         {
                             if(handles(file.getURI())){
-                                beginTransaction();
-                                indexStream(file, r);
-                                endTransaction();
+                                if (indexStream(file)) {
+                                    r.addIndexFile();
+                                } else {
+                                    r.addError();
+                                }
                             }
                         }
                         catch (Exception e)
@@ -239,28 +315,9 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 				
 				try {
 
-					Iterator<StorageInputStream> it = files.iterator();
-
-					// while (it.hasNext() &&
-					// !Thread.currentThread().isInterrupted())
-					beginTransaction();
-					int i = 1;
-
-					while (it.hasNext()) {
-						StorageInputStream s = it.next();
-                        if(!handles(s.getURI())){continue;}
-
-						log.debug("Started Indexing: {},{},{}", (Object)this.hashCode(), (Object)i, s.getURI());
-						try {
-							indexStream(s, taskReport);
-						} catch (Exception e) {
-							log.error("ERROR Indexing: {},{},{}", (Object)this.hashCode(), (Object)i, s.getURI(), e);
-							taskReport.addError();
-						}
-						log.info("Finished Indexing: {},{},{},{}", (Object)this.hashCode(), (Object)i, s.getURI(), taskReport);
-						i++;
-					}
-					endTransaction();
+					indexStreams(files, taskReport);
+					// group commit: the whole batch becomes durable at once
+					commit();
 					progress = 1.0f;
 					
 				} catch (Exception e) {
@@ -281,60 +338,191 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 		return t;
 	}
 	
-	private int transactions=0;
-	private IndexWriter writer;
+	private volatile IndexWriter writer;
 
 	private int maxRAMBufferSize;
 
+	private int parserThreads;
+	private ExecutorService parserPool;
+
+	/**
+	 * commit policy: commit after this many changes (0 to disable)
+	 */
+	private int commitDocs;
+	/**
+	 * commit policy: commit pending changes with this period, in milliseconds (0 to disable)
+	 */
+	private long commitInterval;
+	private final AtomicInteger uncommitted = new AtomicInteger();
+	private ScheduledExecutorService committer;
+
 	private boolean enabled;
 	
-	private synchronized void beginTransaction() throws IOException{		
-		if(transactions==0) {
-            IndexWriterConfig indexConfig = new IndexWriterConfig(Version.LUCENE_30, analyzer);
-            indexConfig.setRAMBufferSizeMB(maxRAMBufferSize);
-            indexConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-			this.writer = new IndexWriter(index, indexConfig);
-		}		
-		this.transactions++;
-	}
-	
-	private synchronized void endTransaction() throws IOException{
-		this.transactions--;
+	private synchronized void openWriter() throws IOException {
+		closeWriter();
+		IndexWriterConfig indexConfig = new IndexWriterConfig(Version.LUCENE_30, analyzer);
+		indexConfig.setRAMBufferSizeMB(maxRAMBufferSize);
+		indexConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+		this.writer = new IndexWriter(index, indexConfig);
 		this.writer.commit();
-		if(transactions==0){
+	}
+
+	private synchronized void closeWriter() {
+		if (this.writer == null) {
+			return;
+		}
+		try {
+			// closing the writer commits all pending changes
 			this.writer.close();
-			this.writer = null;
+			this.uncommitted.set(0);
+		} catch (IOException ex) {
+			log.error("Failed to close index writer", ex);
 		}
-	}	
+		this.writer = null;
+	}
+
+	/**
+	 * Registers changes to the index, committing them if the commit policy says so.
+	 *
+	 * @param n the number of added or removed documents
+	 */
+	private void indexChanged(int n) {
+		if (uncommitted.addAndGet(n) >= commitDocs && commitDocs > 0) {
+			commit();
+		}
+	}
+
+	/**
+	 * Commits all pending changes to the index, if any.
+	 */
+	private void commit() {
+		int n = uncommitted.getAndSet(0);
+		if (n == 0) {
+			return;
+		}
+		IndexWriter w = this.writer;
+		if (w == null) {
+			return;
+		}
+		try {
+			w.commit();
+			log.debug("Committed {} changes to the index", n);
+		} catch (IOException | RuntimeException ex) {
+			log.error("Failed to commit index changes", ex);
+			uncommitted.addAndGet(n);
+		}
+	}
 	
-	private synchronized void indexStream(StorageInputStream stream, IndexReport2 r) {
-		IDoc idoc = IDocFromStream(stream);
+	/**
+	 * Indexes a collection of streams through the parser pool. DICOM header parsing and document
+	 * creation run concurrently in the parser threads, which feed the shared (thread safe) index
+	 * writer. Only a bounded number of streams is in flight at any time, and the report is only
+	 * updated from the calling thread, as outcomes are collected.
+	 *
+	 * @param files the streams to index
+	 * @param r the report of the running task
+	 */
+	private void indexStreams(Iterable<StorageInputStream> files, IndexReport2 r) {
+		CompletionService<Boolean> outcomes = new ExecutorCompletionService<>(parserPool);
+		int maxPending = parserThreads * 2;
+		int pending = 0;
+		int i = 1;
+
+		try {
+			Iterator<StorageInputStream> it = files.iterator();
+			while (it.hasNext() && !Thread.currentThread().isInterrupted()) {
+				final StorageInputStream s = it.next();
+				if (!handles(s.getURI())) {
+					continue;
+				}
+
+				if (pending >= maxPending) {
+					collectOutcome(outcomes.take(), r);
+					pending--;
+				}
 
-		//
-		if (idoc != null) {
-			Document luceneDoc = luceneDocFromIDoc(idoc);
-			// Index file size
-			try {
-				NumericField fileSize = new NumericField("FileSize",
-						Field.Store.YES, true);
-
-				fileSize.setFloatValue(stream.getSize());
-				luceneDoc.add(fileSize);
-			} catch (Exception e) {
-				log.warn("Failed to add file size field to document", e);
+				log.debug("Started Indexing: {},{},{}", (Object)this.hashCode(), (Object)i, s.getURI());
+				outcomes.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return indexStream(s);
+					}
+				});
+				pending++;
+				i++;
+			}
+		} catch (InterruptedException ex) {
+			log.warn("Indexing task interrupted, waiting for {} pending documents", pending);
+			Thread.currentThread().interrupt();
+		} finally {
+			// in-flight documents must reach the writer before the transaction ends
+			boolean interrupted = false;
+			while (pending > 0) {
+				try {
+					collectOutcome(outcomes.take(), r);
+					pending--;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
-			
-			try {
-				this.writer.addDocument(luceneDoc);
+		}
+	}
+
+	private static void collectOutcome(Future<Boolean> outcome, IndexReport2 r) {
+		try {
+			if (outcome.get()) {
 				r.addIndexFile();
-			} catch (IOException ex) {
-				log.error("Failed to add document to index", ex);
+			} else {
 				r.addError();
 			}
-
-		} else {
+		} catch (InterruptedException | ExecutionException ex) {
+			log.error("ERROR Indexing", ex);
 			r.addError();
-		}		
+		}
+	}
+
+	/**
+	 * Parses the given stream and adds the resulting document to the index writer.
+	 * This method is called concurrently by the parser threads.
+	 *
+	 * @param stream the stream to index
+	 * @return whether the document was added to the index
+	 */
+	private boolean indexStream(StorageInputStream stream) {
+		IDoc idoc = IDocFromStream(stream);
+
+		if (idoc == null) {
+			return false;
+		}
+
+		Document luceneDoc = luceneDocFromIDoc(idoc);
+		// Index file size
+		try {
+			NumericField fileSize = new NumericField("FileSize",
+					Field.Store.YES, true);
+
+			fileSize.setFloatValue(stream.getSize());
+			luceneDoc.add(fileSize);
+		} catch (Exception e) {
+			log.warn("Failed to add file size field to document", e);
+		}
+
+		try {
+			this.writer.addDocument(luceneDoc);
+			indexChanged(1);
+			log.debug("Finished Indexing: {}", stream.getURI());
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			log.error("Failed to add document to index: {}", stream.getURI(), ex);
+			DuplicateIndex dedup = this.instances;
+			if (dedup != null) {
+				dedup.releaseUri(stream.getURI().toString());
+			}
+			return false;
+		}
 	}
 
     /**
@@ -351,6 +539,11 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                 DicomTextField _f = (DicomTextField) f;
                 Field f2 = new Field(_f.getName(), _f.getValue(), Field.Store.YES, Field.Index.ANALYZED);
                 luceneDoc.add(f2);
+            } else if (f instanceof DicomKeywordField) {
+                DicomKeywordField _f = (DicomKeywordField) f;
+                Field f2 = new Field(_f.getName(), _f.getValue(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS);
+                f2.setIndexOptions(IndexOptions.DOCS_ONLY);
+                luceneDoc.add(f2);
             } else if (f instanceof DicomByteArrField) {
                 DicomByteArrField _f = (DicomByteArrField) f;
                 Field f2 = new Field(_f.getName(), _f.getValue(), Field.Store.YES);
@@ -378,23 +571,28 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 
         IDoc returnDoc = null;
         
-        // Let's do the query directoy in Lucene ! 
-        Iterable<SearchResult> it = lQuery.query("uri:\"" + storage.getURI() + "\"");
-        if (it==null ){
-        	log.error("Could not find the query plugin");
-        	return null;
-        }
-        if (it.iterator().hasNext()) {
-            log.info("File already exists, ignoring");
-        	//log.severe("File already exists" + storage.getURI().toString());
-            //throw new FileAlreadyExistsException(storage.getURI().toString());
-        	return null;
+        String uri = storage.getURI().toString();
+        DuplicateIndex dedup = this.instances;
+        // only confirm possible duplicates against the index
+        try {
+            if ((dedup == null || dedup.mightContainUri(uri))
+                    && lQuery.exists("uri:\"" + uri + "\"")) {
+                log.info("File already exists, ignoring");
+                //log.severe("File already exists" + storage.getURI().toString());
+                //throw new FileAlreadyExistsException(storage.getURI().toString());
+                return null;
+            }
+        } catch (IOException | ParseException ex) {
+            log.error("Could not query the index", ex);
+            return null;
         }
         
         TagsStruct tagStruct = TagsStruct.getInstance();
 
         BufferedInputStream bufferedStream = null;
         DicomInputStream dicomStream = null;
+        // released whenever no document comes out of here
+        String claimed = null;
         
         try (InputStream fileStream = storage.getInputStream()) {
             bufferedStream = new BufferedInputStream(fileStream);
@@ -411,14 +609,21 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             returnDoc = new DicomDocument();
             returnDoc.add("uri", storage.getURI().toString());
             String SOPInstanceUID = dicomObject.getString(Tag.SOPInstanceUID);
-            it = lQuery.query("SOPInstanceUID:" + SOPInstanceUID);
-            if (it==null ){
-            	log.error("Could not find the query plugin");
-            	return null;
+            if (SOPInstanceUID != null && dedup != null) {
+                if (!dedup.claimInstance(SOPInstanceUID, uri)) {
+                    log.warn("SOPInstanceUID was recently indexed: {}", SOPInstanceUID);
+                    return null;
+                }
+                claimed = SOPInstanceUID;
             }
-            if (it.iterator().hasNext()) {
+            if ((dedup == null || SOPInstanceUID == null || dedup.mightContainInstance(SOPInstanceUID))
+                    && lQuery.exists("SOPInstanceUID:" + SOPInstanceUID)) {
                 //log.severe("File already exists" + storage.getURI().toString());
             	log.warn("SOPInstanceUID already exists: {}", SOPInstanceUID);
+                if (claimed != null) {
+                    dedup.releaseInstance(claimed);
+                    claimed = null;
+                }
                 return null;
                 //throw new FileAlreadyExistsException(storage.getURI().toString());
             }
@@ -452,14 +657,11 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             
             
             
-            //TODO POSSIBLE LEAK!!
-            if (sopInstanceUIDs.contains(SOPInstanceUID))
-            {
-            	log.warn("SOPInstanceUID exists in list: {}", SOPInstanceUID);
-                return null;
+            if (dedup != null) {
+                dedup.put(uri, SOPInstanceUID);
             }
-            sopInstanceUIDs.add(SOPInstanceUID);
             String data;
+            Charset charset = DicomValueDecoder.charsetOf(dicomObject, DicomValueDecoder.DEFAULT_CHARSET);
             
             for (TagValue tag : tagStruct.getDIMFields()) {
                 data = null;
@@ -469,7 +671,7 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                  }
                  else{*/
                 if (e != null) {
-                    data = getValue(e);
+                    data = getValue(e, charset);
                 }
                 //}
 
@@ -481,12 +683,14 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                     data = "";
                 }
                 addField(returnDoc, dicomObject.vrOf(tag.getTagNumber()), tag.getAlias(), data);
+                // also indexed as a column, for grouping without loading stored documents
+                returnDoc.addKeyword(DimColumns.column(tag.getAlias()), data);
             }
 
             String otherToIndex = "";
 
             if (tagStruct.isModalityEnable(dicomObject.getString(Tag.Modality)) || tagStruct.isIndexAllModalitiesEnabled()) {
-                List<String> _list = getRecursiveDicomElement(returnDoc, dicomObject, "", -1, tagStruct.isDeepSearchModalitiesEnabled());
+                List<String> _list = getRecursiveDicomElement(returnDoc, dicomObject, "", -1, tagStruct.isDeepSearchModalitiesEnabled(), charset);
                 otherToIndex = _list.get(0);
             }
                         
@@ -498,6 +702,10 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
             log.error("IOError: {}", storage.getURI(), ex);
             //System.out.print("x");
             //ex.printStackTrace();
+            if (claimed != null) {
+                dedup.releaseInstance(claimed);
+                claimed = null;
+            }
             return null;
         } finally {
             try {
@@ -505,6 +713,9 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                 if (bufferedStream != null) bufferedStream.close();
             } catch (Exception ex) {
             	log.error("IOError: {}", storage.getURI(), ex);
+                if (claimed != null) {
+                    dedup.releaseInstance(claimed);
+                }
                 return null;
             }
         }
@@ -556,8 +767,38 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
 			this.maxRAMBufferSize = 255;
 			cnf.setProperty("indexer.maxRAMBufferSize", this.maxRAMBufferSize);
 		}
+
+		try {
+			this.parserThreads = Math.max(1, cnf.getInt("indexer.parserThreads"));
+		} catch (NoSuchElementException ex) {
+			this.parserThreads = Runtime.getRuntime().availableProcessors();
+			cnf.setProperty("indexer.parserThreads", this.parserThreads);
+		}
+		this.startParserPool();
+
+		try {
+			this.dedupCapacity = cnf.getLong("indexer.dedupCapacity");
+		} catch (NoSuchElementException ex) {
+			this.dedupCapacity = 10000000;
+			cnf.setProperty("indexer.dedupCapacity", this.dedupCapacity);
+		}
+
+		try {
+			this.commitDocs = cnf.getInt("indexer.commitDocs");
+		} catch (NoSuchElementException ex) {
+			this.commitDocs = 1000;
+			cnf.setProperty("indexer.commitDocs", this.commitDocs);
+		}
+
+		try {
+			this.commitInterval = cnf.getLong("indexer.commitInterval");
+		} catch (NoSuchElementException ex) {
+			this.commitInterval = 5000;
+			cnf.setProperty("indexer.commitInterval", this.commitInterval);
+		}
         
         this.setIndexPath(cnf.getString("indexer.path", DEFAULT_INDEX_PATH));
+		this.startCommitter();
 		
 		try {
 			cnf.save();
@@ -574,46 +815,86 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
         return settings;
     }
 
-    public static boolean isBinaryField(VR vr) {
-        return vr == VR.SS || vr == VR.US || vr == VR.SL || vr == VR.UL || vr == VR.FL ||vr == VR.FD;
+    private synchronized void startParserPool() {
+        if (this.parserPool != null) {
+            this.parserPool.shutdown();
+        }
+        this.parserPool = Executors.newFixedThreadPool(parserThreads, daemonThreads("lucene-parser-"));
+        log.debug("Lucene parser pool started with {} threads", parserThreads);
     }
 
-    public static String getValue(DicomElement element) {
-
-        if (!isBinaryField(element.vr())) {
-            String value = null;
-            Charset utf8charset = Charset.forName("UTF-8");
-            Charset iso88591charset = Charset.forName("iso8859-1");
-            byte[] values = element.getBytes();
-            ByteBuffer inputBuffer = ByteBuffer.wrap(values);
+    private synchronized void startCommitter() {
+        if (this.committer != null) {
+            this.committer.shutdownNow();
+            this.committer = null;
+        }
+        if (commitInterval > 0) {
+            this.committer = Executors.newSingleThreadScheduledExecutor(daemonThreads("lucene-committer-"));
+            this.committer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+        log.debug("Lucene commit policy: every {} changes, every {} ms", commitDocs, commitInterval);
+    }
 
-            // decode UTF-8
-            CharBuffer data = iso88591charset.decode(inputBuffer);
+    static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
 
-            // encode ISO-8559-1
-            ByteBuffer outputBuffer = utf8charset.encode(data);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
 
-            byte[] outputData = outputBuffer.array();
+    /**
+     * Releases the resources held by the indexer. Pending parser jobs are still allowed to finish,
+     * and all pending changes are committed to the index before the writer is closed.
+     */
+    public synchronized void shutdown() {
+        if (this.parserPool != null) {
+            this.parserPool.shutdown();
             try {
-                value = new String(outputData, "UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                log.error("ERROR : @TODO", ex);
+                this.parserPool.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
-            /*
-             * 
-             *  ASCII         "ISO_IR 6"    =>  "UTF-8"
-             UTF-8         "ISO_IR 192"  =>  "UTF-8"
-             ISO Latin 1   "ISO_IR 100"  =>  "ISO-8859-1"
-             ISO Latin 2   "ISO_IR 101"  =>  "ISO-8859-2"
-             ISO Latin 3   "ISO_IR 109"  =>  "ISO-8859-3"
-             ISO Latin 4   "ISO_IR 110"  =>  "ISO-8859-4"
-             ISO Latin 5   "ISO_IR 148"  =>  "ISO-8859-9"
-             Cyrillic      "ISO_IR 144"  =>  "ISO-8859-5"
-             Arabic        "ISO_IR 127"  =>  "ISO-8859-6"
-             Greek         "ISO_IR 126"  =>  "ISO-8859-7"
-             Hebrew        "ISO_IR 138"  =>  "ISO-8859-8"
-             */
-            return value;
+            this.parserPool = null;
+        }
+        if (this.committer != null) {
+            this.committer.shutdownNow();
+            this.committer = null;
+        }
+        closeWriter();
+        closeDuplicateIndex();
+    }
+
+    public static boolean isBinaryField(VR vr) {
+        return vr == VR.SS || vr == VR.US || vr == VR.SL || vr == VR.UL || vr == VR.FL ||vr == VR.FD;
+    }
+
+    public static String getValue(DicomElement element) {
+        return getValue(element, DicomValueDecoder.DEFAULT_CHARSET);
+    }
+
+    /**
+     * Obtains the string value of an element.
+     *
+     * @param element the element
+     * @param charset the charset of the text values of the element's data set,
+     *      as given by its Specific Character Set
+     * @return the string value of the element
+     */
+    public static String getValue(DicomElement element, Charset charset) {
+
+        if (!isBinaryField(element.vr())) {
+            return DicomValueDecoder.get().decode(element.getBytes(), charset);
         }
 
         if (element.vr() == VR.FD && element.getBytes().length == 8) {
@@ -712,9 +993,10 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
      * @param dim
      * @param others
      * @param nItems
+     * @param charset the charset of the text values of d
      * @return
      */
-    private List<String> getRecursiveDicomElement(IDoc _doc, DicomObject d, String prefix, int nItems, boolean deepSearch) {
+    private List<String> getRecursiveDicomElement(IDoc _doc, DicomObject d, String prefix, int nItems, boolean deepSearch, Charset charset) {
 
         String otherToIndex = "";
         String tagList = "";
@@ -747,9 +1029,11 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                     String prefixAux = prefix + tagName + "_";
 
                     if (dcm.countItems() > 0) {
+                        DicomObject item = dcm.getDicomObject(0);
                         List<String> list = getRecursiveDicomElement(_doc,
-                                dcm.getDicomObject(0), prefixAux,
-                                dcm.countItems(), deepSearch);
+                                item, prefixAux,
+                                dcm.countItems(), deepSearch,
+                                DicomValueDecoder.charsetOf(item, charset));
                         otherToIndex = otherToIndex + " " + list.get(0);
                         tagList = tagList + " " + list.get(1);
                         sequences.put(tagName, list.get(1));
@@ -758,7 +1042,7 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
                  * Drop the non-search-valid fields (Pixel data etc)
                  */ else if (dcm.vr() != VR.OB && dcm.vr() != VR.OW && !tagName.equals("?")) {
                     String value;
-                    value = getValue(dcm);
+                    value = getValue(dcm, charset);
 
                     if (value != null) {
                         tagList = tagList + " " + prefix + tagName;
@@ -788,20 +1072,16 @@ public class LuceneIndexer implements IndexerInterface, PlatformCommunicatorInte
         try {
             Query q = parser.parse(String.format("uri:\"%s\"", s));
             log.debug("Query: {}", q.toString());
-            beginTransaction();
             this.writer.deleteDocuments(q);
-            endTransaction();
+            indexChanged(1);
+            DuplicateIndex dedup = this.instances;
+            if (dedup != null) {
+                // a document indexed again at this URI must not be taken for a duplicate
+                dedup.releaseUri(uri.toString());
+            }
             return true;
         } catch (IOException ex) {
-            log.error("Failed to unindex, attempting close", ex);
-            if (this.writer != null) {
-                try {
-                    this.writer.close();
-                } catch (IOException ex1) {
-                    log.error(ex1.getMessage(), ex1);
-                }
-                this.writer = null;
-            }
+            log.error("Failed to unindex", ex);
             return false;
         } catch (ParseException ex) {
             log.error("Failed to parse query", ex);
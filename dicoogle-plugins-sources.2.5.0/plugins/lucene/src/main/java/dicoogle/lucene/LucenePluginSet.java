@@ -65,6 +65,14 @@ public class LucenePluginSet extends PluginBase{
         // TODO if we wish to deprecate setSettings at plugin set level,
         // this update must be done some other way
         this.query.setIndexPath(indexer.getLuceneDirectory());
+        this.query.setIndexWriter(indexer.getIndexWriter());
+	}
+
+	@Override
+	public void shutdown() {
+		log.info("Shutting down lucene plugin set");
+		query.shutdown();
+		indexer.shutdown();
 	}
 
 }
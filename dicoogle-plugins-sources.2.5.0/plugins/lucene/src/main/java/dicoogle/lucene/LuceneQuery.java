@@ -22,24 +22,41 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
+import org.apache.commons.configuration.XMLConfiguration;
 
+import dicoogle.lucene.query.DimColumns;
+import dicoogle.lucene.query.DimGroupQuery;
+import dicoogle.lucene.query.PagedSearch;
+import dicoogle.lucene.query.QueryCache;
 import dicoogle.lucene.query.ShardResultStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.QueryInterface;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+import pt.ua.dicoogle.sdk.utils.TagValue;
+import pt.ua.dicoogle.sdk.utils.TagsStruct;
 
 /**
  * Implementation of the Query Plugin.
@@ -53,64 +70,137 @@ public class LuceneQuery implements QueryInterface{
 
     private static final Logger logger = LoggerFactory.getLogger(LuceneQuery.class);
 	private static final Pattern pattern = Pattern.compile("([a-zA-Z_0-9]*:(Float|Numeric):)+");
+
+    /** keys of the paging parameter of {@link #query(String, Object...)}, as set by Dicoogle's PluginController */
+    private static final String PAGING_CURSOR = "cursor";
+    private static final String PAGING_LIMIT = "limit";
+    private static final String PAGING_NEXT_CURSOR = "nextCursor";
+    private static final String PAGING_COUNT = "count";
+    private static final String PAGING_TOTAL_HITS = "totalHits";
 	
 	private ConfigurationHolder settings;
     private Directory indexDir;
     private Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
     
     private volatile IndexReader reader;
+    private volatile IndexWriter writer;
+
+    /**
+     * maximum time, in milliseconds, that a reader may be used before checking the index for changes.
+     * Each reopen also drops the cached first pages, so under ingest this bounds how long they stay useful.
+     */
+    private long maxStaleness = 1000;
+    private long lastReopen;
+    /**
+     * incremented whenever a new reader is opened, so that cached result pages can be discarded
+     */
+    private long readerGeneration;
+
+    private volatile QueryCache cache = new QueryCache(128, 10000);
+
+    /**
+     * size of the first page of results, and maximum size the following pages grow to
+     */
+    private int pageSize = 1000;
+    private int maxPageSize = ShardResultStream.DEFAULT_BULK_SIZE;
+
+    /**
+     * threads used to search index segments concurrently, 0 to search them on the caller's thread
+     */
+    private int searchThreads = 0;
+    private int searchPoolThreads = 0;
+    private volatile ExecutorService searchPool;
     
 
     public LuceneQuery() {
     }
     
-    protected IndexReader reloadedReader() throws IOException {
+    /**
+     * Obtains the current reader, reopening it if it may be stale. When an index writer is available,
+     * near real-time readers are opened from it, so that uncommitted documents become searchable.
+     * The caller does not own a reference to the returned reader.
+     */
+    protected synchronized IndexReader reloadedReader() throws IOException {
+        long now = System.currentTimeMillis();
         if (this.reader == null) {
-            this.reader = IndexReader.open(indexDir, true);
+            this.reader = openReader();
+            this.lastReopen = now;
+            this.readerGeneration++;
+            this.cache.invalidate(this.readerGeneration);
             logger.debug("New Reader: {}", reader);
-        } else {
-            IndexReader nreader = IndexReader.openIfChanged(reader, true);
+        } else if (now - this.lastReopen >= this.maxStaleness) {
+            IndexWriter w = this.writer;
+            IndexReader nreader = (w != null)
+                    ? IndexReader.openIfChanged(reader, w, true)
+                    : IndexReader.openIfChanged(reader, true);
+            this.lastReopen = now;
             if(nreader != null) {
+                IndexReader oldReader = this.reader;
                 this.reader = nreader;
+                // result streams still using the old reader hold their own references
+                oldReader.decRef();
+                this.readerGeneration++;
+                this.cache.invalidate(this.readerGeneration);
                 logger.debug("New Reader: {}", reader);
             }
         }
         return this.reader;
     }
+
+    /**
+     * Obtains an up to date reader with an incremented reference count. The caller must release it
+     * with {@link IndexReader#decRef()}.
+     */
+    protected synchronized IndexReader acquireReader() throws IOException {
+        IndexReader r = reloadedReader();
+        r.incRef();
+        return r;
+    }
     
-    protected IndexReader reader() throws IOException {
+    protected synchronized IndexReader reader() throws IOException {
         if (this.reader == null) {
-            this.reader = IndexReader.open(indexDir, true);
+            this.reader = openReader();
             logger.debug("Reader: {}", reader);
         }
         return this.reader;
     }
+
+    /**
+     * Creates a searcher over the given reader. When a search pool is configured, the segments of the
+     * reader are searched concurrently and their top hits merged.
+     */
+    private IndexSearcher newSearcher(IndexReader r) {
+        ExecutorService pool = this.searchPool;
+        if (pool != null) {
+            return new IndexSearcher(r, pool);
+        }
+        return new IndexSearcher(r);
+    }
+
+    private IndexReader openReader() throws IOException {
+        IndexWriter w = this.writer;
+        if (w != null) {
+            return IndexReader.open(w, true);
+        }
+        return IndexReader.open(indexDir, true);
+    }
     
-    public void setIndexPath(Directory index) {
+    public synchronized void setIndexPath(Directory index) {
         this.indexDir = index;
         this.reader = null;
     }
-    
-	@SuppressWarnings({ "unchecked", "resource" })
-	@Override
-	public Iterable<SearchResult> query(String query, Object... parameters) {
-		long time = System.currentTimeMillis();
-		
-        if (this.indexDir == null) {
-            logger.warn("Query was attempted before settings were initialized");
-            return Collections.EMPTY_LIST;
-        }
-        
-		//Check for changes in the reader;
-        try {
-    	    this.reader = reloadedReader();
-        } catch (IOException ex) {
-            logger.warn("Trying to open index file", ex);
-            return Collections.emptyList();
-        }
-	    
-		IndexSearcher searcher = new IndexSearcher(reader);
-		
+
+    /**
+     * Makes this query provider open near real-time readers from the given writer.
+     *
+     * @param writer the indexer's long-lived writer, or null to read the last commit from the directory
+     */
+    public synchronized void setIndexWriter(IndexWriter writer) {
+        this.writer = writer;
+        this.reader = null;
+    }
+
+    private Query parseQuery(String query) throws ParseException {
 		Matcher matcher = pattern.matcher(query);
 		ArrayList<String> fieldsNumeric = new ArrayList<>();
 		while (matcher.find()) {
@@ -124,29 +214,261 @@ public class LuceneQuery implements QueryInterface{
 		GenericQueryParser parser = new GenericQueryParser(Version.LUCENE_30, "FileName",
 				analyzer, fieldsNumeric);
 		parser.setAllowLeadingWildcard(true);
-		AllDocCollector collector = new AllDocCollector();
+		return parser.parse(query);
+    }
+
+    /**
+     * Parses the given query, reusing a previously parsed query object if available.
+     */
+    private Query cachedQuery(String query) throws ParseException {
+        QueryCache c = this.cache;
+        Query queryObject = c.getQuery(query);
+        if (queryObject == null) {
+            queryObject = parseQuery(query);
+            c.putQuery(query, queryObject);
+        }
+        return queryObject;
+    }
+
+    /**
+     * @return the cache of parsed queries and result pages, along with its hit and miss statistics
+     */
+    public QueryCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Checks whether any document matches the given query, without creating a result stream.
+     *
+     * @param query the query string
+     * @return whether at least one document matches the query
+     */
+    public boolean exists(String query) throws IOException, ParseException {
+        if (this.indexDir == null && this.writer == null) {
+            logger.warn("Query was attempted before settings were initialized");
+            return false;
+        }
+        Query queryObject = parseQuery(query);
+        IndexReader r = acquireReader();
+        try {
+            return new IndexSearcher(r).search(queryObject, 1).totalHits > 0;
+        } finally {
+            r.decRef();
+        }
+    }
+    
+    /**
+     * Performs a search on the index.
+     *
+     * The first parameter, if any, is the map of extra fields to retrieve. The second parameter, if any, is a
+     * DIM level (PATIENT, STUDY or SERIES, or the corresponding DimLevel); when given, one result is returned
+     * per patient, study or series, grouped from the columnar DIM fields.
+     *
+     * The third parameter, if any, is a map requesting a single page of results or a count, for ungrouped
+     * queries. With "limit" (and "cursor", from the previous page), only the results of that page are returned,
+     * and the cursor of the following page is put in the map as "nextCursor" (null after the last page). With
+     * "count", no results are returned and their number is put in the map as "totalHits". Without either
+     * answer in the map, the caller has to traverse the results itself. A malformed query or cursor is then
+     * reported with an IllegalArgumentException.
+     */
+	@SuppressWarnings({ "unchecked", "resource" })
+	@Override
+	public Iterable<SearchResult> query(String query, Object... parameters) {
+		long time = System.currentTimeMillis();
+		
+        if (this.indexDir == null && this.writer == null) {
+            logger.warn("Query was attempted before settings were initialized");
+            return Collections.EMPTY_LIST;
+        }
+
+		boolean grouped = parameters.length > 1 && parameters[1] != null
+				&& DimColumns.keyFieldOf(parameters[1].toString()) != null;
+		Map<String, Object> paging = null;
+		if (!grouped && parameters.length > 2 && parameters[2] instanceof Map) {
+			paging = (Map<String, Object>) parameters[2];
+		}
 		
 		Query queryObject;
 		try {
-			queryObject = parser.parse(query);
+			queryObject = cachedQuery(query);
 		} catch (ParseException e) {
+			if (paging != null) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
 			logger.error("Error parsing query", e);
 			return Collections.emptyList();
 		}
-		
+
 		HashMap<String, Object> extrafields = null;
 		if (parameters.length > 0)
-			extrafields = (HashMap<String, Object>) parameters[0];		
+			extrafields = (HashMap<String, Object>) parameters[0];
+
+		if (grouped) {
+			return queryGrouped(queryObject, parameters[1].toString(), extrafields);
+		}
+		if (paging != null && paging.get(PAGING_COUNT) instanceof Boolean) {
+			paging.put(PAGING_TOTAL_HITS, count(query, queryObject));
+			return Collections.emptyList();
+		}
+		if (paging != null && paging.get(PAGING_LIMIT) instanceof Integer) {
+			PagedSearch.Page page = queryPage(query, queryObject, extrafields,
+					(String) paging.get(PAGING_CURSOR), (Integer) paging.get(PAGING_LIMIT));
+			paging.put(PAGING_NEXT_CURSOR, page.getNextCursor());
+			return page.getResults();
+		}
+        
+		//Check for changes in the reader;
+        IndexReader r;
+        long generation;
+        try {
+            synchronized (this) {
+                r = acquireReader();
+                generation = this.readerGeneration;
+            }
+        } catch (IOException ex) {
+            logger.warn("Trying to open index file", ex);
+            return Collections.emptyList();
+        }
+	    
+		IndexSearcher searcher = newSearcher(r);
+		
+		QueryCache c = this.cache;
+		TopDocs firstPage = c.getFirstPage(query, generation);
+		if (firstPage == null) {
+			try {
+				firstPage = searcher.search(queryObject, pageSize);
+				c.putFirstPage(query, generation, firstPage);
+			} catch (IOException ex) {
+				logger.error("Failed to perform search", ex);
+				try {
+					r.decRef();
+				} catch (IOException e) {
+					logger.warn("Failed to release index reader", e);
+				}
+				return Collections.emptyList();
+			}
+		}
 				
-		ShardResultStream rs = new ShardResultStream(searcher, queryObject, extrafields);
+		// the stream outlives this call, and the search pool may be replaced meanwhile,
+		// so it keeps a plain searcher and asks for a pooled one for each page
+		ShardResultStream rs = new ShardResultStream(new IndexSearcher(r), queryObject, extrafields,
+				pageSize, maxPageSize, firstPage) {
+			@Override
+			protected IndexSearcher pageSearcher() {
+				return newSearcher(this.searcher.getIndexReader());
+			}
+		};
+		rs.takeReaderReference();
+		logger.debug("{}", c);
 		
 		time = System.currentTimeMillis() - time;
-		logger.info("Finished opening result stream, Query: {},{},{}",
-                (Object)collector.getHits().size(), (Object)time, query);
+		logger.info("Finished opening result stream, Query: {},{}",
+                (Object)time, query);
 		
 		return rs;
 	}
 
+    /**
+     * Retrieves one page of results, loading only the documents in that page.
+     */
+    private PagedSearch.Page queryPage(String query, Query queryObject, HashMap<String, Object> extrafields,
+            String cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive");
+        }
+        long time = System.currentTimeMillis();
+        IndexReader r;
+        try {
+            r = acquireReader();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to open index", ex);
+        }
+        try {
+            PagedSearch.Page page = PagedSearch.search(newSearcher(r), queryObject, extrafields, cursor, limit);
+            logger.debug("Retrieved page of {} results in {} ms, Query: {}", page.getResults().size(),
+                    System.currentTimeMillis() - time, query);
+            return page;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to perform search", ex);
+        } finally {
+            try {
+                r.decRef();
+            } catch (IOException ex) {
+                logger.warn("Failed to release index reader", ex);
+            }
+        }
+    }
+
+    /**
+     * Counts the results of a query without loading any document. The count is always exact, reusing the
+     * cached first page of the query when there is one.
+     */
+    private long count(String query, Query queryObject) {
+        IndexReader r;
+        long generation;
+        try {
+            synchronized (this) {
+                r = acquireReader();
+                generation = this.readerGeneration;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to open index", ex);
+        }
+        try {
+            TopDocs firstPage = this.cache.getFirstPage(query, generation);
+            if (firstPage != null) {
+                return firstPage.totalHits;
+            }
+            TotalHitCountCollector collector = new TotalHitCountCollector();
+            newSearcher(r).search(queryObject, collector);
+            return collector.getTotalHits();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to perform search", ex);
+        } finally {
+            try {
+                r.decRef();
+            } catch (IOException ex) {
+                logger.warn("Failed to release index reader", ex);
+            }
+        }
+    }
+
+    /**
+     * Performs a search with one result per group of the given DIM level. Only the first document of each
+     * group is loaded, and only for the requested fields which are not indexed as DIM columns.
+     */
+    private Iterable<SearchResult> queryGrouped(Query queryObject, String level, HashMap<String, Object> extrafields) {
+        long time = System.currentTimeMillis();
+        Set<String> dimFields = new HashSet<>();
+        for (TagValue tag : TagsStruct.getInstance().getDIMFields()) {
+            dimFields.add(tag.getAlias());
+        }
+
+        IndexReader r;
+        try {
+            r = acquireReader();
+        } catch (IOException ex) {
+            logger.warn("Trying to open index file", ex);
+            return Collections.emptyList();
+        }
+        try {
+            List<SearchResult> results = DimGroupQuery.search(newSearcher(r), queryObject, level,
+                    extrafields, dimFields);
+            logger.info("Finished grouped query at level {}: {} results in {} ms", level, results.size(),
+                    System.currentTimeMillis() - time);
+            return results;
+        } catch (IOException ex) {
+            logger.error("Error performing grouped query", ex);
+            return Collections.emptyList();
+        } finally {
+            try {
+                r.decRef();
+            } catch (IOException ex) {
+                logger.warn("Failed to release index reader", ex);
+            }
+        }
+    }
+
     @Override
     public String getName() {return "lucene";}
 
@@ -162,6 +484,75 @@ public class LuceneQuery implements QueryInterface{
     @Override
     public void setSettings(ConfigurationHolder settings) {
         this.settings = settings;
+
+        XMLConfiguration cnf = this.settings.getConfiguration();
+        try {
+            this.maxStaleness = cnf.getLong("query.maxStaleness");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.maxStaleness", this.maxStaleness);
+        }
+
+        int cacheSize = 128;
+        try {
+            cacheSize = cnf.getInt("query.cacheSize");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.cacheSize", cacheSize);
+        }
+        int cacheMaxHits = 10000;
+        try {
+            cacheMaxHits = cnf.getInt("query.cacheMaxHits");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.cacheMaxHits", cacheMaxHits);
+        }
+        this.cache = new QueryCache(cacheSize, cacheMaxHits);
+
+        try {
+            this.pageSize = cnf.getInt("query.pageSize");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.pageSize", this.pageSize);
+        }
+        try {
+            this.maxPageSize = cnf.getInt("query.maxPageSize");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.maxPageSize", this.maxPageSize);
+        }
+
+        try {
+            this.searchThreads = cnf.getInt("query.searchThreads");
+        } catch (NoSuchElementException ex) {
+            cnf.setProperty("query.searchThreads", this.searchThreads);
+        }
+        startSearchPool();
+    }
+
+    private synchronized void startSearchPool() {
+        ExecutorService oldPool = this.searchPool;
+        if (oldPool != null && searchPoolThreads == searchThreads) {
+            return;
+        }
+        searchPoolThreads = searchThreads;
+        if (searchThreads > 0) {
+            this.searchPool = Executors.newFixedThreadPool(searchThreads, LuceneIndexer.daemonThreads("lucene-search-"));
+            logger.debug("Lucene search pool started with {} threads", searchThreads);
+        } else {
+            this.searchPool = null;
+        }
+        if (oldPool != null) {
+            // searches already running on the old pool are allowed to finish; open result
+            // streams create their searchers per page, so they move on to the new pool
+            oldPool.shutdown();
+        }
+    }
+
+    /**
+     * Releases the threads used for concurrent segment search.
+     */
+    public void shutdown() {
+        ExecutorService pool = this.searchPool;
+        this.searchPool = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
     }
 
     @Override
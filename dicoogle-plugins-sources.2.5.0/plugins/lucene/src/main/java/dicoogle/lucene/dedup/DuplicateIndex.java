@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dedup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Duplicate detection structure for the indexer, tracking the URIs and SOPInstanceUIDs of the
+ * indexed instances.
+ * 
+ * Membership is answered by a Bloom filter, so a negative answer is definitive and costs O(1),
+ * while a positive answer must be confirmed against the index. Removals from the index are not
+ * reflected in the filter, which only results in additional confirmations. Instances that were
+ * claimed recently are also kept in a small bounded set, which catches duplicates that are being
+ * indexed concurrently and are not yet visible to index readers. A claim is released if its
+ * document does not make it to the index, or is removed from it.
+ */
+public class DuplicateIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateIndex.class);
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int RECENT_CAPACITY = 65536;
+
+    private static final String URI_PREFIX = "uri:";
+    private static final String INSTANCE_PREFIX = "sop:";
+
+    private final MappedBloomFilter filter;
+    private final long capacity;
+    private volatile boolean loaded;
+
+    /** recently claimed SOPInstanceUIDs, to the URI of the claiming document */
+    private final Map<String, String> recentInstances = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() > RECENT_CAPACITY) {
+                forgetUri(eldest.getValue(), eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    /** the reverse of recentInstances, guarded by it */
+    private final Map<String, String> recentUris = new HashMap<String, String>();
+
+    /**
+     * Opens the duplicate index backed by the given file.
+     * 
+     * @param file the file backing the Bloom filter
+     * @param capacity the expected number of indexed instances
+     * @throws IOException if the file cannot be opened
+     */
+    public DuplicateIndex(File file, long capacity) throws IOException {
+        this.capacity = capacity;
+        // each instance is tracked by its URI and SOPInstanceUID
+        this.filter = MappedBloomFilter.open(file, capacity * 2, FALSE_POSITIVE_PROBABILITY);
+        this.loaded = filter.isRestored();
+        logger.debug("Opened duplicate index at {}, restored: {}", file, loaded);
+    }
+
+    /**
+     * @return whether the filter reflects the index contents. Until then, every lookup is a
+     * possible duplicate, and must be confirmed against the index.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Fills the filter with the URIs and SOPInstanceUIDs of all documents in the given reader.
+     * Instances can be added concurrently while loading.
+     * 
+     * @param reader a reader of the index
+     * @throws IOException if the documents cannot be read
+     */
+    public void load(IndexReader reader) throws IOException {
+        long time = System.currentTimeMillis();
+        MapFieldSelector selector = new MapFieldSelector("uri", "SOPInstanceUID");
+        int maxDoc = reader.maxDoc();
+        for (int i = 0; i < maxDoc; i++) {
+            if (reader.isDeleted(i)) {
+                continue;
+            }
+            Document doc = reader.document(i, selector);
+            put(doc.get("uri"), doc.get("SOPInstanceUID"));
+        }
+        this.loaded = true;
+        logger.info("Loaded duplicate index from {} documents in {} ms", maxDoc, System.currentTimeMillis() - time);
+    }
+
+    /**
+     * Checks whether a document with the given URI might be in the index.
+     * 
+     * @param uri the URI of the document
+     * @return false if the URI is definitely not indexed
+     */
+    public boolean mightContainUri(String uri) {
+        return !loaded || filter.mightContain(URI_PREFIX + uri);
+    }
+
+    /**
+     * Checks whether a document with the given SOPInstanceUID might be in the index.
+     * 
+     * @param sopInstanceUID the SOPInstanceUID of the document
+     * @return false if the instance is definitely not indexed
+     */
+    public boolean mightContainInstance(String sopInstanceUID) {
+        return !loaded || filter.mightContain(INSTANCE_PREFIX + sopInstanceUID.trim());
+    }
+
+    /**
+     * Claims the given instance for indexing. The claim must be released with
+     * {@link #releaseInstance(String)} if the document is not added to the index.
+     * 
+     * @param sopInstanceUID the SOPInstanceUID of the document
+     * @param uri the URI of the document
+     * @return false if the instance was recently claimed, and should not be indexed again
+     */
+    public boolean claimInstance(String sopInstanceUID, String uri) {
+        String key = sopInstanceUID.trim();
+        synchronized (recentInstances) {
+            if (recentInstances.containsKey(key)) {
+                return false;
+            }
+            recentInstances.put(key, uri);
+            recentUris.put(uri, key);
+            return true;
+        }
+    }
+
+    /**
+     * Releases the claim on an instance that was not indexed after all.
+     * 
+     * @param sopInstanceUID the SOPInstanceUID of the document
+     */
+    public void releaseInstance(String sopInstanceUID) {
+        String key = sopInstanceUID.trim();
+        synchronized (recentInstances) {
+            String uri = recentInstances.remove(key);
+            if (uri != null) {
+                forgetUri(uri, key);
+            }
+        }
+    }
+
+    /**
+     * Releases the claim held by the document at the given URI, if any,
+     * once it failed to be indexed or was removed from the index.
+     * 
+     * @param uri the URI of the document
+     */
+    public void releaseUri(String uri) {
+        synchronized (recentInstances) {
+            String key = recentUris.remove(uri);
+            if (key != null) {
+                recentInstances.remove(key);
+            }
+        }
+    }
+
+    private void forgetUri(String uri, String sopInstanceUID) {
+        if (sopInstanceUID.equals(recentUris.get(uri))) {
+            recentUris.remove(uri);
+        }
+    }
+
+    /**
+     * Records an indexed document.
+     * 
+     * @param uri the URI of the document, may be null
+     * @param sopInstanceUID the SOPInstanceUID of the document, may be null
+     */
+    public void put(String uri, String sopInstanceUID) {
+        if (uri != null) {
+            filter.put(URI_PREFIX + uri);
+        }
+        if (sopInstanceUID != null) {
+            // stored values may keep the padding of the UI value representation
+            filter.put(INSTANCE_PREFIX + sopInstanceUID.trim());
+            if (filter.count() == capacity * 2) {
+                logger.warn("Duplicate index reached its capacity of {} instances, consider raising it", capacity);
+            }
+        }
+    }
+
+    /**
+     * Closes the backing file. A filter that was not fully loaded will be rebuilt the next time.
+     */
+    @Override
+    public void close() throws IOException {
+        filter.close(loaded);
+    }
+}
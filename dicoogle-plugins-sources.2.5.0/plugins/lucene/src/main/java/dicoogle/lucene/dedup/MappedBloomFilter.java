@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dedup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Bloom filter of strings whose bit set lives in a memory-mapped file, so that it
+ * survives restarts without being rebuilt.
+ * 
+ * The file starts with a small header holding the filter's geometry, the number of
+ * insertions and a clean flag. The flag is cleared while the filter is open, and set
+ * again by {@link #close()}, so that a filter which was not properly closed can be
+ * detected and rebuilt.
+ */
+public class MappedBloomFilter implements Closeable {
+
+    private static final int MAGIC = 0x44424c4d;
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int NUM_BITS_OFFSET = 8;
+    private static final int NUM_HASHES_OFFSET = 16;
+    private static final int CLEAN_OFFSET = 20;
+    private static final int COUNT_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+
+    private static final long MAX_BITS = (Integer.MAX_VALUE - HEADER_SIZE) * 8L;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long numBits;
+    private final int numHashes;
+    private final boolean restored;
+    private long count;
+
+    private MappedBloomFilter(RandomAccessFile file, MappedByteBuffer buffer, long numBits, int numHashes,
+            boolean restored) {
+        this.file = file;
+        this.buffer = buffer;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.restored = restored;
+        this.count = buffer.getLong(COUNT_OFFSET);
+    }
+
+    /**
+     * Opens the filter stored in the given file, or creates a new one if the file does not exist,
+     * is corrupted or was created for a different capacity.
+     * 
+     * @param f the file backing the filter
+     * @param expectedEntries the number of entries the filter is sized for
+     * @param fpp the desired false positive probability at full capacity
+     * @return the filter
+     * @throws IOException if the file cannot be mapped
+     */
+    public static MappedBloomFilter open(File f, long expectedEntries, double fpp) throws IOException {
+        long n = Math.max(1, expectedEntries);
+        long numBits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numBits = Math.min(Math.max(64, numBits), MAX_BITS);
+        int numHashes = (int) Math.max(1, Math.round((double) numBits / n * Math.log(2)));
+
+        long size = HEADER_SIZE + (numBits + 7) / 8;
+        boolean exists = f.exists() && f.length() == size;
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            boolean restored = exists
+                    && buffer.getInt(MAGIC_OFFSET) == MAGIC
+                    && buffer.getInt(VERSION_OFFSET) == VERSION
+                    && buffer.getLong(NUM_BITS_OFFSET) == numBits
+                    && buffer.getInt(NUM_HASHES_OFFSET) == numHashes
+                    && buffer.getInt(CLEAN_OFFSET) == 1;
+
+            if (!restored) {
+                for (int i = 0; i < size; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(MAGIC_OFFSET, MAGIC);
+                buffer.putInt(VERSION_OFFSET, VERSION);
+                buffer.putLong(NUM_BITS_OFFSET, numBits);
+                buffer.putInt(NUM_HASHES_OFFSET, numHashes);
+            }
+            // the filter is dirty until closed
+            buffer.putInt(CLEAN_OFFSET, 0);
+            buffer.force();
+
+            return new MappedBloomFilter(raf, buffer, numBits, numHashes, restored);
+        } catch (IOException | RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return whether the filter was restored from a properly closed file, as opposed to created empty
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * @return the number of entries that were inserted into the filter
+     */
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * Checks whether the given key might have been inserted in the filter.
+     * 
+     * @param key the key to check
+     * @return false if the key was definitely never inserted, true if it might have been
+     */
+    public synchronized boolean mightContain(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int pos = HEADER_SIZE + (int) (bit >>> 3);
+            if ((buffer.get(pos) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts the given key in the filter.
+     * 
+     * @param key the key to insert
+     * @return true if the key was definitely not in the filter before this call
+     */
+    public synchronized boolean put(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        boolean changed = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int pos = HEADER_SIZE + (int) (bit >>> 3);
+            byte b = buffer.get(pos);
+            byte nb = (byte) (b | (1 << (bit & 7)));
+            if (nb != b) {
+                buffer.put(pos, nb);
+                changed = true;
+            }
+        }
+        if (changed) {
+            count++;
+            buffer.putLong(COUNT_OFFSET, count);
+        }
+        return changed;
+    }
+
+    /**
+     * Flushes the filter to disk, marks it as clean and releases the file.
+     */
+    @Override
+    public void close() throws IOException {
+        close(true);
+    }
+
+    /**
+     * Flushes the filter to disk and releases the file.
+     * 
+     * @param clean whether the filter should be marked as clean, and thus restored when opened again
+     */
+    public synchronized void close(boolean clean) throws IOException {
+        buffer.putLong(COUNT_OFFSET, count);
+        buffer.force();
+        if (clean) {
+            buffer.putInt(CLEAN_OFFSET, 1);
+            buffer.force();
+        }
+        file.close();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key's characters, followed by a final mix.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3's 64-bit finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
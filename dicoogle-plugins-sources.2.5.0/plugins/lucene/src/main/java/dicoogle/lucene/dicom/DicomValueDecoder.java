@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dicom;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes the values of DICOM text elements according to the Specific Character Set (0008,0005) of their data set.
+ * 
+ * Charsets are resolved once per defined term. Each thread owns a decoder instance, obtained with {@link #get()},
+ * which keeps one charset decoder per charset and a reusable character buffer, so that the bytes of an element are
+ * decoded straight into the resulting string.
+ */
+public final class DicomValueDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(DicomValueDecoder.class);
+
+    /**
+     * The charset of data sets without a Specific Character Set. ISO-8859-1 is used rather than ASCII,
+     * since many data sets hold Latin-1 text without declaring it.
+     */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+    /**
+     * Values decoding to more characters than this are decoded into a temporary buffer, so that large
+     * elements do not leave large buffers behind.
+     */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, String> CHARSET_NAMES = new HashMap<>();
+    static {
+        CHARSET_NAMES.put("ISO_IR 6", "ISO-8859-1");
+        CHARSET_NAMES.put("ISO 2022 IR 6", "ISO-8859-1");
+        CHARSET_NAMES.put("ISO_IR 100", "ISO-8859-1");
+        CHARSET_NAMES.put("ISO 2022 IR 100", "ISO-8859-1");
+        CHARSET_NAMES.put("ISO_IR 101", "ISO-8859-2");
+        CHARSET_NAMES.put("ISO 2022 IR 101", "ISO-8859-2");
+        CHARSET_NAMES.put("ISO_IR 109", "ISO-8859-3");
+        CHARSET_NAMES.put("ISO 2022 IR 109", "ISO-8859-3");
+        CHARSET_NAMES.put("ISO_IR 110", "ISO-8859-4");
+        CHARSET_NAMES.put("ISO 2022 IR 110", "ISO-8859-4");
+        CHARSET_NAMES.put("ISO_IR 144", "ISO-8859-5");
+        CHARSET_NAMES.put("ISO 2022 IR 144", "ISO-8859-5");
+        CHARSET_NAMES.put("ISO_IR 127", "ISO-8859-6");
+        CHARSET_NAMES.put("ISO 2022 IR 127", "ISO-8859-6");
+        CHARSET_NAMES.put("ISO_IR 126", "ISO-8859-7");
+        CHARSET_NAMES.put("ISO 2022 IR 126", "ISO-8859-7");
+        CHARSET_NAMES.put("ISO_IR 138", "ISO-8859-8");
+        CHARSET_NAMES.put("ISO 2022 IR 138", "ISO-8859-8");
+        CHARSET_NAMES.put("ISO_IR 148", "ISO-8859-9");
+        CHARSET_NAMES.put("ISO 2022 IR 148", "ISO-8859-9");
+        CHARSET_NAMES.put("ISO_IR 203", "ISO-8859-15");
+        CHARSET_NAMES.put("ISO 2022 IR 203", "ISO-8859-15");
+        CHARSET_NAMES.put("ISO_IR 13", "JIS_X0201");
+        CHARSET_NAMES.put("ISO 2022 IR 13", "JIS_X0201");
+        CHARSET_NAMES.put("ISO_IR 166", "TIS-620");
+        CHARSET_NAMES.put("ISO 2022 IR 166", "TIS-620");
+        CHARSET_NAMES.put("ISO 2022 IR 87", "ISO-2022-JP");
+        CHARSET_NAMES.put("ISO 2022 IR 159", "ISO-2022-JP");
+        CHARSET_NAMES.put("ISO 2022 IR 149", "ISO-2022-KR");
+        CHARSET_NAMES.put("ISO 2022 IR 58", "ISO-2022-CN");
+        CHARSET_NAMES.put("ISO_IR 192", "UTF-8");
+        CHARSET_NAMES.put("GB18030", "GB18030");
+        CHARSET_NAMES.put("GBK", "GBK");
+    }
+
+    /**
+     * Charsets resolved so far, by Specific Character Set value.
+     */
+    private static final ConcurrentMap<String, Charset> charsets = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<DicomValueDecoder> decoder = new ThreadLocal<DicomValueDecoder>() {
+        @Override
+        protected DicomValueDecoder initialValue() {
+            return new DicomValueDecoder();
+        }
+    };
+
+    private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+    private CharBuffer buffer = CharBuffer.allocate(256);
+
+    private DicomValueDecoder() {
+    }
+
+    /**
+     * @return The decoder of the calling thread.
+     */
+    public static DicomValueDecoder get() {
+        return decoder.get();
+    }
+
+    /**
+     * Obtains the charset of the text values of a data set.
+     * 
+     * @param dataset The data set, or sequence item.
+     * @param inherited The charset to use if the data set does not define one, e.g. the charset of the enclosing data set.
+     * @return The charset of the data set's text values.
+     */
+    public static Charset charsetOf(DicomObject dataset, Charset inherited) {
+        String value = dataset.getString(Tag.SpecificCharacterSet);
+        if (value == null) {
+            return inherited;
+        }
+        Charset charset = charsets.get(value);
+        if (charset == null) {
+            charset = resolve(value);
+            charsets.putIfAbsent(value, charset);
+        }
+        return charset;
+    }
+
+    /**
+     * Resolves a Specific Character Set value. With code extensions (multiple values), the last known term
+     * is used, since multi-byte character sets follow the default one.
+     */
+    private static Charset resolve(String value) {
+        Charset charset = DEFAULT_CHARSET;
+        for (String term : value.split("\\\\")) {
+            String name = CHARSET_NAMES.get(term.trim());
+            if (name == null) {
+                continue;
+            }
+            try {
+                charset = Charset.forName(name);
+            } catch (IllegalArgumentException ex) {
+                log.warn("Charset {} of Specific Character Set {} is not supported", name, term);
+            }
+        }
+        log.debug("Specific Character Set {} decoded as {}", value, charset);
+        return charset;
+    }
+
+    /**
+     * Decodes the bytes of a text value.
+     * 
+     * @param bytes The value bytes.
+     * @param charset The charset of the value.
+     * @return The decoded value, with malformed input replaced.
+     */
+    public String decode(byte[] bytes, Charset charset) {
+        if (bytes == null || bytes.length == 0) {
+            return "";
+        }
+        CharsetDecoder dec = decoders.get(charset);
+        if (dec == null) {
+            dec = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(charset, dec);
+        }
+
+        int maxChars = (int) Math.ceil(bytes.length * (double) dec.maxCharsPerByte());
+        CharBuffer out = this.buffer;
+        if (out.capacity() < maxChars) {
+            out = CharBuffer.allocate(maxChars);
+            if (maxChars <= MAX_BUFFER_SIZE) {
+                this.buffer = out;
+            }
+        }
+        out.clear();
+        dec.reset();
+        dec.decode(ByteBuffer.wrap(bytes), out, true);
+        dec.flush(out);
+        return new String(out.array(), 0, out.position());
+    }
+}
@@ -45,6 +45,11 @@ public class DicomDocument implements IDoc
     public void add(String name, byte[] value) {
         this.getDicomFields().add(new DicomByteArrField(name, value));
     }
+
+    @Override
+    public void addKeyword(String name, String value) {
+        this.getDicomFields().add(new DicomKeywordField(name, value));
+    }
     
     /**
      * @return the dicomFields
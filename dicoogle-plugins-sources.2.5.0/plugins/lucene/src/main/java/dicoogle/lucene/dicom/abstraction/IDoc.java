@@ -29,6 +29,7 @@ public interface IDoc
     public void add(String name, String value);
     public void add(String name, Float value);
     public void add(String name, byte [] value);
+    public void addKeyword(String name, String value);
     
     public List<IDicomField> getDicomFields();
 }
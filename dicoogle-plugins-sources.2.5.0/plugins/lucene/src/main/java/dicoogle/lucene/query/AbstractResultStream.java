@@ -18,10 +18,15 @@
  */
 package dicoogle.lucene.query;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,14 +38,22 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  * In big-data scenarios query operations should not be bound to standard collections. 
  * As such, the stream pattern is used to guarantee that a minimal amount of resources is required when performing searches.
  * 
+ * A stream may hold a reference to its index reader, and each of its iterators holds another one until it is exhausted.
+ * Consumers which may stop before exhausting the results should close the stream, which releases all of them.
+ * 
  * @author Tiago Marques Godinho, tmgodinho@ua.pt
  *
  */
-public abstract class AbstractResultStream implements Iterable<SearchResult> {
+public abstract class AbstractResultStream implements Iterable<SearchResult>, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(AbstractResultStream.class);
 
 	protected IndexSearcher searcher;
 	protected HashMap<String, Object> xtraFields;
+	private final ResultFieldSelector fieldSelector;
+
+	private boolean holdsReader;
+	private int iteratorReferences;
+	private boolean closed;
 
 	/**
 	 * Constructs a stream with all extrafields selected.
@@ -62,21 +75,134 @@ public abstract class AbstractResultStream implements Iterable<SearchResult> {
 		super();
 		this.searcher = searcher;
 		this.xtraFields = xtraFields;
+		this.fieldSelector = new ResultFieldSelector(xtraFields == null ? null : xtraFields.keySet(),
+				searcher.getIndexReader());
+	}
+
+	/**
+	 * Creates the iterator over the ids of the documents matching the query.
+	 * It is only called while the iterator being created holds a reference to the index reader.
+	 * 
+	 * @return The iterator of document ids.
+	 */
+	protected abstract Iterator<ScoreDoc> documentIterator();
+
+	/**
+	 * Creates an iterator over the results, holding its own reference to the index reader until it is exhausted
+	 * or the stream is closed. Iterating a closed stream yields no results.
+	 */
+	@Override
+	public Iterator<SearchResult> iterator() {
+		if (!acquireIteratorReference()) {
+			return Collections.<SearchResult>emptyIterator();
+		}
+		try {
+			return new ResultIterator(this, documentIterator(), xtraFields);
+		} catch (RuntimeException e) {
+			releaseIteratorReference();
+			throw e;
+		}
 	}
 
 	/**
 	 * Retrieves the document with the given docID from the lucene index.
+	 * Only the stored fields selected for this stream are loaded.
 	 * 
 	 * @param docID 
 	 * @return The document or null if it fails.
 	 */
 	public Document getDocument(int docID) {
 		try {
-			return searcher.doc(docID);
+			return searcher.doc(docID, fieldSelector);
 		} catch (IOException e) {
             logger.warn("Failed to retrieve Document {}", (Object)docID, e);
+		} catch (AlreadyClosedException e) {
+			logger.debug("Document {} requested after the stream was closed", docID);
 		}
 		return null;
 	}
 
+	/**
+	 * Makes this stream responsible for one reference to the searcher's index reader, which was
+	 * previously incremented by the caller. The reference is dropped when the stream is closed,
+	 * so that the reader can be closed after being replaced by a newer one.
+	 */
+	public synchronized void takeReaderReference() {
+		holdsReader = true;
+	}
+
+	/**
+	 * Increments the reference count of the index reader on behalf of a new iterator.
+	 * 
+	 * @return Whether the reference was acquired, which fails if the stream is closed.
+	 */
+	synchronized boolean acquireIteratorReference() {
+		if (closed) {
+			return false;
+		}
+		searcher.getIndexReader().incRef();
+		iteratorReferences++;
+		return true;
+	}
+
+	/**
+	 * Releases the reference held by an iterator. References of iterators still open when the stream
+	 * was closed were already released by {@link #close()}.
+	 */
+	synchronized void releaseIteratorReference() {
+		if (closed || iteratorReferences == 0) {
+			return;
+		}
+		iteratorReferences--;
+		decRef(1);
+	}
+
+	/**
+	 * @return Whether this stream was closed.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Releases the references to the index reader held by this stream and by all of its unfinished iterators.
+	 * Further retrieval of documents from this stream is not possible afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		int refs = iteratorReferences + (holdsReader ? 1 : 0);
+		iteratorReferences = 0;
+		holdsReader = false;
+		decRef(refs);
+	}
+
+	private void decRef(int refs) {
+		try {
+			for (int i = 0; i < refs; i++) {
+				searcher.getIndexReader().decRef();
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to release index reader", e);
+		}
+	}
+
+	/**
+	 * Backstop for consumers which neither exhaust nor close the stream.
+	 */
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			if (!isClosed()) {
+				logger.debug("Result stream was not closed, releasing its index reader");
+				close();
+			}
+		} finally {
+			super.finalize();
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.util.Locale;
+
+/**
+ * Naming of the columnar DIM fields and of the levels at which results can be grouped.
+ * 
+ * Each DIM field is indexed a second time under a prefixed name, as a single untokenized term
+ * per document. These columns are read through the field cache, so that grouping queries do not
+ * need to load stored documents.
+ */
+public final class DimColumns {
+
+	/**
+	 * Prefix of the field names holding the columnar DIM values.
+	 */
+	public static final String PREFIX = "dim_";
+
+	private DimColumns() {
+	}
+
+	/**
+	 * @param field The name of the DIM field.
+	 * @return The name of the field holding its columnar values.
+	 */
+	public static String column(String field) {
+		return PREFIX + field;
+	}
+
+	/**
+	 * Obtains the field identifying the groups of a DIM level.
+	 * 
+	 * @param level The DIM level name (PATIENT, STUDY or SERIES), case-insensitive.
+	 * @return The name of the key field, or null if results are not grouped at that level.
+	 */
+	public static String keyFieldOf(String level) {
+		switch (level.toUpperCase(Locale.ROOT)) {
+		case "PATIENT":
+			return "PatientID";
+		case "STUDY":
+			return "StudyInstanceUID";
+		case "SERIES":
+			return "SeriesInstanceUID";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Obtains the field holding the number of instances in each group of a DIM level.
+	 * 
+	 * @param level The DIM level name (PATIENT, STUDY or SERIES), case-insensitive.
+	 * @return The name of the count field, or null if results are not grouped at that level.
+	 */
+	public static String countFieldOf(String level) {
+		switch (level.toUpperCase(Locale.ROOT)) {
+		case "PATIENT":
+			return "NumberOfPatientRelatedInstances";
+		case "STUDY":
+			return "NumberOfStudyRelatedInstances";
+		case "SERIES":
+			return "NumberOfSeriesRelatedInstances";
+		default:
+			return null;
+		}
+	}
+}
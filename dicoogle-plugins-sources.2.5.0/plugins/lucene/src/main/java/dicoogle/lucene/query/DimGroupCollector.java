@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * A collector that groups the matching documents by the value of a DIM key field (e.g. StudyInstanceUID).
+ * 
+ * Key values and the requested column values are read from the columnar DIM fields through the field cache,
+ * so no stored documents are loaded for documents having them. Documents indexed before the columns existed
+ * fall back to reading the stored key field.
+ */
+public class DimGroupCollector extends Collector {
+
+	/**
+	 * A group of documents sharing the same key value.
+	 */
+	public static class Group {
+		private final int doc;
+		private final Map<String, String> values;
+		private int count;
+
+		Group(int doc, Map<String, String> values) {
+			this.doc = doc;
+			this.values = values;
+		}
+
+		/**
+		 * @return The id of the first document of the group.
+		 */
+		public int getDoc() {
+			return doc;
+		}
+
+		/**
+		 * @return The column values of the first document, or null if it has no columns.
+		 */
+		public Map<String, String> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return The number of documents in the group.
+		 */
+		public int getCount() {
+			return count;
+		}
+	}
+
+	private final String keyField;
+	private final Collection<String> columnFields;
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+
+	private IndexReader reader;
+	private int docBase;
+	private FieldCache.StringIndex keys;
+	private final Map<String, FieldCache.StringIndex> columns = new HashMap<>();
+
+	/**
+	 * Creates the collector.
+	 * 
+	 * @param keyField The DIM field identifying the groups.
+	 * @param columnFields The DIM fields whose column values should be kept for each group.
+	 */
+	public DimGroupCollector(String keyField, Collection<String> columnFields) {
+		this.keyField = keyField;
+		this.columnFields = columnFields;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) {
+	}
+
+	@Override
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+		this.reader = reader;
+		this.docBase = docBase;
+		this.keys = FieldCache.DEFAULT.getStringIndex(reader, DimColumns.column(keyField));
+		this.columns.clear();
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		String key = keys.lookup[keys.order[doc]];
+		boolean hasColumns = key != null;
+		if (!hasColumns) {
+			key = reader.document(doc, new MapFieldSelector(keyField)).get(keyField);
+			if (key == null) {
+				key = "";
+			}
+		}
+
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group(docBase + doc, hasColumns ? columnValues(doc) : null);
+			groups.put(key, group);
+		}
+		group.count++;
+	}
+
+	private Map<String, String> columnValues(int doc) throws IOException {
+		Map<String, String> values = new HashMap<>();
+		for (String field : columnFields) {
+			FieldCache.StringIndex column = columns.get(field);
+			if (column == null) {
+				column = FieldCache.DEFAULT.getStringIndex(reader, DimColumns.column(field));
+				columns.put(field, column);
+			}
+			String value = column.lookup[column.order[doc]];
+			if (value != null) {
+				values.put(field, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return The groups found, in the order of their first document.
+	 */
+	public Collection<Group> getGroups() {
+		return groups.values();
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/**
+ * Answers queries at the patient, study or series level, with one search result per group of instances.
+ * 
+ * Groups are formed with a {@link DimGroupCollector}, so only the first document of each group is loaded,
+ * and only for the requested fields which are not available as DIM columns. Each result also holds the
+ * number of instances in its group (e.g. NumberOfStudyRelatedInstances).
+ */
+public final class DimGroupQuery {
+
+	private DimGroupQuery() {
+	}
+
+	/**
+	 * Searches the index and groups the results.
+	 * 
+	 * @param searcher The index searcher which will be used to search the index.
+	 * @param query The query to perform.
+	 * @param level The DIM level name (PATIENT, STUDY or SERIES).
+	 * @param extraFields The extra-fields which should be returned, or null for all non-binary fields.
+	 * @param dimFields The names of the DIM fields, which are indexed as columns.
+	 * @return One search result per group, in index order.
+	 * @throws IOException If the index could not be read.
+	 */
+	public static List<SearchResult> search(IndexSearcher searcher, Query query, String level,
+			Map<String, Object> extraFields, Set<String> dimFields) throws IOException {
+		String keyField = DimColumns.keyFieldOf(level);
+		String countField = DimColumns.countFieldOf(level);
+
+		Set<String> columnFields = new HashSet<>();
+		Map<String, Object> storedFields = null;
+		if (extraFields != null) {
+			storedFields = new HashMap<>();
+			for (String field : extraFields.keySet()) {
+				if (dimFields.contains(field)) {
+					columnFields.add(field);
+				} else if (!field.equals(countField)) {
+					storedFields.put(field, extraFields.get(field));
+				}
+			}
+		}
+		// documents without columns must read every requested field from the stored document
+		ResultFieldSelector columnSelector = new ResultFieldSelector(storedFields == null ? null : storedFields.keySet(),
+				searcher.getIndexReader());
+		ResultFieldSelector storedSelector = new ResultFieldSelector(extraFields == null ? null : extraFields.keySet(),
+				searcher.getIndexReader());
+
+		DimGroupCollector collector = new DimGroupCollector(keyField, columnFields);
+		searcher.search(query, collector);
+
+		List<SearchResult> results = new ArrayList<>(collector.getGroups().size());
+		for (DimGroupCollector.Group group : collector.getGroups()) {
+			SearchResult result;
+			if (group.getValues() != null) {
+				Document doc = searcher.doc(group.getDoc(), columnSelector);
+				result = ResultIterator.createSearchResult(doc, storedFields);
+				result.getExtraData().putAll(group.getValues());
+			} else {
+				Document doc = searcher.doc(group.getDoc(), storedSelector);
+				result = ResultIterator.createSearchResult(doc, extraFields);
+			}
+			if (extraFields == null || extraFields.containsKey(countField)) {
+				result.put(countField, String.valueOf(group.getCount()));
+			}
+			results.add(result);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/**
+ * Retrieves single pages of results, resuming after the last hit of the previous page.
+ * 
+ * The cursor holds the document id and score of that hit, so only the documents of the requested page are
+ * loaded, however far into the results it is. Document ids are only stable while the index is not merged,
+ * so pages obtained across index changes may miss or repeat results.
+ */
+public class PagedSearch {
+
+	private PagedSearch() {
+	}
+
+	/**
+	 * One page of results, with the cursor of the following page.
+	 */
+	public static class Page {
+
+		private final List<SearchResult> results;
+		private final String nextCursor;
+
+		Page(List<SearchResult> results, String nextCursor) {
+			this.results = results;
+			this.nextCursor = nextCursor;
+		}
+
+		public List<SearchResult> getResults() {
+			return results;
+		}
+
+		/**
+		 * @return The cursor of the following page, or null if this is the last page.
+		 */
+		public String getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	/**
+	 * Retrieves one page of results.
+	 * 
+	 * @param searcher The index searcher.
+	 * @param query The query.
+	 * @param xtraFields The extra fields to be returned in the results, or null for all fields.
+	 * @param cursor The cursor of the previous page, or null for the first page.
+	 * @param limit The maximum number of results in the page, which must be positive.
+	 * @return The page of results.
+	 * @throws IOException If the search fails.
+	 * @throws IllegalArgumentException If the cursor is malformed.
+	 */
+	public static Page search(IndexSearcher searcher, Query query, HashMap<String, Object> xtraFields,
+			String cursor, int limit) throws IOException {
+		ScoreDoc after = decodeCursor(cursor);
+		if (searcher.maxDoc() == 0) {
+			return new Page(new ArrayList<SearchResult>(), null);
+		}
+		// one more hit than needed tells whether there is a following page
+		int n = Math.min(limit, searcher.maxDoc()) + 1;
+		TopDocs hits = (after == null)
+				? searcher.search(query, n)
+				: searcher.searchAfter(after, query, n);
+
+		ResultFieldSelector selector = new ResultFieldSelector(xtraFields == null ? null : xtraFields.keySet(),
+				searcher.getIndexReader());
+		int pageHits = Math.min(hits.scoreDocs.length, limit);
+		List<SearchResult> results = new ArrayList<>(pageHits);
+		for (int i = 0; i < pageHits; i++) {
+			Document doc = searcher.doc(hits.scoreDocs[i].doc, selector);
+			if (doc != null) {
+				results.add(ResultIterator.createSearchResult(doc, xtraFields));
+			}
+		}
+		String next = hits.scoreDocs.length > limit ? encodeCursor(hits.scoreDocs[limit - 1]) : null;
+		return new Page(results, next);
+	}
+
+	private static String encodeCursor(ScoreDoc doc) {
+		return Integer.toHexString(doc.doc) + ":" + Integer.toHexString(Float.floatToIntBits(doc.score));
+	}
+
+	private static ScoreDoc decodeCursor(String cursor) {
+		if (cursor == null) {
+			return null;
+		}
+		int sep = cursor.indexOf(':');
+		try {
+			if (sep < 0) {
+				throw new NumberFormatException();
+			}
+			int doc = Integer.parseInt(cursor.substring(0, sep), 16);
+			float score = Float.intBitsToFloat((int) Long.parseLong(cursor.substring(sep + 1), 16));
+			return new ScoreDoc(doc, score);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Malformed cursor " + cursor);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * A bounded LRU cache of parsed queries and of the first page of their results.
+ * 
+ * Parsed queries do not depend on the index, so they are kept until evicted. First pages hold document ids,
+ * which are only valid for the reader they were obtained from, so they are tagged with the generation of that
+ * reader and dropped as soon as a newer reader is in use.
+ * 
+ * While files are being indexed, a new near real-time reader is opened at most once every maxStaleness
+ * milliseconds, and every reopen drops all cached pages, since any new segment may hold matches for any query.
+ * Under continuous ingest the page cache therefore mostly helps queries repeated within that interval;
+ * raising query.maxStaleness trades the freshness of results for more page hits. Parsed queries are unaffected.
+ */
+public class QueryCache {
+
+	private final int capacity;
+	private final int maxPageHits;
+
+	private final Map<String, Query> queries;
+	private final Map<String, TopDocs> pages;
+	private long pageGeneration;
+
+	private long queryHits;
+	private long queryMisses;
+	private long pageHits;
+	private long pageMisses;
+
+	/**
+	 * Creates the cache.
+	 * 
+	 * @param capacity The maximum number of entries of each kind, 0 to disable caching.
+	 * @param maxPageHits The maximum number of documents of a page for it to be cached.
+	 */
+	public QueryCache(int capacity, int maxPageHits) {
+		this.capacity = capacity;
+		this.maxPageHits = maxPageHits;
+		this.queries = lruMap(capacity);
+		this.pages = lruMap(capacity);
+	}
+
+	private static <V> Map<String, V> lruMap(final int capacity) {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param queryString The query string.
+	 * @return The cached parsed query, or null if it is not cached.
+	 */
+	public synchronized Query getQuery(String queryString) {
+		Query query = queries.get(queryString);
+		if (query != null) {
+			queryHits++;
+		} else {
+			queryMisses++;
+		}
+		return query;
+	}
+
+	/**
+	 * @param queryString The query string.
+	 * @param query The parsed query.
+	 */
+	public synchronized void putQuery(String queryString, Query query) {
+		if (capacity > 0) {
+			queries.put(queryString, query);
+		}
+	}
+
+	/**
+	 * @param queryString The query string.
+	 * @param generation The generation of the reader the page is wanted for.
+	 * @return The cached first page of results, or null if it is not cached for that reader.
+	 */
+	public synchronized TopDocs getFirstPage(String queryString, long generation) {
+		TopDocs page = (generation == pageGeneration) ? pages.get(queryString) : null;
+		if (page != null) {
+			pageHits++;
+		} else {
+			pageMisses++;
+		}
+		return page;
+	}
+
+	/**
+	 * @param queryString The query string.
+	 * @param generation The generation of the reader the page was obtained from.
+	 * @param page The first page of results.
+	 */
+	public synchronized void putFirstPage(String queryString, long generation, TopDocs page) {
+		if (capacity == 0 || generation < pageGeneration || page.scoreDocs.length > maxPageHits) {
+			return;
+		}
+		invalidate(generation);
+		pages.put(queryString, page);
+	}
+
+	/**
+	 * Drops the pages obtained from readers older than the given generation.
+	 * 
+	 * @param generation The generation of the reader currently in use.
+	 */
+	public synchronized void invalidate(long generation) {
+		if (generation > pageGeneration) {
+			pages.clear();
+			pageGeneration = generation;
+		}
+	}
+
+	public synchronized long getQueryHits() {
+		return queryHits;
+	}
+
+	public synchronized long getQueryMisses() {
+		return queryMisses;
+	}
+
+	public synchronized long getPageHits() {
+		return pageHits;
+	}
+
+	public synchronized long getPageMisses() {
+		return pageMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryCache{queries: " + queries.size() + " (" + queryHits + " hits, " + queryMisses + " misses)"
+				+ ", pages: " + pages.size() + " (" + pageHits + " hits, " + pageMisses + " misses)}";
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Selects which stored fields are loaded for each search result.
+ * 
+ * When extra fields are requested, only those (and the document's uri) are loaded. Otherwise,
+ * all fields are loaded except those holding binary values (e.g. thumbnails), which are
+ * only returned when explicitly requested. Binary values are the only ones stored without being indexed,
+ * so those fields are read from the field infos of the searched index.
+ */
+public class ResultFieldSelector implements FieldSelector {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Set<String> requestedFields;
+
+	/**
+	 * Names of the fields holding binary values, only needed when no specific fields are requested.
+	 */
+	private final Set<String> binaryFields;
+
+	/**
+	 * Creates a field selector.
+	 * 
+	 * @param requestedFields The names of the fields to load, or null to load all non-binary fields.
+	 * @param reader The reader of the searched index.
+	 */
+	public ResultFieldSelector(Collection<String> requestedFields, IndexReader reader) {
+		if (requestedFields == null) {
+			this.requestedFields = null;
+			this.binaryFields = new HashSet<>(reader.getFieldNames(IndexReader.FieldOption.UNINDEXED));
+		} else {
+			this.requestedFields = new HashSet<>(requestedFields);
+			this.requestedFields.add("uri");
+			this.binaryFields = Collections.emptySet();
+		}
+	}
+
+	/**
+	 * @return whether only a specific set of fields was requested.
+	 */
+	public boolean isSelective() {
+		return requestedFields != null;
+	}
+
+	@Override
+	public FieldSelectorResult accept(String fieldName) {
+		if (requestedFields != null) {
+			return requestedFields.contains(fieldName) ? FieldSelectorResult.LOAD : FieldSelectorResult.NO_LOAD;
+		}
+		return binaryFields.contains(fieldName) ? FieldSelectorResult.NO_LOAD : FieldSelectorResult.LOAD;
+	}
+}
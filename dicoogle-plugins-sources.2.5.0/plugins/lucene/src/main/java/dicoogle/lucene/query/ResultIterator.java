@@ -28,6 +28,7 @@ import org.apache.lucene.document.AbstractField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +51,7 @@ public class ResultIterator implements Iterator<SearchResult> {
 	private Map<String, Object> extraFields;
 	private final Iterator<ScoreDoc> documentIterator;
 	private SearchResult bufferedResult;
+	private boolean holdsReference = true;
 	
 	/**
 	 * Creates the iterator with all the fields selected.
@@ -91,14 +93,25 @@ public class ResultIterator implements Iterator<SearchResult> {
 	 */
 	private void reloadBuffer(){
 		
-		while(bufferedResult == null && documentIterator.hasNext()){		
+		try {
+			while(bufferedResult == null && !resultStream.isClosed() && documentIterator.hasNext()){
 
-			ScoreDoc score = documentIterator.next();		
-			
-			Document doc = resultStream.getDocument(score.doc);
-			if(doc != null){				
-				bufferedResult = createSearchResult(doc);				
-			}			
+				ScoreDoc score = documentIterator.next();		
+				
+				Document doc = resultStream.getDocument(score.doc);
+				if(doc != null){				
+					bufferedResult = createSearchResult(doc, extraFields);				
+				}			
+			}
+		} catch (AlreadyClosedException e) {
+			// the stream was closed while searching for the next page
+			logger.debug("Result stream closed during iteration");
+		}
+
+		if(bufferedResult == null && holdsReference){
+			// no more results, this iterator no longer needs the index reader
+			holdsReference = false;
+			resultStream.releaseIteratorReference();
 		}
 		
 	}
@@ -144,9 +157,10 @@ public class ResultIterator implements Iterator<SearchResult> {
 	 * Converts a Lucene Document to a search result.
 	 * 
 	 * @param doc Document to be converted.
+	 * @param extraFields The extra-fields which should be returned, or null for all non-binary fields.
 	 * @return The assembled search result
 	 */
-	private SearchResult createSearchResult(Document doc){
+	static SearchResult createSearchResult(Document doc, Map<String, Object> extraFields){
 		
 		HashMap<String, Object> xtraFields = new HashMap<>();
 		
@@ -163,6 +177,10 @@ public class ResultIterator implements Iterator<SearchResult> {
 		}else{
 			
 			for(Fieldable f : doc.getFields()){
+				if(f.isBinary()){
+					// binary fields are only returned when explicitly requested
+					continue;
+				}
 				String value = getValue(f);
 				if(value != null)
 					xtraFields.put(f.name(), value);
@@ -23,9 +23,9 @@ import java.util.Iterator;
 
 
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
 
 import dicoogle.lucene.AllDocCollector;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
 
 /**
@@ -56,8 +56,8 @@ public class ResultStream extends AbstractResultStream{
 	}
 
 	@Override
-	public Iterator<SearchResult> iterator() {
-		return new ResultIterator(this, documentSource.getHits().iterator(), xtraFields);
+	protected Iterator<ScoreDoc> documentIterator() {
+		return documentSource.getHits().iterator();
 	}
 
 }
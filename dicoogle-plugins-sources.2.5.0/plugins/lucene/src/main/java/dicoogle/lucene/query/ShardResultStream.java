@@ -26,17 +26,18 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
 
 /**
  * Implementation of the ResultStream based on sharding.
  * 
  * Rather than having all the returned document ids in memory, this class uses a pagination strategy to minimize the amount of memory need for the search operation.
- * The page size is configurable.
+ * The page size is configurable. Pages start small, so that the first results are available quickly, and double in size
+ * up to a maximum as the stream is traversed. The first page is kept and reused by every iterator of the stream.
  * 
  * @author Tiago Marques Godinho, tmgodinho@ua.pt
  *
@@ -44,8 +45,16 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 public class ShardResultStream extends AbstractResultStream {
     private static final Logger logger = LoggerFactory.getLogger(ShardResultStream.class);
 	
+	/**
+	 * The default page size.
+	 */
+	public static final int DEFAULT_BULK_SIZE = 50000;
+	
 	private Query query;
-	private int bulkSize;
+	private int initialPageSize;
+	private int maxPageSize;
+	private volatile TopDocs firstPage;
+	private volatile int totalHits = -1;
 	
 	/**
 	 * Constructs the Stream with all the Extra-Fields returned and a page size of 50000.
@@ -54,7 +63,7 @@ public class ShardResultStream extends AbstractResultStream {
 	 * @param query The query string.
 	 */
 	public ShardResultStream(IndexSearcher searcher, Query query) {
-		this(searcher, query, null, 50000);
+		this(searcher, query, null, DEFAULT_BULK_SIZE);
 	}
 	
 	/**
@@ -65,9 +74,10 @@ public class ShardResultStream extends AbstractResultStream {
 	 * @param xtraFields The extraFields to be returned in the results.
 	 */
 	public ShardResultStream(IndexSearcher searcher, Query query, HashMap<String, Object> xtraFields) {
-		this(searcher, query, xtraFields, 50000);
+		this(searcher, query, xtraFields, DEFAULT_BULK_SIZE);
 	}
 	
+	
 	/**
 	 * Constructs the Stream with the specified parameters.
 	 * 
@@ -77,17 +87,79 @@ public class ShardResultStream extends AbstractResultStream {
 	 * @param bulkSize The page size of the stream.
 	 */
 	public ShardResultStream(IndexSearcher searcher, Query query, HashMap<String, Object> xtraFields, int bulkSize) {
+		this(searcher, query, xtraFields, bulkSize, bulkSize, null);
+	}
+	
+	/**
+	 * Constructs the Stream with growing page sizes.
+	 * 
+	 * @param searcher The underlying index searcher.
+	 * @param query The query string.
+	 * @param xtraFields The extraFields to be returned in the results.
+	 * @param initialPageSize The size of the first page of the stream.
+	 * @param maxPageSize The maximum page size of the stream.
+	 * @param firstPage The first page of results of the query, obtained from the same searcher, or null to search for it when needed.
+	 */
+	public ShardResultStream(IndexSearcher searcher, Query query, HashMap<String, Object> xtraFields,
+			int initialPageSize, int maxPageSize, TopDocs firstPage) {
 		super(searcher, xtraFields);
 		this.query = query;
-		this.bulkSize = bulkSize;
+		this.initialPageSize = initialPageSize;
+		this.maxPageSize = Math.max(initialPageSize, maxPageSize);
+		this.firstPage = firstPage;
 	}
-
-	/* (non-Javadoc)
-	 * @see java.lang.Iterable#iterator()
+	
+	/**
+	 * Provides the searcher for the next search of this stream. By default it is the searcher the
+	 * stream was created with; a searcher running on an executor that may be replaced while the
+	 * stream is open should be created anew for each search, over the same reader.
+	 * 
+	 * @return The searcher to use.
 	 */
+	protected IndexSearcher pageSearcher() {
+		return searcher;
+	}
+	
+	/**
+	 * Obtains the first page of results, searching for it only once.
+	 * 
+	 * @return The first page of results.
+	 * @throws IOException If the search fails.
+	 */
+	private synchronized TopDocs firstPage() throws IOException {
+		if (firstPage == null) {
+			firstPage = pageSearcher().search(query, initialPageSize);
+		}
+		return firstPage;
+	}
+	
+	/**
+	 * Obtains the total number of results of the stream. If no page of results was obtained yet,
+	 * the hits are only counted, without collecting them.
+	 * 
+	 * @return The total number of hits, or 0 if the search fails.
+	 */
+	public int getTotalHits() {
+		TopDocs page = firstPage;
+		if (page != null) {
+			return page.totalHits;
+		}
+		if (totalHits < 0) {
+			try {
+				TotalHitCountCollector collector = new TotalHitCountCollector();
+				pageSearcher().search(query, collector);
+				totalHits = collector.getTotalHits();
+			} catch (IOException e) {
+				logger.error("Failed to perform search", e);
+				return 0;
+			}
+		}
+		return totalHits;
+	}
+
 	@Override
-	public Iterator<SearchResult> iterator() {
-		return new ResultIterator(this, new ShardIterator(), xtraFields);
+	protected Iterator<ScoreDoc> documentIterator() {
+		return new ShardIterator();
 	}
 	
 	/**
@@ -107,6 +179,7 @@ public class ShardResultStream extends AbstractResultStream {
 		private int totalHits;
 		private int index;
 		private int bulkIndex;
+		private int pageSize;
 		
 		/**
 		 * Initializes the iterator.
@@ -114,6 +187,7 @@ public class ShardResultStream extends AbstractResultStream {
 		public ShardIterator() {
 			this.index = 0;
 			this.bulkIndex = 0;
+			this.pageSize = initialPageSize;
 			search();			
 		}
 
@@ -125,9 +199,10 @@ public class ShardResultStream extends AbstractResultStream {
 				TopDocs results;
 				
 				if(index == 0){
-					results = searcher.search(query, bulkSize);					
+					results = firstPage();
 				}else{
-					results = searcher.searchAfter(docs[docs.length-1], query, bulkSize);						
+					pageSize = Math.min(pageSize * 2, maxPageSize);
+					results = pageSearcher().searchAfter(docs[docs.length-1], query, pageSize);						
 				}
 								
 				this.docs = results.scoreDocs;
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dedup;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class DuplicateIndexTest extends TestCase {
+
+    private File file;
+    private DuplicateIndex dedup;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("dedup", ".bloom");
+        file.delete();
+        dedup = new DuplicateIndex(file, 1000);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        dedup.close();
+        file.delete();
+    }
+
+    public void testInstanceIsClaimedOnce() {
+        assertTrue(dedup.claimInstance("1.2.3", "file:/a.dcm"));
+        assertFalse(dedup.claimInstance("1.2.3", "file:/b.dcm"));
+        // stored values may keep their padding
+        assertFalse(dedup.claimInstance("1.2.3 ", "file:/c.dcm"));
+    }
+
+    public void testReleasedInstanceCanBeClaimedAgain() {
+        assertTrue(dedup.claimInstance("1.2.3", "file:/a.dcm"));
+        dedup.releaseInstance("1.2.3");
+        assertTrue(dedup.claimInstance("1.2.3", "file:/b.dcm"));
+    }
+
+    public void testUnindexedUriReleasesItsInstance() {
+        assertTrue(dedup.claimInstance("1.2.3", "file:/a.dcm"));
+        assertTrue(dedup.claimInstance("1.2.4", "file:/b.dcm"));
+        dedup.releaseUri("file:/a.dcm");
+        assertTrue(dedup.claimInstance("1.2.3", "file:/a.dcm"));
+        assertFalse(dedup.claimInstance("1.2.4", "file:/c.dcm"));
+        // nothing is held at this URI
+        dedup.releaseUri("file:/d.dcm");
+        assertFalse(dedup.claimInstance("1.2.3", "file:/e.dcm"));
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.dedup;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class MappedBloomFilterTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("bloom", ".bin");
+        // the filter creates the file itself
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testNoFalseNegatives() throws IOException {
+        MappedBloomFilter filter = MappedBloomFilter.open(file, 1000, 0.01);
+        try {
+            assertFalse(filter.isRestored());
+            for (int i = 0; i < 1000; i++) {
+                filter.put("1.2.3." + i);
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(filter.mightContain("1.2.3." + i));
+            }
+            // inserting a key again changes nothing
+            long count = filter.count();
+            assertFalse(filter.put("1.2.3.0"));
+            assertEquals(count, filter.count());
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testFalsePositiveRate() throws IOException {
+        MappedBloomFilter filter = MappedBloomFilter.open(file, 1000, 0.01);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                filter.put("1.2.3." + i);
+            }
+            int positives = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (filter.mightContain("4.5.6." + i)) {
+                    positives++;
+                }
+            }
+            // 1% expected, leave some room for chance
+            assertTrue("false positives: " + positives, positives < 300);
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testRestoredAfterClose() throws IOException {
+        MappedBloomFilter filter = MappedBloomFilter.open(file, 1000, 0.01);
+        filter.put("1.2.3");
+        filter.put("4.5.6");
+        filter.close();
+
+        filter = MappedBloomFilter.open(file, 1000, 0.01);
+        try {
+            assertTrue(filter.isRestored());
+            assertEquals(2, filter.count());
+            assertTrue(filter.mightContain("1.2.3"));
+            assertTrue(filter.mightContain("4.5.6"));
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testRebuiltAfterUncleanClose() throws IOException {
+        MappedBloomFilter filter = MappedBloomFilter.open(file, 1000, 0.01);
+        filter.put("1.2.3");
+        filter.close(false);
+
+        filter = MappedBloomFilter.open(file, 1000, 0.01);
+        try {
+            assertFalse(filter.isRestored());
+            assertEquals(0, filter.count());
+            assertFalse(filter.mightContain("1.2.3"));
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testRebuiltForDifferentCapacity() throws IOException {
+        MappedBloomFilter filter = MappedBloomFilter.open(file, 1000, 0.01);
+        filter.put("1.2.3");
+        filter.close();
+
+        filter = MappedBloomFilter.open(file, 100000, 0.01);
+        try {
+            assertFalse(filter.isRestored());
+            assertFalse(filter.mightContain("1.2.3"));
+        } finally {
+            filter.close();
+        }
+    }
+}
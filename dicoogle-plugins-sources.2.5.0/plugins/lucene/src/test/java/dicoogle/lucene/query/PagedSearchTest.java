@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/lucene.
+ *
+ * Dicoogle/lucene is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/lucene is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dicoogle.lucene.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class PagedSearchTest extends TestCase {
+
+    private static final int DOCS = 25;
+
+    private RAMDirectory directory;
+    private IndexReader reader;
+    private IndexSearcher searcher;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(Version.LUCENE_30, new WhitespaceAnalyzer(Version.LUCENE_30)));
+        for (int i = 0; i < DOCS; i++) {
+            Document doc = new Document();
+            doc.add(new Field("uri", "file:/" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("Modality", i % 2 == 0 ? "CT" : "MR", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            // a varying number of terms, so that the hits have different scores
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j <= i % 5; j++) {
+                text.append("ct ");
+            }
+            doc.add(new Field("text", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        reader = IndexReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        searcher.close();
+        reader.close();
+        directory.close();
+    }
+
+    /** Follows the cursors from the first page to the last one. */
+    private List<String> pageThrough(Query query, HashMap<String, Object> fields, int limit) throws IOException {
+        List<String> uris = new ArrayList<>();
+        String cursor = null;
+        do {
+            PagedSearch.Page page = PagedSearch.search(searcher, query, fields, cursor, limit);
+            assertTrue(page.getResults().size() <= limit);
+            if (page.getNextCursor() != null) {
+                assertEquals(limit, page.getResults().size());
+            }
+            for (SearchResult r : page.getResults()) {
+                uris.add(r.getURI().toString());
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return uris;
+    }
+
+    private List<String> searchAll(Query query) throws IOException {
+        List<String> uris = new ArrayList<>();
+        for (ScoreDoc hit : searcher.search(query, DOCS).scoreDocs) {
+            uris.add(searcher.doc(hit.doc).get("uri"));
+        }
+        return uris;
+    }
+
+    public void testPagesCoverAllResults() throws IOException {
+        Query query = new MatchAllDocsQuery();
+        assertEquals(searchAll(query), pageThrough(query, null, 10));
+    }
+
+    public void testPagesFollowTheScoreOrder() throws IOException {
+        Query query = new TermQuery(new Term("text", "ct"));
+        assertEquals(searchAll(query), pageThrough(query, null, 3));
+    }
+
+    public void testLastFullPageHasNoCursor() throws IOException {
+        PagedSearch.Page page = PagedSearch.search(searcher, new MatchAllDocsQuery(), null, null, DOCS);
+        assertEquals(DOCS, page.getResults().size());
+        assertNull(page.getNextCursor());
+    }
+
+    public void testRequestedFieldsOnly() throws IOException {
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("Modality", "Modality");
+        PagedSearch.Page page = PagedSearch.search(searcher, new TermQuery(new Term("Modality", "MR")), fields,
+                null, DOCS);
+        assertEquals(DOCS / 2, page.getResults().size());
+        for (SearchResult r : page.getResults()) {
+            assertEquals("MR", r.get("Modality"));
+            assertNull(r.get("text"));
+        }
+    }
+
+    public void testEmptyIndex() throws IOException {
+        RAMDirectory empty = new RAMDirectory();
+        new IndexWriter(empty, new IndexWriterConfig(Version.LUCENE_30, new WhitespaceAnalyzer(Version.LUCENE_30)))
+                .close();
+        IndexReader emptyReader = IndexReader.open(empty);
+        IndexSearcher emptySearcher = new IndexSearcher(emptyReader);
+        try {
+            PagedSearch.Page page = PagedSearch.search(emptySearcher, new MatchAllDocsQuery(), null, null, 10);
+            assertTrue(page.getResults().isEmpty());
+            assertNull(page.getNextCursor());
+        } finally {
+            emptySearcher.close();
+            emptyReader.close();
+        }
+    }
+
+    public void testMalformedCursor() throws IOException {
+        for (String cursor : new String[] { "", "12", "zz:1", "1:zz" }) {
+            try {
+                PagedSearch.search(searcher, new MatchAllDocsQuery(), null, cursor, 10);
+                fail("accepted the cursor " + cursor);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
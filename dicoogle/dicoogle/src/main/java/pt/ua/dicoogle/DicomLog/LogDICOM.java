@@ -19,19 +19,34 @@
 
 package pt.ua.dicoogle.DicomLog;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import javax.xml.transform.TransformerConfigurationException;
 
 /**
+ * Log of the DICOM services.
+ *
+ * Records are appended to disk by a {@link LogWriter}, in {@code dicoogle.log.dir};
+ * only the most recent ones ({@code dicoogle.log.tailSize}) are kept in memory,
+ * for the management UI.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class LogDICOM{
 
+    private static final Logger logger = LoggerFactory.getLogger(LogDICOM.class);
+
+    private static final File DIR = new File(System.getProperty("dicoogle.log.dir", "."));
+    private static final int TAIL_SIZE = Integer.parseInt(System.getProperty("dicoogle.log.tailSize", "1000"));
+
     private static LogDICOM instance = null ;
 
-    private ArrayList<LogLine> ll = new ArrayList<LogLine>(); 
+    private final Deque<LogLine> ll = new ArrayDeque<LogLine>();
+
+    private final LogWriter writer = new LogWriter(DIR);
 
     private LogDICOM()
     {
@@ -50,36 +65,99 @@ public class LogDICOM{
 
     public void addLine(LogLine l)
     {
-        this.getLl().add(l);
+        remember(l);
+        writer.append(l);
     }
 
-    public void clearLog(){
-        this.getLl().clear();
-        
+    /**
+     * Restores the in-memory tail from the log on disk, at start up.
+     * On the first start with this log, the history kept in the former XML log
+     * is moved into it.
+     */
+    public void load()
+    {
+        File xml = new File(DIR, LogXML.FILE_NAME);
+        if (xml.exists() && writer.isEmpty()) {
+            importXML(xml);
+        }
+        for (LogLine l : writer.readTail(TAIL_SIZE)) {
+            remember(l);
+        }
+    }
+
+    private void importXML(File xml)
+    {
         try {
-            LogXML log = new LogXML();
-            log.printXML();
-        } catch (TransformerConfigurationException ex) {
-            LoggerFactory.getLogger(LogDICOM.class.getName()).error(ex.getMessage(), ex);
+            if (new LogXML(xml).getXML() == null || !writer.sync()) {
+                logger.warn("Could not import the DICOM services log from {}, it is kept", xml);
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
         }
+        if (!xml.delete()) {
+            logger.warn("Could not delete {}, already imported", xml);
+        }
+    }
+
+    /**
+     * Writes a record from an older log, waiting for the writer if need be.
+     */
+    void importLine(LogLine l) throws InterruptedException
+    {
+        writer.put(l);
     }
 
     /**
-     * @return the ll
+     * Clears the in-memory tail. The records on disk are kept, but a new file is started.
+     */
+    public void clearLog(){
+        synchronized (ll) {
+            ll.clear();
+        }
+        writer.rotate();
+    }
+
+    /**
+     * Writes out the records not yet on disk, at shut down.
+     */
+    public void close()
+    {
+        writer.close();
+    }
+
+    /**
+     * @return a copy of the most recent records
      */
     public ArrayList<LogLine> getLl()
     {
-        return ll;
+        synchronized (ll) {
+            return new ArrayList<LogLine>(ll);
+        }
     }
 
     /**
-     * @param ll the ll to set
+     * @param ll the records to keep in memory
      */
     public void setLl(ArrayList<LogLine> ll)
     {
-        this.ll = ll;
+        synchronized (this.ll) {
+            this.ll.clear();
+        }
+        for (LogLine l : ll) {
+            remember(l);
+        }
     }
 
-
+    private void remember(LogLine l)
+    {
+        synchronized (ll) {
+            if (ll.size() >= TAIL_SIZE) {
+                ll.removeFirst();
+            }
+            ll.addLast(l);
+        }
+    }
 
 }
@@ -36,6 +36,9 @@ public class LogLine implements Serializable
 {
     static final long serialVersionUID = 1L;
 
+    /** format of the dates of the records written by the DICOM services */
+    static final String DATE_FORMAT = "yyyy/MM/dd HH:mm:ss";
+
     private String type;
     private String date;
     private String ae;
@@ -52,7 +55,7 @@ public class LogLine implements Serializable
     }
 
      public static String getDateTime() {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
         Date date = new Date();
         return dateFormat.format(date);
     }
@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.DicomLog;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only writer of the DICOM services log.
+ *
+ * Each {@link LogLine} is one JSON object per line. Records are queued and
+ * written by a background thread, so logging costs a queue insertion on the
+ * caller's side. The file is rotated once it reaches
+ * {@code dicoogle.log.maxSize} bytes or gets older than
+ * {@code dicoogle.log.rotateInterval} milliseconds, and only the
+ * {@code dicoogle.log.maxFiles} most recent rotated files are kept.
+ * {@link #close()} writes out whatever is still queued.
+ */
+public class LogWriter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogWriter.class);
+
+    private static final String BASE_NAME = "DICOM_Services_Log";
+    private static final String SUFFIX = ".log";
+    /** name of a rotated file: the time stamp of the rotation, and a sequence number if it was taken */
+    private static final Pattern ROTATED = Pattern.compile(
+            Pattern.quote(BASE_NAME) + "\\.(\\d{8}-\\d{6})(?:-(\\d+))?" + Pattern.quote(SUFFIX));
+
+    private static final long MAX_SIZE = Long.parseLong(System.getProperty("dicoogle.log.maxSize", String.valueOf(10L * 1024 * 1024)));
+    private static final long ROTATE_INTERVAL = Long.parseLong(System.getProperty("dicoogle.log.rotateInterval", String.valueOf(24L * 3600 * 1000)));
+    private static final int MAX_FILES = Integer.parseInt(System.getProperty("dicoogle.log.maxFiles", "10"));
+    private static final int QUEUE_SIZE = Integer.parseInt(System.getProperty("dicoogle.log.queueSize", "10000"));
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /** marks a request to rotate the file, in the queue of records */
+    private static final LogLine ROTATE = new LogLine("", "", "", "", "");
+    /** marks the end of the records, in the queue */
+    private static final LogLine CLOSE = new LogLine("", "", "", "", "");
+
+    private final File dir;
+    private final File current;
+    private final BlockingQueue<LogLine> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private OutputStream out = null;
+    /** bytes in the current file */
+    private long size = 0;
+    private long openedAt = 0;
+
+    public LogWriter(File dir) {
+        this.dir = dir;
+        this.current = new File(dir, BASE_NAME + SUFFIX);
+        this.thread = new Thread(this::run, "dicom-services-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a record to be written. Never blocks: if the writer fell too far
+     * behind, the record is dropped and counted.
+     */
+    public void append(LogLine line) {
+        if (closed || !queue.offer(line)) {
+            if (dropped.incrementAndGet() == 1) {
+                logger.warn("DICOM services log is falling behind, records are being dropped");
+            }
+        }
+    }
+
+    /** Starts a new file; the current one is kept among the rotated ones. */
+    public void rotate() {
+        if (!queue.offer(ROTATE)) {
+            logger.warn("Could not request the rotation of the DICOM services log");
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return whether there are no records on disk, current or rotated */
+    public boolean isEmpty() {
+        return !current.exists() && rotatedFiles().length == 0;
+    }
+
+    /**
+     * Queues a record, waiting for room rather than dropping it. Meant for
+     * importing records in bulk, not for the DICOM services.
+     */
+    void put(LogLine line) throws InterruptedException {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.put(line);
+    }
+
+    /**
+     * Waits until the records queued so far are written.
+     *
+     * @return false if they were not written within a few seconds
+     */
+    boolean sync() throws InterruptedException {
+        Barrier barrier = new Barrier();
+        return queue.offer(barrier, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)
+                && barrier.passed.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the records queued so far and closes the file. Records appended
+     * afterwards are dropped. Waits at most a few seconds for the writer.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!queue.offer(CLOSE, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("Could not close the DICOM services log: the writer is not keeping up");
+                return;
+            }
+            thread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("DICOM services log was not closed in time, some records may be lost");
+        }
+    }
+
+    /**
+     * Reads the last records of the current file.
+     *
+     * @param n maximum number of records to return
+     */
+    public List<LogLine> readTail(int n) {
+        Deque<LogLine> tail = new ArrayDeque<>(Math.min(n, 1024));
+        if (!current.exists() || n <= 0) {
+            return new ArrayList<>(tail);
+        }
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(current), StandardCharsets.UTF_8))) {
+            String s;
+            while ((s = r.readLine()) != null) {
+                LogLine line = parse(s);
+                if (line == null) {
+                    continue;
+                }
+                if (tail.size() == n) {
+                    tail.removeFirst();
+                }
+                tail.addLast(line);
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not read {}: {}", current, ex.getMessage());
+        }
+        return new ArrayList<>(tail);
+    }
+
+    static String format(LogLine l) {
+        JSONObject o = new JSONObject();
+        o.put("type", l.getType());
+        o.put("date", l.getDate());
+        o.put("ae", l.getAe());
+        o.put("add", l.getAdd());
+        o.put("params", l.getParams());
+        return o.toString();
+    }
+
+    static LogLine parse(String s) {
+        if (s.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            JSONObject o = JSONObject.fromObject(s);
+            return new LogLine(o.optString("type"), o.optString("date"), o.optString("ae"),
+                    o.optString("add"), o.optString("params"));
+        } catch (RuntimeException ex) {
+            // a torn last line after a crash
+            return null;
+        }
+    }
+
+    private void run() {
+        List<LogLine> batch = new ArrayList<>();
+        while (true) {
+            try {
+                LogLine first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                if (!write(batch)) {
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException ex) {
+                logger.error("Could not write the DICOM services log", ex);
+                closeQuietly();
+                if (batch.contains(CLOSE)) {
+                    return;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @return false once the records end, the file being closed
+     */
+    private boolean write(List<LogLine> batch) throws IOException {
+        for (LogLine l : batch) {
+            if (l == CLOSE) {
+                closeQuietly();
+                return false;
+            }
+            if (l == ROTATE) {
+                roll();
+                continue;
+            }
+            if (l instanceof Barrier) {
+                if (out != null) {
+                    out.flush();
+                }
+                ((Barrier) l).passed.countDown();
+                continue;
+            }
+            if (out == null) {
+                open();
+            } else if (size >= MAX_SIZE || System.currentTimeMillis() - openedAt >= ROTATE_INTERVAL) {
+                roll();
+                open();
+            }
+            byte[] b = (format(l) + '\n').getBytes(StandardCharsets.UTF_8);
+            out.write(b);
+            size += b.length;
+        }
+        if (out != null) {
+            out.flush();
+        }
+        return true;
+    }
+
+    private void open() throws IOException {
+        size = current.length();
+        openedAt = size > 0 ? firstRecordTime() : System.currentTimeMillis();
+        out = new BufferedOutputStream(new FileOutputStream(current, true));
+    }
+
+    private void roll() throws IOException {
+        closeQuietly();
+        if (!current.exists() || current.length() == 0) {
+            return;
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File rotated = new File(dir, BASE_NAME + "." + stamp + SUFFIX);
+        for (int i = 1; rotated.exists(); i++) {
+            rotated = new File(dir, BASE_NAME + "." + stamp + "-" + i + SUFFIX);
+        }
+        if (!current.renameTo(rotated)) {
+            throw new IOException("Could not rotate " + current + " to " + rotated);
+        }
+        prune();
+    }
+
+    /**
+     * When the current file was started, going by the date of its first record.
+     * Its modification time would only tell when it was last written to.
+     */
+    private long firstRecordTime() {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(current), StandardCharsets.UTF_8))) {
+            String s;
+            while ((s = r.readLine()) != null) {
+                LogLine line = parse(s);
+                if (line != null) {
+                    return new SimpleDateFormat(LogLine.DATE_FORMAT).parse(line.getDate()).getTime();
+                }
+            }
+        } catch (IOException | ParseException ex) {
+            logger.debug("Could not tell when {} was started: {}", current, ex.getMessage());
+        }
+        return System.currentTimeMillis();
+    }
+
+    private File[] rotatedFiles() {
+        File[] rotated = dir.listFiles((d, name) -> ROTATED.matcher(name).matches());
+        return rotated != null ? rotated : new File[0];
+    }
+
+    /** Orders the names of rotated files from the oldest to the newest. */
+    static int compareRotated(String a, String b) {
+        Matcher ma = ROTATED.matcher(a);
+        Matcher mb = ROTATED.matcher(b);
+        if (!ma.matches() || !mb.matches()) {
+            return a.compareTo(b);
+        }
+        int c = ma.group(1).compareTo(mb.group(1));
+        if (c != 0) {
+            return c;
+        }
+        // the first file of a second has no sequence number
+        return Long.compare(ma.group(2) != null ? Long.parseLong(ma.group(2)) : 0,
+                mb.group(2) != null ? Long.parseLong(mb.group(2)) : 0);
+    }
+
+    /** Deletes the oldest rotated files beyond the configured number. */
+    private void prune() {
+        File[] rotated = rotatedFiles();
+        if (rotated.length <= MAX_FILES) {
+            return;
+        }
+        Arrays.sort(rotated, (a, b) -> compareRotated(a.getName(), b.getName()));
+        for (int i = 0; i < rotated.length - MAX_FILES; i++) {
+            if (!rotated[i].delete()) {
+                logger.warn("Could not delete old log {}", rotated[i]);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                logger.debug("Could not close {}: {}", current, ex.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /** marks a point in the queue of records, passed once the records before it are written */
+    private static final class Barrier extends LogLine {
+        final CountDownLatch passed = new CountDownLatch(1);
+
+        Barrier() {
+            super("", "", "", "", "");
+        }
+    }
+}
@@ -23,15 +23,6 @@
 package pt.ua.dicoogle.DicomLog;
 
 import java.io.*;
-// SAX classes.
-
-//JAXP
-import javax.xml.transform.*;
-import javax.xml.transform.stream.*;
-import javax.xml.transform.sax.*;
-
-
-import java.util.ArrayList;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -41,14 +32,17 @@ import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
 /**
+ * Reader of the former XML log of the DICOM services, whose records are
+ * imported into the {@link LogDICOM} once.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class LogXML extends DefaultHandler
 {
 
-    //private final String filename = Platform.homePath() + "DICOM_Services_Log.xml";
-    private final String filename = "./DICOM_Services_Log.xml";
+    static final String FILE_NAME = "DICOM_Services_Log.xml";
+
+    private final File file;
 
     private LogDICOM logs = null;
     private boolean logOn = false;
@@ -58,8 +52,9 @@ public class LogXML extends DefaultHandler
     private String add = "";
     private String params = "";
 
-    public LogXML()
+    public LogXML(File file)
     {
+        this.file = file;
         logs = LogDICOM.getInstance();
 
     }
@@ -78,11 +73,12 @@ public class LogXML extends DefaultHandler
             this.ae = this.resolveAttrib("ae", attr, localName);
             this.date = this.resolveAttrib("date", attr, localName);
             this.add = this.resolveAttrib("add", attr, localName);
+            this.params = this.resolveAttrib("params", attr, "");
         }
     }
 
     @Override
-    public void endElement(String uri, String localName, String qName)
+    public void endElement(String uri, String localName, String qName) throws SAXException
     {
 
         if (localName.equals("log"))
@@ -90,7 +86,14 @@ public class LogXML extends DefaultHandler
             this.logOn = false;
         } else if (!localName.equals(""))
         {
-            logs.addLine(new LogLine(type, date, ae, add, params));
+            try
+            {
+                logs.importLine(new LogLine(type, date, ae, add, params));
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new SAXException("Interrupted while importing " + file);
+            }
         }
     }
 
@@ -100,100 +103,26 @@ public class LogXML extends DefaultHandler
         return (tmp != null) ? (tmp) : (defaultValue);
     }
 
+    /**
+     * Hands each record of the XML log to the DICOM services log.
+     *
+     * @return the log, or null if the file could not be read
+     */
     public LogDICOM getXML()
     {
-        try
+        if (!file.exists())
         {
-            File file = new File(filename);
-            if (!file.exists())
-            {
-
-                return logs;
-            }
-
-            InputSource src = new InputSource(new FileInputStream(file));
-            XMLReader r = null;
-            try
-            {
-                r = XMLReaderFactory.createXMLReader();
-            } catch (SAXException ex)
-            {
-            }
-            r.setContentHandler(this);
-            r.parse(src);
             return logs;
-        } catch (IOException ex)
-        {
-        } catch (SAXException ex)
-        {
         }
-        return null;
-    }
-
-    public void printXML() throws TransformerConfigurationException
-    {
-
-
-        FileOutputStream out = null;
-
-        try
+        try (InputStream in = new FileInputStream(file))
         {
-            out = new FileOutputStream(filename);
-            PrintWriter pw = new PrintWriter(out);
-            StreamResult streamResult = new StreamResult(pw);
-            SAXTransformerFactory tf = (SAXTransformerFactory) TransformerFactory.newInstance();
-            //      SAX2.0 ContentHandler.
-            TransformerHandler hd = tf.newTransformerHandler();
-            Transformer serializer = hd.getTransformer();
-            serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            serializer.setOutputProperty(OutputKeys.METHOD, "xml");
-            serializer.setOutputProperty(OutputKeys.INDENT, "yes");
-            serializer.setOutputProperty(OutputKeys.STANDALONE, "yes");
-            hd.setResult(streamResult);
-            hd.startDocument();
-
-            //Get a processing instruction
-            //hd.processingInstruction("xml-stylesheet", "type=\"text/xsl\" href=\"mystyle.xsl\"");
-            AttributesImpl atts = new AttributesImpl();
-
-
-            //root element
-            hd.startElement("", "", "log", atts);
-
-            ArrayList<LogLine> list = logs.getLl();
-            atts.clear();
-            for (LogLine l : list)
-            {
-                atts.addAttribute("", "", "date", "", l.getDate());
-                atts.addAttribute("", "", "ae", "", l.getAe());
-                atts.addAttribute("", "", "add", "", l.getAdd());
-                atts.addAttribute("","","params","",l.getParams());
-
-                hd.startElement("", "", l.getType(), atts);
-                atts.clear();
-
-                hd.endElement("", "", l.getType());
-
-            }
-            hd.endElement("", "", "log");
-
-            hd.endDocument();
-
-        } catch (TransformerConfigurationException ex)
-        {
-        } catch (SAXException ex)
-        {
-        } catch (FileNotFoundException ex)
-        {
-        } finally
+            XMLReader r = XMLReaderFactory.createXMLReader();
+            r.setContentHandler(this);
+            r.parse(new InputSource(in));
+            return logs;
+        } catch (IOException | SAXException ex)
         {
-            try
-            {
-                out.close();
-            } catch (IOException ex)
-            {
-            }
+            return null;
         }
-
     }
 }
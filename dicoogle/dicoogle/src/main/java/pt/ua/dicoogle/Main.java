@@ -23,7 +23,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import pt.ua.dicoogle.DicomLog.LogDICOM;
-import pt.ua.dicoogle.DicomLog.LogXML;
 import pt.ua.dicoogle.core.AsyncIndex;
 import pt.ua.dicoogle.core.TagsXML;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
@@ -144,7 +143,7 @@ public class Main
             TagsStruct _tags = new TagsXML().getXML();
 
             //load DICOM Services Log
-            LogDICOM ll = new LogXML().getXML();
+            LogDICOM.getInstance().load();
 
         } catch (SAXException | IOException ex) {
             logger.error(ex.getMessage(), ex);
@@ -184,6 +183,16 @@ public class Main
 
         PluginController.getInstance();
 
+        // let plugins release their resources (e.g. commit pending index changes) on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                PluginController.getInstance().shutdown();
+            } catch (IOException ex) {
+                logger.warn("Failed to shut down plugins", ex);
+            }
+            LogDICOM.getInstance().close();
+        }, "plugin-shutdown"));
+
         // Start the initial Services of Dicoogle
         pt.ua.dicoogle.server.ControlServices.getInstance();
 
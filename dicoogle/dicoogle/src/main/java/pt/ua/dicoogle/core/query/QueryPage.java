@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.utils.QueryParseException;
+
+/**
+ * One page of the results of a query, along with an opaque cursor for fetching the following page.
+ *
+ * @see pt.ua.dicoogle.plugins.PluginController#queryPage
+ */
+public class QueryPage {
+
+    private final List<SearchResult> results;
+    private final String nextCursor;
+
+    /**
+     * @param results the results in this page
+     * @param nextCursor the cursor of the following page, or null if there are no more results
+     */
+    public QueryPage(List<SearchResult> results, String nextCursor) {
+        this.results = Collections.unmodifiableList(results);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Builds a page out of a plain result iterable, for query providers which cannot seek into their results.
+     * The cursor is the number of results to skip, which are still retrieved and discarded.
+     *
+     * @param results the full results of the query
+     * @param cursor a cursor previously obtained from a page built by this method, or null for the first page
+     * @param limit the maximum number of results in the page
+     * @return the requested page of results
+     * @throws QueryParseException if the cursor is malformed
+     */
+    public static QueryPage fromIterable(Iterable<SearchResult> results, String cursor, int limit) {
+        long offset = 0;
+        if (cursor != null) {
+            try {
+                offset = Long.parseLong(cursor);
+            } catch (NumberFormatException ex) {
+                throw new QueryParseException("Malformed cursor " + cursor);
+            }
+        }
+        Iterator<SearchResult> it = results.iterator();
+        for (long i = 0; i < offset && it.hasNext(); i++) {
+            it.next();
+        }
+        List<SearchResult> page = new ArrayList<>(Math.min(limit, 1024));
+        while (page.size() < limit && it.hasNext()) {
+            page.add(it.next());
+        }
+        String next = it.hasNext() ? Long.toString(offset + page.size()) : null;
+        return new QueryPage(page, next);
+    }
+
+    /**
+     * @return the results in this page
+     */
+    public List<SearchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the cursor of the following page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return whether there are no more results after this page
+     */
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+}
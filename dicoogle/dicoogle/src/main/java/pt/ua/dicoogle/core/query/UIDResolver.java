@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.JointQueryTask;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/**
+ * Resolves SOP Instance UIDs to the URIs of their files, remembering the most recently used ones.
+ *
+ * An instance that is not known yet is searched for in the query providers. Its series is then
+ * searched for in the background, in a single query, since the other instances of the series are
+ * likely to be asked for next. Search results seen elsewhere can be remembered as well. Entries
+ * are forgotten when their files are unindexed or removed.
+ *
+ * Only resolutions across all the enabled query providers are remembered: an instance found by
+ * one provider is not an answer for a request restricted to others, so those always query.
+ */
+public class UIDResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(UIDResolver.class);
+
+    private static final int SIZE = Integer.parseInt(System.getProperty("dicoogle.resolver.size", "100000"));
+    /** number of series remembered as already searched for */
+    private static final int SERIES_SIZE = 1000;
+
+    private static UIDResolver instance = null;
+
+    /** location of each instance, with its series, in order of access */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= SIZE) {
+                return false;
+            }
+            byUri.remove(eldest.getValue().uri.toString(), eldest.getKey());
+            return true;
+        }
+    };
+    /** SOP Instance UID of each location in {@link #entries}, to forget them by location */
+    private final TreeMap<String, String> byUri = new TreeMap<>();
+    private final Set<String> seriesSearched = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SERIES_SIZE;
+        }
+    });
+
+    /** searches for whole series, one at a time */
+    private final ExecutorService seriesSearches = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), r -> {
+                Thread t = new Thread(r, "dicoogle-uid-resolver");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static synchronized UIDResolver getInstance() {
+        if (instance == null) {
+            instance = new UIDResolver();
+        }
+        return instance;
+    }
+
+    private UIDResolver() {
+    }
+
+    private static final class Entry {
+        final URI uri;
+        final String seriesInstanceUID;
+
+        Entry(URI uri, String seriesInstanceUID) {
+            this.uri = uri;
+            this.seriesInstanceUID = seriesInstanceUID;
+        }
+    }
+
+    /**
+     * Resolves an instance, issuing all enabled query providers if needed.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @return the URI of the instance's file, or null if none was found
+     */
+    public URI resolve(String sopInstanceUID) {
+        return resolve(sopInstanceUID, null);
+    }
+
+    /**
+     * Resolves an instance.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @param providers the query providers to issue (if null, all enabled providers); when given,
+     *        the instance is neither looked up in, nor added to, the remembered ones
+     * @return the URI of the instance's file, or null if none was found
+     */
+    public URI resolve(String sopInstanceUID, List<String> providers) {
+        if (sopInstanceUID == null) {
+            return null;
+        }
+        if (providers != null) {
+            for (SearchResult r : search(providers, "SOPInstanceUID:" + sopInstanceUID)) {
+                if (r.getURI() != null) {
+                    return r.getURI();
+                }
+            }
+            return null;
+        }
+        URI uri = get(sopInstanceUID);
+        if (uri != null) {
+            hits.incrementAndGet();
+            return uri;
+        }
+        misses.incrementAndGet();
+
+        String seriesInstanceUID = null;
+        for (SearchResult r : search(PluginController.getInstance().getQueryProvidersName(true), "SOPInstanceUID:" + sopInstanceUID)) {
+            if (uri == null) {
+                uri = r.getURI();
+                seriesInstanceUID = seriesOf(r);
+            }
+        }
+        if (uri == null) {
+            return null;
+        }
+        put(sopInstanceUID, uri, seriesInstanceUID);
+        if (seriesInstanceUID != null) {
+            resolveSeries(seriesInstanceUID, false);
+        }
+        return uri;
+    }
+
+    /**
+     * Resolves all the instances of a series, in one query to all enabled query providers.
+     *
+     * @param seriesInstanceUID the Series Instance UID
+     * @param wait whether to wait for the query, rather than leaving it running in the background
+     */
+    public void resolveSeries(final String seriesInstanceUID, boolean wait) {
+        synchronized (seriesSearched) {
+            if (!seriesSearched.add(seriesInstanceUID)) {
+                return;
+            }
+        }
+        Runnable search = () -> {
+            List<String> sources = PluginController.getInstance().getQueryProvidersName(true);
+            int n = 0;
+            for (SearchResult r : search(sources, "SeriesInstanceUID:" + seriesInstanceUID)) {
+                if (remember(r)) {
+                    n++;
+                }
+            }
+            logger.debug("Resolved {} instances of series {}", n, seriesInstanceUID);
+        };
+        if (wait) {
+            search.run();
+        } else {
+            seriesSearches.execute(search);
+        }
+    }
+
+    /**
+     * Remembers the location of a search result, if it has a SOP Instance UID.
+     *
+     * @return whether the result was remembered
+     */
+    public boolean remember(SearchResult result) {
+        Object uid = result.get("SOPInstanceUID");
+        if (uid == null || result.getURI() == null) {
+            return false;
+        }
+        String sopInstanceUID = uid.toString().trim();
+        if (sopInstanceUID.isEmpty()) {
+            return false;
+        }
+        put(sopInstanceUID, result.getURI(), seriesOf(result));
+        return true;
+    }
+
+    /**
+     * Forgets the instances whose files are at, or under, the given location.
+     */
+    public void invalidate(URI location) {
+        String prefix = location.toString();
+        String dir = prefix.endsWith("/") ? prefix : prefix + "/";
+        List<String> series = new ArrayList<>();
+        synchronized (entries) {
+            List<String> uids = new ArrayList<>(byUri.subMap(dir, dir + Character.MAX_VALUE).values());
+            String uid = byUri.get(prefix);
+            if (uid != null) {
+                uids.add(uid);
+            }
+            for (String sopInstanceUID : uids) {
+                Entry e = remove(sopInstanceUID);
+                if (e != null && e.seriesInstanceUID != null) {
+                    series.add(e.seriesInstanceUID);
+                }
+            }
+        }
+        synchronized (seriesSearched) {
+            // the series may come back later with other files
+            seriesSearched.removeAll(series);
+        }
+    }
+
+    private static String seriesOf(SearchResult result) {
+        Object series = result.get("SeriesInstanceUID");
+        String s = series == null ? null : series.toString().trim();
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    private URI get(String sopInstanceUID) {
+        synchronized (entries) {
+            Entry e = entries.get(sopInstanceUID);
+            return e == null ? null : e.uri;
+        }
+    }
+
+    private void put(String sopInstanceUID, URI uri, String seriesInstanceUID) {
+        synchronized (entries) {
+            remove(sopInstanceUID);
+            entries.put(sopInstanceUID, new Entry(uri, seriesInstanceUID));
+            byUri.put(uri.toString(), sopInstanceUID);
+        }
+    }
+
+    /** Holds the lock on the entries. */
+    private Entry remove(String sopInstanceUID) {
+        Entry e = entries.remove(sopInstanceUID);
+        if (e != null) {
+            byUri.remove(e.uri.toString(), sopInstanceUID);
+        }
+        return e;
+    }
+
+    private static Iterable<SearchResult> search(List<String> providers, String query) {
+        HashMap<String, String> extraFields = new HashMap<>();
+        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
+        extraFields.put("SeriesInstanceUID", "SeriesInstanceUID");
+        JointQueryTask holder = new JointQueryTask() {
+            @Override
+            public void onCompletion() {
+            }
+
+            @Override
+            public void onReceive(Task<Iterable<SearchResult>> e) {
+            }
+        };
+        try {
+            return PluginController.getInstance().query(holder, providers, query, extraFields).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.warn("Failed to resolve {}", query, ex);
+            return Collections.emptyList();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -23,6 +23,8 @@ import org.apache.commons.io.FileUtils;
 import org.restlet.resource.ServerResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.query.QueryPage;
+import pt.ua.dicoogle.core.query.UIDResolver;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.webui.WebUIPlugin;
 import pt.ua.dicoogle.plugins.webui.WebUIPluginManager;
@@ -36,13 +38,16 @@ import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.sdk.utils.QueryParseException;
 import pt.ua.dicoogle.server.ControlServices;
 import pt.ua.dicoogle.server.PluginRestletApplication;
 import pt.ua.dicoogle.server.web.DicoogleWeb;
+import pt.ua.dicoogle.server.web.utils.ThumbnailStore;
 import pt.ua.dicoogle.taskManager.RunningIndexTasks;
 import pt.ua.dicoogle.taskManager.TaskManager;
 
 import javax.swing.*;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
@@ -50,6 +55,8 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.ZipFile;
 
 /**
@@ -69,6 +76,13 @@ import java.util.zip.ZipFile;
 public class PluginController{
 
     private static final Logger logger = LoggerFactory.getLogger(PluginController.class);
+
+    /** keys of the paging request passed to query plugins, see {@link QueryInterface#query} */
+    private static final String PAGING_CURSOR = "cursor";
+    private static final String PAGING_LIMIT = "limit";
+    private static final String PAGING_NEXT_CURSOR = "nextCursor";
+    private static final String PAGING_COUNT = "count";
+    private static final String PAGING_TOTAL_HITS = "totalHits";
     private static PluginController instance;
 
     public synchronized static PluginController getInstance() {
@@ -601,6 +615,133 @@ public class PluginController{
     }
     
 
+    /**
+     * Retrieves one page of the results of a query to the given provider, on the calling thread.
+     *
+     * The provider is sent a paging request, as described in {@link QueryInterface#query}. Providers which
+     * do not answer it have their results traversed from the start up to the end of the page, with the number
+     * of results to skip as the cursor, so each page costs as much as all the pages before it.
+     *
+     * @param querySource the name of the query provider
+     * @param query the query string
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the maximum number of results in the page
+     * @param parameters the query parameters, up to the extra fields and the DIM level
+     * @return the page of results, or an empty last page if the provider is not available
+     */
+    public QueryPage queryPage(String querySource, String query, String cursor, int limit, Object ... parameters) {
+        QueryInterface queryEngine = getQueryProviderByName(querySource, true);
+        if (queryEngine == null) {
+            return new QueryPage(Collections.<SearchResult>emptyList(), null);
+        }
+        Map<String, Object> paging = new HashMap<>();
+        paging.put(PAGING_CURSOR, cursor);
+        paging.put(PAGING_LIMIT, limit);
+        Iterable<SearchResult> results;
+        try {
+            results = queryEngine.query(query, withPaging(parameters, paging));
+        } catch (IllegalArgumentException ex) {
+            // how paging plugins report a malformed query or cursor
+            throw new QueryParseException(ex.getMessage(), ex);
+        }
+        try {
+            if (paging.containsKey(PAGING_NEXT_CURSOR)) {
+                List<SearchResult> page = new ArrayList<>();
+                for (SearchResult r : results) {
+                    page.add(r);
+                }
+                return new QueryPage(page, (String) paging.get(PAGING_NEXT_CURSOR));
+            }
+            return QueryPage.fromIterable(results, cursor, limit);
+        } finally {
+            closeResults(results);
+        }
+    }
+
+    /**
+     * Counts the results of a query to the given providers, in the background. Each provider is sent a count
+     * request, as described in {@link QueryInterface#query}. Providers which do not answer it are traversed
+     * when an exact count is requested.
+     *
+     * @param querySources the names of the query providers
+     * @param query the query string
+     * @param exact whether the count must be exact, rather than an estimate
+     * @param parameters the query parameters
+     * @return a task for the total number of results, which is negative if some provider could not count them
+     */
+    public Task<Long> count(final List<String> querySources, final String query, final boolean exact,
+                            final Object ... parameters) {
+        Task<Long> t = new Task<>(UUID.randomUUID().toString(), "count",
+            new Callable<Long>() {
+            @Override public Long call() throws Exception {
+                long total = 0;
+                for (String querySource : querySources) {
+                    long count = countProvider(querySource, query, exact, parameters);
+                    if (count < 0) {
+                        return -1L;
+                    }
+                    total += count;
+                }
+                return total;
+            }
+        });
+        taskManager.dispatch(t);
+        return t;
+    }
+
+    private long countProvider(String querySource, String query, boolean exact, Object ... parameters) {
+        QueryInterface queryEngine = getQueryProviderByName(querySource, true);
+        if (queryEngine == null) {
+            return 0;
+        }
+        try {
+            Map<String, Object> paging = new HashMap<>();
+            paging.put(PAGING_COUNT, exact);
+            Iterable<SearchResult> results = queryEngine.query(query, withPaging(parameters, paging));
+            try {
+                Object total = paging.get(PAGING_TOTAL_HITS);
+                if (total instanceof Number) {
+                    return ((Number) total).longValue();
+                }
+                if (!exact) {
+                    return -1;
+                }
+                long count = 0;
+                for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                return count;
+            } finally {
+                closeResults(results);
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Query plugin {} failed to count results", querySource, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * @return the query parameters with the paging request as the third one, after the extra fields and the DIM level
+     */
+    private static Object[] withPaging(Object[] parameters, Map<String, Object> paging) {
+        Object[] withPaging = Arrays.copyOf(parameters, Math.max(parameters.length, 3));
+        withPaging[2] = paging;
+        return withPaging;
+    }
+
+    /**
+     * Releases query results which hold resources, such as index readers, when they are no longer needed.
+     */
+    private static void closeResults(Iterable<SearchResult> results) {
+        if (results instanceof Closeable) {
+            try {
+                ((Closeable) results).close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close query results", ex);
+            }
+        }
+    }
+
     private Task<Iterable<SearchResult>> getTaskForQuery(final String querySource, final String query,
                                                          final Object ... parameters){
 
@@ -735,6 +876,58 @@ public class PluginController{
         return rettasks;    	
     }
 
+    /**
+     * Issues the indexing of several files as a single batch. Each enabled indexer receives one
+     * task covering all the files, so that it can commit the whole batch at once.
+     *
+     * @param paths the URIs of the files to index
+     * @return the indexing tasks, one per indexer
+     */
+    public List<Task<Report>> index(final Collection<URI> paths) {
+        logger.info("Starting batch indexing procedure for {} files", paths.size());
+        if (paths.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // each indexer iterates over the batch independently
+        final Iterable<StorageInputStream> files = () -> paths.stream()
+                .flatMap(path -> {
+                    StorageInterface store = getStorageForSchema(path);
+                    if (store == null) {
+                        return Stream.empty();
+                    }
+                    return StreamSupport.stream(store.at(path).spliterator(), false);
+                })
+                .iterator();
+
+        Collection<IndexerInterface> indexers = getIndexingPlugins(true);
+        ArrayList<Task<Report>> rettasks = new ArrayList<>();
+        final int nFiles = paths.size();
+        for (IndexerInterface indexer : indexers) {
+            try {
+                Task<Report> task = indexer.index(files);
+                if (task == null) continue;
+                final String taskUniqueID = task.getUid();
+                task.setName(String.format("[%s]index batch of %d files", indexer.getName(), nFiles));
+                task.onCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.info("Task [{}] complete: batch of {} files is indexed", taskUniqueID, nFiles);
+                    }
+                });
+
+                taskManager.dispatch(task);
+                rettasks.add(task);
+                RunningIndexTasks.getInstance().addTask(task);
+            } catch (RuntimeException ex) {
+                logger.warn("Indexer {} failed unexpectedly", indexer.getName(), ex);
+            }
+        }
+        logger.info("Finished firing all indexing plugins for batch of {} files", nFiles);
+
+        return rettasks;
+    }
+
     public void unindex(URI path) {
     	logger.info("Starting unindexing procedure for {}", path.toString());
         this.doUnindex(path, this.getIndexingPlugins(true));
@@ -768,6 +961,8 @@ public class PluginController{
         for (IndexerInterface indexer : indexers) {
         	indexer.unindex(path);
         }
+        UIDResolver.getInstance().invalidate(path);
+        removeThumbnails(path);
         logger.info("Finished unindexing {}", path);
     }
     
@@ -782,11 +977,20 @@ public class PluginController{
     public void doRemove(URI uri, StorageInterface si) {
         if(si.handles(uri)){
             si.remove(uri); 
+            UIDResolver.getInstance().invalidate(uri);
+            removeThumbnails(uri);
         } else {
             logger.warn("Storage Plugin does not handle URI: {},{}", uri, si);
         }
         logger.info("Finished removing {}", uri);
     }
+
+    /** Removes the thumbnails rendered on arrival for the files at, or under, a location. */
+    private static void removeThumbnails(URI location) {
+        if (ServerSettingsManager.getSettings().getArchiveSettings().getSaveThumbnails()) {
+            ThumbnailStore.getInstance().remove(location);
+        }
+    }
     /*
      * Convinience method that calls index(URI) and runs the returned
      * tasks on the executing thread 
@@ -808,6 +1012,28 @@ public class PluginController{
         
         return reports;
     }
+
+    /*
+     * Convinience method that calls index(Collection) and waits for
+     * the returned batch tasks to complete
+     */
+    public List<Report> indexBlocking(Collection<URI> paths) {
+        logger.info("Starting batch indexing blocking procedure for {} files", paths.size());
+        List<Task<Report>> ret = index(paths);
+
+        ArrayList<Report> reports = new ArrayList<>(ret.size());
+        for (Task<Report> t : ret) {
+            try {
+                reports.add(t.get());
+            }
+            catch (InterruptedException | ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        logger.info("Finished indexing batch of {} files", paths.size());
+
+        return reports;
+    }
     
     // Methods for Web UI 
 
@@ -175,6 +175,15 @@ public class ControlServices
         return storage != null;
     }
 
+    /**
+     * @return the queue of received files waiting to be indexed, or null if the storage is not running
+     */
+    public IndexQueue getIndexQueue()
+    {
+        DicomStorage running = storage;
+        return running == null ? null : running.getIndexQueue();
+    }
+
     public void startQueryRetrieve()
     {
         if (retrieve == null)
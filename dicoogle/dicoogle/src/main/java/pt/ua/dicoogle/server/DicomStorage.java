@@ -20,16 +20,25 @@ package pt.ua.dicoogle.server;
 
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
 
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.UID;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.Device;
@@ -51,9 +60,14 @@ import org.dcm4che2.net.service.VerificationService;
 
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.IndexerInterface;
+import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport;
 import pt.ua.dicoogle.sdk.datastructs.Report;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
+import pt.ua.dicoogle.server.web.utils.ThumbnailStore;
 
 
 /**
@@ -77,13 +91,49 @@ public class DicomStorage extends StorageService {
 
     private int threadPoolSize = 10;
 
-    private ExecutorService pool = Executors.newFixedThreadPool(threadPoolSize);
+    /** maximum number of received files that are indexed in the same batch */
+    private static final int INDEX_BATCH_SIZE = Integer.parseInt(System.getProperty("dicoogle.index.batchSize", "64"));
+    /** maximum time (in milliseconds) that a received file waits for others to fill a batch */
+    private static final long INDEX_BATCH_DELAY = Long.parseLong(System.getProperty("dicoogle.index.batchDelay", "200"));
+    /** number of threads indexing received files */
+    private static final int INDEX_THREADS = Integer.parseInt(System.getProperty("dicoogle.index.nThreads", "4"));
+    /** maximum number of received files waiting to be indexed; storing blocks beyond it */
+    private static final int INDEX_QUEUE_SIZE = Integer.parseInt(System.getProperty("dicoogle.index.queueSize", "10000"));
+    /** number of threads rendering the thumbnails of received files, when thumbnails are saved */
+    private static final int THUMBNAIL_THREADS = Integer.parseInt(System.getProperty("dicoogle.thumbnails.nThreads", "2"));
+    /** maximum number of thumbnails waiting to be rendered; beyond it, they are rendered on request instead */
+    private static final int THUMBNAIL_QUEUE_SIZE = Integer.parseInt(System.getProperty("dicoogle.thumbnails.queueSize", "1000"));
+    /** directory of the journal of received files waiting to be indexed */
+    private static final File JOURNAL_DIR = new File(System.getProperty("dicoogle.index.journalDir", "./index-journal"));
+
+    /**
+     * directory where received instances are spooled before being stored; by default next to the
+     * journal, since acknowledged instances that were not stored yet must survive a restart
+     */
+    private static final File SPOOL_DIR = new File(System.getProperty("dicoogle.storage.spoolDir",
+            new File(JOURNAL_DIR.getAbsoluteFile().getParentFile(), "storage-spool").getPath()));
+    /**
+     * when the C-STORE is acknowledged: "spool" once the instance is safely on disk in the spool
+     * directory, or "store" once the storage plugins stored it
+     */
+    private static final boolean ACK_AFTER_STORE = "store".equalsIgnoreCase(System.getProperty("dicoogle.storage.ack", "spool"));
+    /** maximum number of spooled instances waiting for the storage plugins */
+    private static final int STORE_QUEUE_SIZE = Integer.parseInt(System.getProperty("dicoogle.storage.queueSize", "256"));
+
+    /** runs the storage plugins; created on start */
+    private ExecutorService pool;
+    /** renders the thumbnails of received files; created on start, if thumbnails are saved */
+    private ExecutorService thumbnailPool = null;
 
     private Set<String> alternativeAETs = new HashSet<>();
     private Set<String> priorityAETs = new HashSet<>();
 
     // Changed to support priority queue.
-    private BlockingQueue<ImageElement> queue = new PriorityBlockingQueue<ImageElement>();
+    private final IndexQueue queue = new IndexQueue(INDEX_QUEUE_SIZE);
+    private final IndexJournal journal = new IndexJournal(JOURNAL_DIR);
+    private final List<Indexer> indexers = new ArrayList<>();
+    private Thread recovery = null;
+    private volatile boolean stopping = false;
     private NetworkApplicationEntity[] naeArr = null;
 
     /**
@@ -262,32 +312,191 @@ public class DicomStorage extends StorageService {
      * and DICOMDIR update
      */
     protected void onCStoreRQ(Association as, int pcid, DicomObject rq, PDVInputStream dataStream, String tsuid, DicomObject rsp) throws IOException, DicomServiceException {
+        final File spooled;
+        final String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
         try {
 
             String cuid = rq.getString(Tag.AffectedSOPClassUID);
-            String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
 
-            DicomObject d = dataStream.readDataset();
+            // the dataset goes straight to disk, it is never held in memory as a whole
+            spooled = spool(dataStream, cuid, iuid, tsuid);
 
-            d.initFileMetaInformation(cuid, iuid, tsuid);
+        } catch (IOException e) {
+            throw new DicomServiceException(rq, Status.ProcessingFailure, e.getMessage());
+        }
 
-            Iterable<StorageInterface> plugins = PluginController.getInstance().getStoragePlugins(true);
+        final String callingAET = as.getCallingAET();
+        Future<Boolean> stored;
+        try {
+            stored = pool.submit(() -> store(spooled, callingAET, iuid, !ACK_AFTER_STORE));
+        } catch (RejectedExecutionException e) {
+            // an association opened before the service stopped; the sender may try again later
+            if (!spooled.delete()) {
+                LoggerFactory.getLogger(DicomStorage.class).warn("Could not delete spool file {}", spooled);
+            }
+            throw new DicomServiceException(rq, Status.ProcessingFailure, "The storage service is stopping");
+        }
+        if (!ACK_AFTER_STORE) {
+            return;
+        }
+        try {
+            if (!stored.get()) {
+                throw new DicomServiceException(rq, Status.ProcessingFailure, "No storage accepted the instance");
+            }
+        } catch (ExecutionException e) {
+            throw new DicomServiceException(rq, Status.ProcessingFailure, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DicomServiceException(rq, Status.ProcessingFailure, "Interrupted");
+        }
+    }
+
+    /**
+     * Writes a received dataset to a file in the spool directory, as a DICOM file.
+     * It is written as *.part and only renamed to *.dcm once complete, so that
+     * a torn file is never stored when the spool is replayed.
+     */
+    private File spool(PDVInputStream dataStream, String cuid, String iuid, String tsuid) throws IOException {
+        File file = File.createTempFile((iuid != null ? iuid : "instance") + "-", ".part", SPOOL_DIR);
+        String name = file.getName();
+        File complete = new File(SPOOL_DIR, name.substring(0, name.length() - ".part".length()) + ".dcm");
+        boolean done = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(fos));
+                DicomObject fmi = new BasicDicomObject();
+                fmi.initFileMetaInformation(cuid, iuid, tsuid);
+                dos.writeFileMetaInformation(fmi);
+                dataStream.copyTo(dos);
+                dos.flush();
+                if (!ACK_AFTER_STORE) {
+                    // it is acknowledged once spooled, so it must survive a crash
+                    fos.getFD().sync();
+                }
+            }
+            if (!file.renameTo(complete)) {
+                throw new IOException("Could not rename " + file + " to " + complete);
+            }
+            done = true;
+        } finally {
+            if (!done && !file.delete()) {
+                LoggerFactory.getLogger(DicomStorage.class).warn("Could not delete incomplete spool file {}", file);
+            }
+        }
+        return complete;
+    }
 
-            URI uri = null;
-            for (StorageInterface storage : plugins) {
-                uri = storage.store(d);
+    /**
+     * Stores again the instances left in the spool directory by a previous run: those that were
+     * spooled but not stored yet when it stopped (*.dcm), and those that no storage accepted
+     * (*.failed). Incomplete files (*.part) were never acknowledged, and are deleted.
+     */
+    private void replaySpool() {
+        File[] files = SPOOL_DIR.listFiles();
+        if (files == null) {
+            return;
+        }
+        int n = 0;
+        for (final File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".part")) {
+                if (!file.delete()) {
+                    LoggerFactory.getLogger(DicomStorage.class).warn("Could not delete incomplete spool file {}", file);
+                }
+                continue;
+            }
+            if (!name.endsWith(".dcm") && !name.endsWith(".failed")) {
+                continue;
+            }
+            // named after the SOP instance UID, followed by a dash and a unique number
+            int dash = name.lastIndexOf('-');
+            final String iuid = name.startsWith("instance-") || dash < 0 ? null : name.substring(0, dash);
+            pool.submit(() -> store(file, null, iuid, true));
+            n++;
+        }
+        if (n > 0) {
+            LoggerFactory.getLogger(DicomStorage.class).info("Storing {} instances left in {}", n, SPOOL_DIR);
+        }
+    }
+
+    /**
+     * Hands a spooled instance to every storage plugin and queues the stored copies for indexing.
+     * The spooled file is removed once stored; if no plugin stored it and the C-STORE was
+     * already acknowledged, it is kept (renamed to *.failed) so it is not lost.
+     * When thumbnails are saved, the first stored copy is also queued to render its thumbnail.
+     *
+     * @param acknowledged whether the C-STORE was already acknowledged
+     * @return whether at least one plugin stored the instance
+     */
+    private boolean store(File spooled, String callingAET, String iuid, boolean acknowledged) {
+        URI stored = null;
+        for (StorageInterface storage : PluginController.getInstance().getStoragePlugins(true)) {
+            try (DicomInputStream in = new DicomInputStream(new BufferedInputStream(new FileInputStream(spooled)))) {
+                URI uri = storage.store(in);
                 if (uri != null) {
+                    if (stored == null) {
+                        stored = uri;
+                    }
                     // queue to index
                     ImageElement element = new ImageElement();
-                    element.setCallingAET(as.getCallingAET());
+                    element.setCallingAET(callingAET);
+                    element.setPriority(priorityAETs.contains(callingAET));
                     element.setUri(uri);
-                    queue.add(element);
+                    try {
+                        // the spooled copy is deleted once stored, and the C-STORE acknowledged in either
+                        // mode, so the record must reach the disk first or the instance is never indexed
+                        journal.append(element, true);
+                    } catch (IOException e) {
+                        LoggerFactory.getLogger(DicomStorage.class).error("Could not journal " + uri + ", it is not indexed again after a restart", e);
+                    }
+                    queue.put(element);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LoggerFactory.getLogger(DicomStorage.class).error("Interrupted while queueing " + spooled + " to index", e);
+                break;
+            } catch (IOException | RuntimeException e) {
+                LoggerFactory.getLogger(DicomStorage.class).error("Storage " + storage.getName() + " failed to store " + spooled, e);
             }
-
-        } catch (IOException e) {
-            throw new DicomServiceException(rq, Status.ProcessingFailure, e.getMessage());
         }
+        if (stored != null && thumbnailPool != null && iuid != null) {
+            renderThumbnail(stored, iuid);
+        }
+        if (stored != null || !acknowledged) {
+            if (!spooled.delete()) {
+                LoggerFactory.getLogger(DicomStorage.class).warn("Could not delete spool file {}", spooled);
+            }
+        } else {
+            File failed = spooled.getName().endsWith(".failed") ? spooled : new File(spooled.getPath() + ".failed");
+            spooled.renameTo(failed);
+            LoggerFactory.getLogger(DicomStorage.class).error("Received instance could not be stored, kept in {}", failed);
+        }
+        return stored != null;
+    }
+
+    /**
+     * Renders the thumbnail of a stored instance in the background, into the thumbnail store,
+     * so that it is not decoded when requested.
+     */
+    private void renderThumbnail(final URI uri, final String iuid) {
+        final int size = settings.getArchiveSettings().getThumbnailSize();
+        thumbnailPool.execute(() -> {
+            try {
+                StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+                Iterator<StorageInputStream> it = storage == null ? null : storage.at(uri).iterator();
+                if (it == null || !it.hasNext()) {
+                    LoggerFactory.getLogger(DicomStorage.class).debug("No stored copy at {} to render a thumbnail", uri);
+                    return;
+                }
+                ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+                try (InputStream in = it.next().getInputStream()) {
+                    Convert2PNG.render(in, 0, size, size, thumbnail);
+                }
+                ThumbnailStore.getInstance().put(iuid, uri, size, Convert2PNG.RENDER_FORMAT, thumbnail.toByteArray());
+            } catch (IOException | RuntimeException e) {
+                LoggerFactory.getLogger(DicomStorage.class).debug("Could not render the thumbnail of " + uri, e);
+            }
+        });
     }
 
     /**
@@ -296,12 +505,16 @@ public class DicomStorage extends StorageService {
      *
      * This only happens after the store in Storage Plugins.
      *
-     * @param <E>
+     * Elements from priority AEs come first; otherwise, they keep their order of arrival.
      */
-    class ImageElement<E extends Comparable<? super E>>
-            implements Comparable<ImageElement<E>> {
+    static class ImageElement implements Comparable<ImageElement> {
         private URI uri;
         private String callingAET;
+        private boolean priority;
+        private long sequence;
+        private long queuedAt;
+        private long journalSegment = -1;
+        private int journalOffset = -1;
 
         public URI getUri() {
             return uri;
@@ -319,36 +532,142 @@ public class DicomStorage extends StorageService {
             this.callingAET = callingAET;
         }
 
+        public boolean isPriority() {
+            return priority;
+        }
+
+        public void setPriority(boolean priority) {
+            this.priority = priority;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+
+        long getQueuedAt() {
+            return queuedAt;
+        }
+
+        void setQueuedAt(long queuedAt) {
+            this.queuedAt = queuedAt;
+        }
+
+        long getJournalSegment() {
+            return journalSegment;
+        }
+
+        int getJournalOffset() {
+            return journalOffset;
+        }
+
+        void setJournalPosition(long segment, int offset) {
+            this.journalSegment = segment;
+            this.journalOffset = offset;
+        }
+
         @Override
-        public int compareTo(ImageElement<E> o1) {
-            if (o1.getCallingAET().equals(this.getCallingAET()))
-                return 0;
-            else if (priorityAETs.contains(this.getCallingAET()))
-                return -1;
-            else return 1;
+        public int compareTo(ImageElement o) {
+            if (this.priority != o.priority)
+                return this.priority ? -1 : 1;
+            return Long.compare(this.sequence, o.sequence);
         }
     }
 
 
+    /**
+     * Consumes the queue of received files, gathering them in batches of up to
+     * {@code INDEX_BATCH_SIZE} files, or whatever arrived within {@code INDEX_BATCH_DELAY}
+     * milliseconds of the first one. Each batch is indexed with a single task per indexer.
+     * Several of these run side by side. Indexed files are marked as done in the
+     * journal; when the service stops, whatever is still queued stays in the
+     * journal and is indexed after the next start, and so do the files that
+     * failed to be indexed.
+     */
     class Indexer extends Thread {
         public Collection<IndexerInterface> plugins;
 
+        Indexer(int n) {
+            super("dicoogle-indexer-" + n);
+            setDaemon(true);
+        }
+
         public void run() {
-            while (true) {
+            List<URI> batch = new ArrayList<>(INDEX_BATCH_SIZE);
+            List<ImageElement> elements = new ArrayList<>(INDEX_BATCH_SIZE);
+            while (!stopping) {
                 try {
                     // Fetch an element by the queue taking into account the priorities.
-                    ImageElement element = queue.take();
-                    URI exam = element.getUri();
-                    if (exam != null) {
-                        List<Report> reports = PluginController.getInstance().indexBlocking(exam);
+                    ImageElement element = queue.poll(1, TimeUnit.SECONDS);
+                    if (element == null) {
+                        continue;
+                    }
+                    long deadline = System.currentTimeMillis() + INDEX_BATCH_DELAY;
+                    while (element != null) {
+                        if (element.getUri() != null) {
+                            batch.add(element.getUri());
+                            elements.add(element);
+                        }
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (batch.size() >= INDEX_BATCH_SIZE || remaining <= 0) {
+                            break;
+                        }
+                        element = queue.poll(remaining, TimeUnit.MILLISECONDS);
                     }
                 } catch (InterruptedException ex) {
                     LoggerFactory.getLogger(DicomStorage.class).error(ex.getMessage(), ex);
                 }
 
+                if (!batch.isEmpty()) {
+                    if (index(batch)) {
+                        queue.indexed(batch.size());
+                        journal.done(elements);
+                    } else {
+                        // the reports only count errors, so each file is tried again on its own
+                        List<ImageElement> indexed = new ArrayList<>(elements.size());
+                        for (ImageElement element : elements) {
+                            if (index(Collections.singletonList(element.getUri()))) {
+                                indexed.add(element);
+                            } else {
+                                LoggerFactory.getLogger(DicomStorage.class).error("Could not index {}, it is tried again after a restart", element.getUri());
+                            }
+                        }
+                        queue.indexed(indexed.size());
+                        journal.done(indexed);
+                    }
+                    batch.clear();
+                    elements.clear();
+                }
             }
 
         }
+
+        /**
+         * Indexes files with every indexer, waiting for it to finish.
+         *
+         * @return whether no indexer reported an error
+         */
+        private boolean index(List<URI> uris) {
+            boolean ok = true;
+            for (Task<Report> task : PluginController.getInstance().index(new ArrayList<>(uris))) {
+                try {
+                    Report report = task.get();
+                    if (report instanceof IndexReport && ((IndexReport) report).getNErrors() != 0) {
+                        ok = false;
+                    }
+                } catch (ExecutionException ex) {
+                    LoggerFactory.getLogger(DicomStorage.class).error("Indexing task failed", ex);
+                    ok = false;
+                } catch (InterruptedException ex) {
+                    LoggerFactory.getLogger(DicomStorage.class).error(ex.getMessage(), ex);
+                    ok = false;
+                }
+            }
+            return ok;
+        }
     }
 
 
@@ -437,7 +756,12 @@ public class DicomStorage extends StorageService {
 
     }
 
-    private Indexer indexer = new Indexer();
+    /**
+     * @return the queue of received files waiting to be indexed, with its metrics
+     */
+    public IndexQueue getIndexQueue() {
+        return queue;
+    }
 
     /*
      * Start the Storage Service
@@ -445,9 +769,49 @@ public class DicomStorage extends StorageService {
      */
     public void start() throws IOException {
         //dirc = new DicomDirCreator(path, "Dicoogle");
-        pool = Executors.newFixedThreadPool(threadPoolSize);
+        if (!SPOOL_DIR.isDirectory() && !SPOOL_DIR.mkdirs()) {
+            throw new IOException("Cannot create the spool directory " + SPOOL_DIR);
+        }
+        // when the storages fall behind, the association threads store by themselves,
+        // which slows the senders down instead of piling up spooled files
+        pool = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(STORE_QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        // CallerRunsPolicy silently drops the task once the pool is shut down
+                        if (e.isShutdown()) {
+                            throw new RejectedExecutionException("The storage pool is shut down");
+                        }
+                        super.rejectedExecution(r, e);
+                    }
+                });
+        if (settings.getArchiveSettings().getSaveThumbnails()) {
+            // thumbnails are only a shortcut: when too many are pending, the others are rendered on request
+            thumbnailPool = new ThreadPoolExecutor(THUMBNAIL_THREADS, THUMBNAIL_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(THUMBNAIL_QUEUE_SIZE), new ThreadPoolExecutor.DiscardPolicy());
+        }
+        final List<ImageElement> unindexed = journal.open();
+        replaySpool();
         device.startListening(executor);
-        indexer.start();
+        for (int i = 0; i < INDEX_THREADS; i++) {
+            Indexer indexer = new Indexer(i);
+            indexers.add(indexer);
+            indexer.start();
+        }
+        if (!unindexed.isEmpty()) {
+            // queued aside, so that a long tail does not hold the start back
+            recovery = new Thread(() -> {
+                try {
+                    for (ImageElement element : unindexed) {
+                        queue.put(element);
+                    }
+                } catch (InterruptedException ex) {
+                    LoggerFactory.getLogger(DicomStorage.class).debug("Stopped queueing the unindexed files", ex);
+                }
+            }, "dicoogle-index-recovery");
+            recovery.setDaemon(true);
+            recovery.start();
+        }
 
 
     }
@@ -456,13 +820,30 @@ public class DicomStorage extends StorageService {
      * Stop the storage service 
      */
     public void stop() {
+        // no new associations; instances still arriving on open ones are refused once the pool is shut down
+        device.stopListening();
         this.pool.shutdown();
         try {
             pool.awaitTermination(6, TimeUnit.DAYS);
         } catch (InterruptedException ex) {
             LoggerFactory.getLogger(DicomStorage.class).error(ex.getMessage(), ex);
         }
-        device.stopListening();
+        if (thumbnailPool != null) {
+            thumbnailPool.shutdownNow();
+        }
+        // what is still queued stays in the journal
+        stopping = true;
+        if (recovery != null) {
+            recovery.interrupt();
+        }
+        try {
+            for (Indexer indexer : indexers) {
+                indexer.join();
+            }
+        } catch (InterruptedException ex) {
+            LoggerFactory.getLogger(DicomStorage.class).error(ex.getMessage(), ex);
+        }
+        journal.close();
 
         //dirc.dicomdir_close();
     }
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.dim.ConcatTags;
+
+/**
+ * Groups search results into studies or series as they are consumed, keeping only what is needed
+ * to answer study and series level queries: the attributes of the first instance of each group and
+ * the number of instances.
+ *
+ * Results come in no particular order, and instances of a study may be the first and the last results,
+ * so a group is only complete once all the results were read. Groups are therefore emitted, in order of
+ * appearance, when the results end. The memory used is bound by the number of groups rather than by the
+ * number of results.
+ *
+ * Results may already stand for a whole series, in which case they hold the number of instances
+ * of the series in NumberOfSeriesRelatedInstances.
+ */
+class DimGroupAggregator implements Iterator<DimGroupAggregator.Group> {
+
+    static final String SERIES_COUNT_FIELD = "NumberOfSeriesRelatedInstances";
+
+    /**
+     * A study, or series, with the attributes of its first instance.
+     */
+    static class Group {
+        private final Map<String, Object> attributes;
+        int instances;
+
+        Group(Map<String, Object> attributes) {
+            this.attributes = attributes;
+        }
+
+        /**
+         * @param name the attribute name, as in the search results
+         * @return the trimmed attribute value, or an empty string
+         */
+        String get(String name) {
+            Object value = attributes.get(name);
+            return value == null ? "" : value.toString().trim();
+        }
+
+        int getInstances() {
+            return instances;
+        }
+    }
+
+    static class StudyGroup extends Group {
+        private String description;
+        private final Set<String> series = new HashSet<>();
+        private final Set<String> modalities = new LinkedHashSet<>();
+
+        StudyGroup(Map<String, Object> attributes) {
+            super(attributes);
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        int getSeriesCount() {
+            return series.size();
+        }
+
+        /**
+         * @return the distinct modalities of the study, in order of appearance
+         */
+        Collection<String> getModalities() {
+            return modalities;
+        }
+    }
+
+    static class SeriesGroup extends Group {
+        private final StudyGroup study;
+
+        SeriesGroup(Map<String, Object> attributes, StudyGroup study) {
+            super(attributes);
+            this.study = study;
+        }
+
+        StudyGroup getStudy() {
+            return study;
+        }
+    }
+
+    private final ConcatTags concatTags;
+    private final Iterator<SearchResult> results;
+    private final boolean seriesLevel;
+    private final Map<String, StudyGroup> studies = new LinkedHashMap<>();
+    private final Map<String, SeriesGroup> series = new LinkedHashMap<>();
+    private Iterator<? extends Group> completed;
+
+    /**
+     * @param results the search results to group
+     * @param seriesLevel whether to emit series, rather than studies
+     * @param concatTags the rules for completing empty study descriptions, or null
+     */
+    DimGroupAggregator(Iterator<SearchResult> results, boolean seriesLevel, ConcatTags concatTags) {
+        this.results = results;
+        this.seriesLevel = seriesLevel;
+        this.concatTags = concatTags;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (completed == null) {
+            while (results.hasNext()) {
+                add(results.next());
+            }
+            completed = (seriesLevel ? series : studies).values().iterator();
+        }
+        return completed.hasNext();
+    }
+
+    /**
+     * @return the next completed study, or series at series level
+     */
+    @Override
+    public Group next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Group next = completed.next();
+        // the group is no longer needed once handed out
+        completed.remove();
+        return next;
+    }
+
+    /**
+     * Adds a result to its study and series.
+     *
+     * @param result the search result
+     */
+    private void add(SearchResult result) {
+        Map<String, Object> extra = result.getExtraData();
+        int instances = instancesOf(extra);
+
+        String patientID = trim(extra.get("PatientID"));
+        String patientIdentifier = patientID.isEmpty() ? trim(extra.get("PatientName")) : patientID;
+        String studyKey = patientIdentifier + '\\' + trim(extra.get("StudyInstanceUID"));
+        String seriesUID = trim(extra.get("SeriesInstanceUID"));
+        String modality = trim(extra.get("Modality"));
+
+        StudyGroup study = studies.get(studyKey);
+        if (study == null) {
+            study = new StudyGroup(extra);
+            studies.put(studyKey, study);
+        }
+        // as when building the DIM tree, the description of the latest instance prevails
+        study.description = studyDescription(extra, modality);
+        study.series.add(seriesUID);
+        study.modalities.add(modality);
+        study.instances += instances;
+
+        if (!seriesLevel) {
+            return;
+        }
+        String seriesKey = studyKey + '\\' + seriesUID;
+        SeriesGroup s = series.get(seriesKey);
+        if (s == null) {
+            s = new SeriesGroup(extra, study);
+            series.put(seriesKey, s);
+        }
+        s.instances += instances;
+    }
+
+    private static int instancesOf(Map<String, Object> extra) {
+        Object count = extra.get(SERIES_COUNT_FIELD);
+        if (count != null) {
+            try {
+                return Math.max(1, (int) Float.parseFloat(count.toString().trim()));
+            } catch (NumberFormatException ex) {
+                // not a grouped result
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Obtains the study description, completing it with the configured tags when it is empty.
+     */
+    private String studyDescription(Map<String, Object> extra, String modality) {
+        String description = trim(extra.get("StudyDescription"));
+        if (concatTags == null || !(description.isEmpty() || description.toLowerCase().contains("fuji"))) {
+            return description;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ConcatTags.Rule rule : concatTags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                Object value = extra.get(rule.getTagToReplace());
+                if (value != null) {
+                    sb.append(value.toString().trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", "")).append("; ");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String trim(Object o) {
+        return o == null ? "" : o.toString().trim();
+    }
+}
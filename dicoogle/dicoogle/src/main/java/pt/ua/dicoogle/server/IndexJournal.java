@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log of the files that were stored but are not indexed yet.
+ *
+ * Every file handed to the indexers is first appended to a memory-mapped
+ * segment, and marked as done in place once indexed. A segment is deleted as
+ * soon as all of its files are done, so what is left on disk is the unindexed
+ * tail, which is read back on startup instead of re-indexing the archive.
+ *
+ * A record is laid out as: length (int), state (byte), priority (byte),
+ * calling AE title (short length + UTF-8) and URI (int length + UTF-8).
+ * The length is written last, so a record cut short by a crash reads as
+ * the end of the segment.
+ */
+public class IndexJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexJournal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+
+    private static final int SEGMENT_SIZE = Integer.parseInt(System.getProperty("dicoogle.index.journalSegmentSize", String.valueOf(4 * 1024 * 1024)));
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int pending = 0;
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File dir;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment current = null;
+    private long nextId = 0;
+    private boolean open = false;
+
+    public IndexJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens the journal, reading the files that were left unindexed.
+     *
+     * @return the files left unindexed, oldest first
+     */
+    public synchronized List<DicomStorage.ImageElement> open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the index journal directory " + dir);
+        }
+        List<DicomStorage.ImageElement> pending = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().endsWith(SUFFIX)) {
+                    continue;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                nextId = Math.max(nextId, id + 1);
+                Segment segment = new Segment(id, file, map(file, file.length()));
+                recover(segment, pending);
+                segments.put(id, segment);
+            }
+        }
+        // every segment left with nothing pending can go
+        for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment.pending == 0) {
+                it.remove();
+                delete(segment);
+            }
+        }
+        current = newSegment(SEGMENT_SIZE);
+        open = true;
+        if (!pending.isEmpty()) {
+            logger.info("{} received files were left unindexed, queueing them again", pending.size());
+        }
+        return pending;
+    }
+
+    /** Reads the pending records of a segment. */
+    private void recover(Segment segment, List<DicomStorage.ImageElement> pending) {
+        MappedByteBuffer buf = segment.buffer;
+        int pos = 0;
+        while (pos + 4 <= buf.capacity()) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || pos + 4 + length > buf.capacity()) {
+                break;
+            }
+            if (buf.get(pos + 4) == PENDING) {
+                try {
+                    pending.add(read(segment, pos));
+                    segment.pending++;
+                } catch (URISyntaxException | RuntimeException e) {
+                    logger.warn("Skipping an unreadable record of the index journal " + segment.file + " at " + pos, e);
+                    buf.put(pos + 4, DONE);
+                }
+            }
+            pos += 4 + length;
+        }
+    }
+
+    private DicomStorage.ImageElement read(Segment segment, int pos) throws URISyntaxException {
+        MappedByteBuffer buf = segment.buffer;
+        int p = pos + 5;
+        boolean priority = buf.get(p++) != 0;
+        byte[] aet = new byte[buf.getShort(p)];
+        p += 2;
+        for (int i = 0; i < aet.length; i++) {
+            aet[i] = buf.get(p++);
+        }
+        byte[] uri = new byte[buf.getInt(p)];
+        p += 4;
+        for (int i = 0; i < uri.length; i++) {
+            uri[i] = buf.get(p++);
+        }
+        DicomStorage.ImageElement element = new DicomStorage.ImageElement();
+        element.setCallingAET(new String(aet, StandardCharsets.UTF_8));
+        element.setPriority(priority);
+        element.setUri(new URI(new String(uri, StandardCharsets.UTF_8)));
+        element.setJournalPosition(segment.id, pos);
+        return element;
+    }
+
+    /**
+     * Appends a file to the journal, before it is queued to index.
+     *
+     * @param sync whether to force the record to the disk before returning
+     */
+    public synchronized void append(DicomStorage.ImageElement element, boolean sync) throws IOException {
+        if (!open) {
+            throw new IOException("The index journal is closed");
+        }
+        byte[] aet = element.getCallingAET() == null ? new byte[0] : element.getCallingAET().getBytes(StandardCharsets.UTF_8);
+        byte[] uri = element.getUri().toString().getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 1 + 2 + aet.length + 4 + uri.length;
+
+        MappedByteBuffer buf = current.buffer;
+        if (buf.position() + 4 + length > buf.capacity()) {
+            Segment full = current;
+            current = newSegment(Math.max(SEGMENT_SIZE, 4 + length + 4));
+            if (full.pending == 0) {
+                segments.remove(full.id);
+                delete(full);
+            }
+            buf = current.buffer;
+        }
+        int pos = buf.position();
+        buf.position(pos + 4);
+        buf.put(PENDING);
+        buf.put((byte) (element.isPriority() ? 1 : 0));
+        buf.putShort((short) aet.length);
+        buf.put(aet);
+        buf.putInt(uri.length);
+        buf.put(uri);
+        buf.putInt(pos, length);
+        current.pending++;
+        element.setJournalPosition(current.id, pos);
+        if (sync) {
+            buf.force();
+        }
+    }
+
+    /**
+     * Marks files as indexed. Segments left with nothing pending are deleted.
+     */
+    public synchronized void done(List<DicomStorage.ImageElement> elements) {
+        for (DicomStorage.ImageElement element : elements) {
+            Segment segment = segments.get(element.getJournalSegment());
+            if (segment == null) {
+                continue;
+            }
+            segment.buffer.put(element.getJournalOffset() + 4, DONE);
+            element.setJournalPosition(-1, -1);
+            if (--segment.pending == 0 && segment != current) {
+                segments.remove(segment.id);
+                delete(segment);
+            }
+        }
+    }
+
+    /** @return the number of files in the journal waiting to be indexed */
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.pending;
+        }
+        return pending;
+    }
+
+    /**
+     * Closes the journal. The files still pending stay on disk and are read
+     * again the next time it is opened.
+     */
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        if (current.pending == 0) {
+            segments.remove(current.id);
+            delete(current);
+        }
+        segments.clear();
+        current = null;
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        long id = nextId++;
+        File file = new File(dir, String.format("%016x%s", id, SUFFIX));
+        Segment segment = new Segment(id, file, map(file, size));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        // the mapping is released by the garbage collector; until then some
+        // platforms refuse the deletion, and the segment is dropped when next opened
+        if (!segment.file.delete()) {
+            logger.debug("Could not delete the index journal segment {} yet", segment.file);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Bounded priority queue of received files waiting to be indexed.
+ *
+ * Files from priority AEs come first, the others in order of arrival.
+ * When the queue is full, {@link #put} blocks, which holds back the storage
+ * stage and, in turn, the senders. The queue also keeps the metrics shown
+ * in the management API: depth, time spent waiting and indexing throughput.
+ */
+public class IndexQueue {
+
+    /** length of the window over which the recent throughput is measured, in seconds */
+    private static final int WINDOW = 60;
+
+    private final PriorityQueue<DicomStorage.ImageElement> queue = new PriorityQueue<>();
+    /**
+     * arrival time of the queued files, by sequence number; the head of the queue
+     * is not the oldest file when priority files overtook others
+     */
+    private final TreeMap<Long, Long> arrivals = new TreeMap<>();
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private long sequence = 0;
+    private long enqueued = 0;
+    private long dequeued = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+    private long indexed = 0;
+
+    /** files indexed in each of the last seconds, as a ring */
+    private final long[] perSecond = new long[WINDOW];
+    private long lastSecond = 0;
+
+    public IndexQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /** Adds a file, waiting for room if the queue is full. */
+    void put(DicomStorage.ImageElement element) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.size() >= capacity) {
+                notFull.await();
+            }
+            element.setSequence(sequence++);
+            element.setQueuedAt(System.currentTimeMillis());
+            queue.add(element);
+            arrivals.put(element.getSequence(), element.getQueuedAt());
+            enqueued++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next file, waiting up to the given time for one to arrive.
+     *
+     * @return the next file, or null if none arrived in time
+     */
+    DicomStorage.ImageElement poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            DicomStorage.ImageElement element = queue.poll();
+            arrivals.remove(element.getSequence());
+            long wait = System.currentTimeMillis() - element.getQueuedAt();
+            dequeued++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            notFull.signal();
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a number of files were indexed. */
+    void indexed(int n) {
+        lock.lock();
+        try {
+            indexed += n;
+            perSecond[(int) (advance() % WINDOW)] += n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Moves the throughput window to the current second, clearing the seconds skipped. */
+    private long advance() {
+        long now = System.currentTimeMillis() / 1000;
+        if (lastSecond == 0 || now - lastSecond >= WINDOW) {
+            java.util.Arrays.fill(perSecond, 0);
+        } else {
+            for (long s = lastSecond + 1; s <= now; s++) {
+                perSecond[(int) (s % WINDOW)] = 0;
+            }
+        }
+        lastSecond = Math.max(lastSecond, now);
+        return lastSecond;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the files indexed per second, over the last minute */
+    public double getThroughput() {
+        lock.lock();
+        try {
+            advance();
+            long sum = 0;
+            for (long n : perSecond) {
+                sum += n;
+            }
+            return (double) sum / WINDOW;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toJson() {
+        JSONObject obj = new JSONObject();
+        lock.lock();
+        try {
+            obj.element("depth", queue.size());
+            obj.element("capacity", capacity);
+            obj.element("enqueued", enqueued);
+            obj.element("dequeued", dequeued);
+            obj.element("indexed", indexed);
+            obj.element("averageWaitMillis", dequeued == 0 ? 0 : totalWait / dequeued);
+            obj.element("maxWaitMillis", maxWait);
+            Map.Entry<Long, Long> oldest = arrivals.firstEntry();
+            obj.element("oldestWaitMillis", oldest == null ? 0 : System.currentTimeMillis() - oldest.getValue());
+        } finally {
+            lock.unlock();
+        }
+        obj.element("throughput", getThroughput());
+        return obj.toString();
+    }
+}
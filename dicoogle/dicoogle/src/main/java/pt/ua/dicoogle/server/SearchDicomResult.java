@@ -25,23 +25,18 @@
 package pt.ua.dicoogle.server;
 
 import pt.ua.dicoogle.sdk.datastructs.dim.*;
-import pt.ua.dicoogle.sdk.datastructs.dim.Series;
 
 import java.io.*;
 
 import org.dcm4che2.data.*;
 import org.slf4j.Logger;
-import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 import org.slf4j.LoggerFactory;
 
-import org.dcm4che2.io.DicomInputStream;
 
 
 import pt.ua.dicoogle.plugins.PluginController;
@@ -53,7 +48,7 @@ import pt.ua.dicoogle.sdk.task.Task;
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  * @since 17 Fev 2009
  */
-public class SearchDicomResult implements Iterator<DicomObject>
+public class SearchDicomResult implements Iterator<DicomObject>, Closeable
 {
 
     public enum QUERYLEVEL { PATIENT, STUDY, SERIE, IMAGE}
@@ -62,17 +57,16 @@ public class SearchDicomResult implements Iterator<DicomObject>
 
 
     /**
-    * Get IndexCore
-    */
-    
-    Collection<SearchResult> list = null ;
-    List<Patient> patientList = new ArrayList<>();
-    List<Study> studyList = new ArrayList<>();
-    List<Series> seriesList = new ArrayList<>();
+     * Iterates over search results at IMAGE level, or over study or series groups otherwise.
+     * In both cases the results are read as responses are requested.
+     */
     Iterator it = null ;
     
     String currentFile ;
 
+    /** Query providing the results, closed once they are no longer needed */
+    private JointQueryTask holder;
+
 
 
     private static ConcatTags concatTags = null;
@@ -110,7 +104,7 @@ public class SearchDicomResult implements Iterator<DicomObject>
 			extraFields.put(s, s);
 		}
 
-		JointQueryTask holder = new JointQueryTask() {
+		holder = new JointQueryTask() {
 
 			@Override
 			public void onReceive(Task<Iterable<SearchResult>> e) {
@@ -125,73 +119,34 @@ public class SearchDicomResult implements Iterator<DicomObject>
 			}
 		};
 
+		if (level != QUERYLEVEL.IMAGE) {
+			// let providers which support it group instances by series; the count of
+			// instances of each series is then used instead of counting results
+			extraFields.put(DimGroupAggregator.SERIES_COUNT_FIELD, DimGroupAggregator.SERIES_COUNT_FIELD);
+		}
+
 		// The method will retrieve all DICOM active query plugins (with empty list at argument)
         List<String> dicomQueryProviders = PluginController.getInstance().filterDicomQueryProviders(new ArrayList<>());
-		holder = PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery,
-				extraFields);
-
-		try {
-			it = holder.get().iterator();
-			
-			list = new ArrayList<SearchResult>();
-			while (it.hasNext()) {
-				list.add((SearchResult) it.next());
-			}
-		} catch (InterruptedException | ExecutionException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		if (level == QUERYLEVEL.IMAGE) {
+			holder = PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery,
+					extraFields);
+		} else {
+			// passed as a plain parameter, which providers not supporting it ignore
+			holder = PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery,
+					extraFields, DimLevel.SERIES.name());
 		}
 
-		if(list != null)
-			it = list.iterator();
-		
-		if (level == QUERYLEVEL.PATIENT || level == QUERYLEVEL.STUDY) {
-			DIMGeneric dimModel = null;
-            try
-            {
-                if (concatTags==null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-
-            } catch (Exception ex)
-            {
-                ex.printStackTrace();
-            }
-
-			ArrayList<Patient> listPatients = dimModel.getPatients();
-
-			for (Patient p : listPatients) {
-				studyList.addAll(p.getStudies());
-			}
-
-			it = studyList.iterator();
-
-		} else if (level == QUERYLEVEL.SERIE) {
-
-            DIMGeneric dimModel = null;
-            try
-            {
-                if (concatTags==null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-            } catch (Exception ex)
-            {
-            }
-            
-
-			ArrayList<Patient> listPatients = dimModel.getPatients();
-			for (Patient p : listPatients) {
-				studyList.addAll(p.getStudies());
-				for (Study s : p.getStudies()) {
-					seriesList.addAll(s.getSeries());
-				}
-			}
-			it = seriesList.iterator();
+		// results are consumed as responses are requested, rather than gathered beforehand
+		Iterable<SearchResult> results = holder.getLazily();
 
+		if (level == QUERYLEVEL.IMAGE) {
+			it = results.iterator();
+			return;
 		}
 
+		// groups are emitted once all the results were read, since any result may add to any group
+		it = new DimGroupAggregator(results.iterator(), level == QUERYLEVEL.SERIE, concatTags);
+
 	}
 
     @Override
@@ -199,7 +154,12 @@ public class SearchDicomResult implements Iterator<DicomObject>
     {
       if (it!=null)
       {
-        return it.hasNext();
+        boolean hasNext = it.hasNext();
+        if (!hasNext)
+        {
+            close();
+        }
+        return hasNext;
       }
       else
       {
@@ -212,20 +172,28 @@ public class SearchDicomResult implements Iterator<DicomObject>
         return this.currentFile ; 
     }
 
+    /**
+     * Advances to the next IMAGE level result and returns it as found in the index, without
+     * building a response object. Enumerating instances this way only touches the index.
+     *
+     * @return the next instance, or null if there are no more results
+     */
+    public SearchResult nextResult()
+    {
+        if (queryLevel != QUERYLEVEL.IMAGE || it == null || !it.hasNext())
+        {
+            return null;
+        }
+        SearchResult sR = (SearchResult) it.next();
+        currentFile = sR.getURI().toString();
+        return sR;
+    }
+
     @Override
     public DicomObject next()
     {
 
-        // TODO: this code need to be refactored
-        // C-FIND RSP should be builded based on Search Result,
-        // instead opening the file to build DicomObject.
-
-        /** 
-         * Get the fullpath of images 
-         */
-        String path = ServerSettingsManager.getSettings().getArchiveSettings().getMainDirectory();
-
-        //DebugManager.getSettings().debug("Path of DICOM: "+path);
+        String path;
 
 
         if (it != null &&  it.hasNext())
@@ -238,39 +206,8 @@ public class SearchDicomResult implements Iterator<DicomObject>
                 
                 path = sR.getURI().toString();
                 currentFile = path ;
-                //DebugManager.getSettings().debug("-> Next::: " + next.toString());
-                DicomInputStream din = null;
-                /*try
-                {
-                    if (path.endsWith(".gz"))
-                        din = new DicomInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(new File(path)), 256)));
-                    else
-                        din = new DicomInputStream(new File(path));
-                   
-                    
-                    URI uri = new URI(path);
-                    //System.out.println("Trying to find Plugin for: "+uri.toString());
-                    StorageInterface plug = PluginController.getSettings().getStorageForSchema(uri);
-                    
-                    if(plug != null){
-                        //System.out.println("Found Plugin For: "+uri.toString());
-                        
-                        Iterable<StorageInputStream> stream = plug.at(uri);
-                        for(StorageInputStream str : stream)
-                            
-                            try {
-                                din = new DicomInputStream(str.getInputStream());
-                            } catch (IOException ex) {
-                                LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                            }
-                    }
-                    
-                    //DebugManager.getSettings().debug("Imagem: "+path+"..."+next);
-                } catch (URISyntaxException ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
-                */
-                
+                // IMAGE level responses are built from the indexed fields only,
+                // the file itself is not opened here
                 /** This code is refactored in a experimental branch
                  * Building a BasicDicomObject based on Indexing
                  * It will increase the performace
@@ -302,15 +239,10 @@ public class SearchDicomResult implements Iterator<DicomObject>
             else if (queryLevel == QUERYLEVEL.STUDY||queryLevel == QUERYLEVEL.PATIENT)
             {
 
-                Study studyTmp = (Study)next;
+                DimGroupAggregator.StudyGroup studyTmp = (DimGroupAggregator.StudyGroup)next;
                 BasicDicomObject result = new BasicDicomObject();
-                String patientName =studyTmp.getParent().getPatientName() ;
+                String patientName = studyTmp.get("PatientName");
                 
-                try {
-                    patientName = new String(studyTmp.getParent().getPatientName().getBytes("ISO-8859-1"), "ISO-8859-1");
-                } catch (Exception ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
                 try {
                     result.putBytes(Tag.PatientName, VR.PN, patientName.getBytes("ISO-8859-1"));
                 } catch (Exception ex) {
@@ -319,28 +251,22 @@ public class SearchDicomResult implements Iterator<DicomObject>
                 
                 //System.out.println("PatientName:"+patientName);
                 result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
-                result.putString(Tag.PatientSex, VR.LO, studyTmp.getParent().getPatientSex());
-                result.putString(Tag.PatientID, VR.LO, studyTmp.getParent().getPatientID());
-                result.putString(Tag.PatientBirthDate, VR.DA, studyTmp.getParent().getPatientBirthDate());
-                result.putString(Tag.StudyDate, VR.DA, studyTmp.getStudyData());
-                result.putString(Tag.StudyID, VR.SH, studyTmp.getStudyID());
-                result.putString(Tag.StudyTime, VR.TM, studyTmp.getStudyTime());
-                result.putString(Tag.AccessionNumber, VR.SH, studyTmp.getAccessionNumber());
-                result.putString(Tag.StudyInstanceUID, VR.UI, studyTmp.getStudyInstanceUID());
-                result.putString(Tag.StudyDescription, VR.LO, studyTmp.getStudyDescription());
-                String modality = studyTmp.getSeries().get(0).getModality(); // Point of Failure, fix me
-                result.putString(Tag.ModalitiesInStudy, VR.CS,modality);
+                result.putString(Tag.PatientSex, VR.LO, studyTmp.get("PatientSex"));
+                result.putString(Tag.PatientID, VR.LO, studyTmp.get("PatientID"));
+                result.putString(Tag.PatientBirthDate, VR.DA, studyTmp.get("PatientBirthDate"));
+                result.putString(Tag.StudyDate, VR.DA, studyTmp.get("StudyDate"));
+                result.putString(Tag.StudyID, VR.SH, studyTmp.get("StudyID"));
+                result.putString(Tag.StudyTime, VR.TM, studyTmp.get("StudyTime"));
+                result.putString(Tag.AccessionNumber, VR.SH, studyTmp.get("AccessionNumber"));
+                result.putString(Tag.StudyInstanceUID, VR.UI, studyTmp.get("StudyInstanceUID"));
+                result.putString(Tag.StudyDescription, VR.LO, studyTmp.getDescription());
+                String modality = studyTmp.get("Modality");
+                result.putString(Tag.ModalitiesInStudy, VR.CS, String.join("\\", studyTmp.getModalities()));
                 result.putString(Tag.Modality, VR.CS,modality);
-                result.putString(Tag.InstitutionName, VR.CS, studyTmp.getInstitutuionName());
+                result.putString(Tag.InstitutionName, VR.CS, studyTmp.get("InstitutionName"));
 
-                int instances = 0;
-                for (Series seriesTmp : studyTmp.getSeries())
-                {
-                    instances+= seriesTmp.getImageList().size();
-                }
-
-                result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS,""+instances);
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS,""+studyTmp.getSeries().size());
+                result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS,""+studyTmp.getInstances());
+                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS,""+studyTmp.getSeriesCount());
 
 
                 return result;
@@ -350,46 +276,44 @@ public class SearchDicomResult implements Iterator<DicomObject>
             {
                 // Series
 
-                Series seriesTmp = (Series)next;
+                DimGroupAggregator.SeriesGroup seriesTmp = (DimGroupAggregator.SeriesGroup)next;
                 BasicDicomObject result = new BasicDicomObject();
                 //System.out.println("Series : "+ seriesTmp);
-                result.putString(Tag.InstitutionName, VR.CS, seriesTmp.getParent().getInstitutuionName());
+                result.putString(Tag.InstitutionName, VR.CS, seriesTmp.getStudy().get("InstitutionName"));
                 
-                result.putString(Tag.StudyInstanceUID, VR.UI, seriesTmp.getParent().getStudyInstanceUID());
-                result.putString(Tag.SeriesInstanceUID, VR.UI, seriesTmp.getSeriesInstanceUID());
-                result.putString(Tag.SeriesDescription, VR.LO, seriesTmp.getSeriesDescription());
-                result.putString(Tag.SeriesDate, VR.TM, seriesTmp.getSeriesDate());
+                result.putString(Tag.StudyInstanceUID, VR.UI, seriesTmp.get("StudyInstanceUID"));
+                result.putString(Tag.SeriesInstanceUID, VR.UI, seriesTmp.get("SeriesInstanceUID"));
+                result.putString(Tag.SeriesDescription, VR.LO, seriesTmp.get("SeriesDescription"));
+                result.putString(Tag.SeriesDate, VR.TM, seriesTmp.get("SeriesDate"));
                 result.putString(Tag.QueryRetrieveLevel, VR.LO, "SERIES");
-                String modality = seriesTmp.getModality(); // Point of Failure, fix me
+                String modality = seriesTmp.get("Modality");
                 result.putString(Tag.Modality, VR.CS,modality);
-                
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
 
+                String seriesNumber = "" + seriesNumber(seriesTmp.get("SeriesNumber"));
+                result.putString(Tag.SeriesNumber, VR.IS, seriesNumber);
 
-                result.putString(Tag.Modality, VR.CS,modality);
-                if (seriesTmp.getModality().equals("MG")|| seriesTmp.getModality().equals("CR"))
+                if (modality.equals("MG")|| modality.equals("CR"))
                 {
 
-                    result.putString(Tag.ViewPosition, null, seriesTmp.getViewPosition());
-                    result.putString(Tag.ImageLaterality, null, seriesTmp.getImageLaterality());
-                    result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE, seriesTmp.getAcquisitionDeviceProcessingDescription());
+                    result.putString(Tag.ViewPosition, null, seriesTmp.get("ViewPosition"));
+                    result.putString(Tag.ImageLaterality, null, seriesTmp.get("ImageLaterality"));
+                    result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE, seriesTmp.get("AcquisitionDeviceProcessingDescription"));
                     DicomElement viewCodeSequence = result.putSequence(Tag.ViewCodeSequence);
                     DicomObject viewCodeSequenceObj = new BasicDicomObject();
                     viewCodeSequenceObj.setParent(result);
-                    viewCodeSequenceObj.putString(Tag.CodeValue, null, seriesTmp.getViewCodeSequence_CodeValue());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null, seriesTmp.getViewCodeSequence_CodingSchemeDesignator());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null, seriesTmp.getViewCodeSequence_CodingSchemeVersion());
-                    viewCodeSequenceObj.putString(Tag.CodeMeaning, null, seriesTmp.getViewCodeSequence_CodeMeaning());
+                    viewCodeSequenceObj.putString(Tag.CodeValue, null, seriesTmp.get("ViewCodeSequence_CodeValue"));
+                    viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null, seriesTmp.get("ViewCodeSequence_CodingSchemeDesignator"));
+                    viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null, seriesTmp.get("ViewCodeSequence_CodingSchemeVersion"));
+                    viewCodeSequenceObj.putString(Tag.CodeMeaning, null, seriesTmp.get("ViewCodeSequence_CodeMeaning"));
 
                     viewCodeSequence.addDicomObject(viewCodeSequenceObj);
                     result.putNestedDicomObject(Tag.ViewCodeSequence, viewCodeSequenceObj);
                 }
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS,""+ seriesTmp.getImageList().size());
+                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS,""+ seriesTmp.getInstances());
 
 
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
-                result.putString(Tag.ProtocolName, VR.LO, "" + seriesTmp.getProtocolName());
-                result.putString(Tag.BodyPartThickness, VR.LO, "" + seriesTmp.getBodyPartThickness());
+                result.putString(Tag.ProtocolName, VR.LO, seriesTmp.get("ProtocolName"));
+                result.putString(Tag.BodyPartThickness, VR.LO, seriesTmp.get("BodyPartThickness"));
 
 
                 return result;
@@ -405,6 +329,27 @@ public class SearchDicomResult implements Iterator<DicomObject>
         return null ; 
     }
 
+    private static int seriesNumber(String value) {
+        try {
+            return (int) Float.parseFloat(value);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Releases the query results. Consumers which stop before exhausting this iterator must call it.
+     */
+    @Override
+    public void close()
+    {
+        if (holder != null)
+        {
+            holder.close();
+            holder = null;
+        }
+    }
+
     @Override
     public void remove()
     {
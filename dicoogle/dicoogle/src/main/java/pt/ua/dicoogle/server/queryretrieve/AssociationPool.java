@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.TransferCapability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps idle outbound associations, so that repeated C-STOREs to the same
+ * destination do not pay for association setup every time.
+ *
+ * Associations are looked up by destination AE title, host and port, and an
+ * idle one is only handed out if the remote side accepted every SOP class the
+ * new transfer needs, with transfer syntaxes its instances can be sent with. Associations idle for longer than
+ * {@code dicoogle.retrieve.pool.idleTimeout} are released; those idle for
+ * longer than {@code dicoogle.retrieve.pool.checkAfter} are verified with a
+ * C-ECHO before being reused.
+ */
+public class AssociationPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssociationPool.class);
+
+    private static final int MAX_IDLE = Integer.parseInt(System.getProperty("dicoogle.retrieve.pool.maxIdle", "4"));
+    private static final long IDLE_TIMEOUT = Long.parseLong(System.getProperty("dicoogle.retrieve.pool.idleTimeout", "30000"));
+    private static final long CHECK_AFTER = Long.parseLong(System.getProperty("dicoogle.retrieve.pool.checkAfter", "5000"));
+
+    private static AssociationPool instance = null;
+
+    public static synchronized AssociationPool getInstance() {
+        if (instance == null) {
+            instance = new AssociationPool(MAX_IDLE, IDLE_TIMEOUT, CHECK_AFTER);
+        }
+        return instance;
+    }
+
+    private static final class Idle {
+        final Association assoc;
+        final long since = System.currentTimeMillis();
+
+        Idle(Association assoc) {
+            this.assoc = assoc;
+        }
+
+        /**
+         * Checks the negotiated presentation contexts, rather than the proposed ones: the remote side
+         * may have accepted only one of the transfer syntaxes proposed for a SOP class.
+         */
+        boolean covers(Map<String, Set<String>> required) {
+            for (Map.Entry<String, Set<String>> e : required.entrySet()) {
+                TransferCapability tc = assoc.getTransferCapabilityAsSCU(e.getKey());
+                if (tc == null) {
+                    return false;
+                }
+                for (String ts : e.getValue()) {
+                    if (DcmSndV2.selectTransferSyntax(tc.getTransferSyntax(), ts) == null) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<String, Deque<Idle>> idle = new HashMap<>();
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final long checkAfter;
+    private final ScheduledExecutorService reaper;
+
+    AssociationPool(int maxIdle, long idleTimeout, long checkAfter) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.checkAfter = checkAfter;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "association-pool-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeout / 4);
+        this.reaper.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static String key(String aet, String host, int port) {
+        return aet + '@' + host + ':' + port;
+    }
+
+    /**
+     * Takes an idle association to the given destination.
+     *
+     * @param required the transfer syntaxes of the instances to send, by SOP class
+     * @return an association ready for data transfer, or null if there is none
+     */
+    public Association acquire(String aet, String host, int port, Map<String, Set<String>> required) {
+        while (true) {
+            Idle candidate = null;
+            synchronized (this) {
+                Deque<Idle> queue = idle.get(key(aet, host, port));
+                if (queue != null) {
+                    // most recently used first, so the others can time out
+                    for (Iterator<Idle> it = queue.descendingIterator(); it.hasNext();) {
+                        Idle i = it.next();
+                        if (i.covers(required)) {
+                            it.remove();
+                            candidate = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (candidate == null) {
+                return null;
+            }
+            if (isHealthy(candidate)) {
+                logger.debug("Reusing association to {}", candidate.assoc);
+                return candidate.assoc;
+            }
+            discard(candidate.assoc);
+        }
+    }
+
+    /**
+     * Puts an association back after use.
+     *
+     * @return false if it was not taken, in which case the caller releases it
+     */
+    public boolean release(String aet, String host, int port, Association assoc) {
+        if (maxIdle <= 0 || !assoc.isReadyForDataTransfer()) {
+            return false;
+        }
+        synchronized (this) {
+            String key = key(aet, host, port);
+            Deque<Idle> queue = idle.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                idle.put(key, queue);
+            }
+            if (queue.size() >= maxIdle) {
+                return false;
+            }
+            queue.addLast(new Idle(assoc));
+            return true;
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        int n = 0;
+        for (Deque<Idle> queue : idle.values()) {
+            n += queue.size();
+        }
+        return n;
+    }
+
+    private boolean isHealthy(Idle i) {
+        if (!i.assoc.isReadyForDataTransfer()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - i.since < checkAfter) {
+            return true;
+        }
+        try {
+            DimseRSP rsp = i.assoc.cecho();
+            rsp.next();
+            DicomObject cmd = rsp.getCommand();
+            return cmd.getInt(Tag.Status) == 0;
+        } catch (IOException | RuntimeException ex) {
+            logger.debug("Idle association {} failed the C-ECHO: {}", i.assoc, ex.getMessage());
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void reap() {
+        List<Association> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<Deque<Idle>> queues = idle.values().iterator(); queues.hasNext();) {
+                Deque<Idle> queue = queues.next();
+                for (Iterator<Idle> it = queue.iterator(); it.hasNext();) {
+                    Idle i = it.next();
+                    if (now - i.since >= idleTimeout || !i.assoc.isReadyForDataTransfer()) {
+                        it.remove();
+                        expired.add(i.assoc);
+                    }
+                }
+                if (queue.isEmpty()) {
+                    queues.remove();
+                }
+            }
+        }
+        for (Association assoc : expired) {
+            discard(assoc);
+        }
+    }
+
+    private static void discard(Association assoc) {
+        try {
+            if (assoc.isReadyForDataTransfer()) {
+                assoc.release(false);
+            } else {
+                assoc.abort();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            logger.debug("Could not release association {}: {}", assoc, ex.getMessage());
+        }
+    }
+}
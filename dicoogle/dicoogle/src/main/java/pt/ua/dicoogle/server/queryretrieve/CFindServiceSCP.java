@@ -24,8 +24,6 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.concurrent.Executor;
 
-import javax.xml.transform.TransformerConfigurationException;
-
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.ElementDictionary;
@@ -39,7 +37,6 @@ import org.dcm4che2.net.service.CFindService;
 import aclmanager.core.LuceneQueryACLManager;
 import pt.ua.dicoogle.DicomLog.LogDICOM;
 import pt.ua.dicoogle.DicomLog.LogLine;
-import pt.ua.dicoogle.DicomLog.LogXML;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
 import pt.ua.dicoogle.server.DicomNetwork;
@@ -144,15 +141,6 @@ public class CFindServiceSCP extends CFindService {
                     as.toString() + " -- " + add, queryParams);
             LogDICOM.getInstance().addLine(ll);
 
-            synchronized (LogDICOM.getInstance()) {
-                LogXML l = new LogXML();
-                try {
-                    l.printXML();
-                } catch (TransformerConfigurationException ex) {
-                    ex.printStackTrace();
-                }
-            }
-
         }
         return replay;
     }
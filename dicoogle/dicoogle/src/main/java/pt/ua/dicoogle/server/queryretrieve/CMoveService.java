@@ -29,6 +29,7 @@ import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.SingleDimseRSP;
 import org.dcm4che2.net.Status;
+import org.slf4j.LoggerFactory;
 /**
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
@@ -69,7 +70,7 @@ public class CMoveService extends DicomService implements CMoveSCP
         if (CommandUtils.isPending(cmdrsp))
         {
             as.registerCancelRQHandler(rq, rsp);
-            //executor.execute(new WriteMultiDimseRsp(as, pcid, rsp));
+            executor.execute(new WritePendingRSP(as, pcid, rsp));
         }
         else
         {
@@ -82,4 +83,38 @@ public class CMoveService extends DicomService implements CMoveSCP
         return new SingleDimseRSP(rsp);
     }
 
+    /**
+     * Writes the responses of a move in progress, until the final one.
+     */
+    private static class WritePendingRSP implements Runnable
+    {
+        private final Association as;
+        private final int pcid;
+        private final DimseRSP rsp;
+
+        WritePendingRSP(Association as, int pcid, DimseRSP rsp)
+        {
+            this.as = as;
+            this.pcid = pcid;
+            this.rsp = rsp;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                DicomObject cmd;
+                do
+                {
+                    cmd = rsp.getCommand();
+                    as.writeDimseRSP(pcid, cmd, rsp.getDataset());
+                } while (CommandUtils.isPending(cmd) && rsp.next());
+            } catch (IOException | InterruptedException ex)
+            {
+                LoggerFactory.getLogger(CMoveService.class).warn("Could not write C-MOVE response: {}", ex.getMessage());
+            }
+        }
+    }
+
 }
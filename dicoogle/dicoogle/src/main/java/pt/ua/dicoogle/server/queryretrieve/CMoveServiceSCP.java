@@ -21,16 +21,13 @@ package pt.ua.dicoogle.server.queryretrieve;
 import aclmanager.core.LuceneQueryACLManager;
 import aclmanager.models.Principal;
 import java.net.InetAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import org.dcm4che2.data.Tag;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.transform.TransformerConfigurationException;
-import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.DicomServiceException;
@@ -40,11 +37,11 @@ import pt.ua.dicoogle.core.exceptions.CFindNotSupportedException;
 
 import pt.ua.dicoogle.DicomLog.LogDICOM;
 import pt.ua.dicoogle.DicomLog.LogLine;
-import pt.ua.dicoogle.DicomLog.LogXML;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.sdk.datastructs.MoveDestination;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
 import pt.ua.dicoogle.server.DicomNetwork;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.server.SearchDicomResult;
 
 /**
@@ -73,8 +70,6 @@ public class CMoveServiceSCP extends CMoveService {
         //DebugManager.getSettings().debug("doCMove");
         //DebugManager.getSettings().debug("DoCmove");
 
-        DimseRSP replay = null;
-
         /**
          * Verify Permited AETs
          */
@@ -99,15 +94,6 @@ public class CMoveServiceSCP extends CMoveService {
             //DebugManager.getSettings().debug("Client association permited: " + as.getCallingAET() + "!");
         }
 
-        /** FIXME: Write wait by rspreplay */
-        try {
-            Thread.sleep(ServerSettingsManager.getSettings().getDicomServicesSettings().getQueryRetrieveSettings().getRspDelay());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-
-
         /**
          *
          * Now it is the code to move
@@ -120,11 +106,7 @@ public class CMoveServiceSCP extends CMoveService {
         /** Get the port to move */
         int portAddr = as.getSocket().getPort();
 
-        String destination = cmd.getString(org.dcm4che2.data.Tag.MoveDestination);
-        //DebugManager.getSettings().debug("A Move was required to <ip:port> : <"
-        //        + ip.getHostAddress() + ":" + portAddr + ">" + " to --> " + destination);
-
-
+        final String destination = cmd.getString(org.dcm4che2.data.Tag.MoveDestination);
 
         /** Verify if it have the field destination */
         if (destination == null) {
@@ -132,39 +114,16 @@ public class CMoveServiceSCP extends CMoveService {
                     "Missing Move Destination");
         }
 
-        /*DebugManager.getSettings().debug("-- Objects containing the data requested by C-MOVE");
-        DebugManager.getSettings().debug(data.toString());
-        DebugManager.getSettings().debug(cmd.toString());
-        DebugManager.getSettings().debug(rsp.toString());*/
-        String SOPUID = new String(data.get(Integer.parseInt("0020000D", 16)).getBytes());
-        String CMoveID = cmd.getString(org.dcm4che2.data.Tag.MessageID);
-        System.out.println("C-MOVE ID REQUEST: " + CMoveID);
-        
-        /**
-         * Get object to search
-         */
-        ArrayList<String> extrafields = null;
-        extrafields = new ArrayList<String>();
-
-        extrafields.add("PatientName");
-        extrafields.add("PatientID");
-        extrafields.add("Modality");
-        extrafields.add("StudyDate");
-        extrafields.add("Thumbnail");
-        extrafields.add("StudyInstanceUID");
-        
-        SearchDicomResult.QUERYLEVEL level = null;
-        if (CFindBuilder.isPatientRoot(rsp)) {
-            level = SearchDicomResult.QUERYLEVEL.PATIENT;
-        } else if (CFindBuilder.isStudyRoot(rsp)) {
-            level = SearchDicomResult.QUERYLEVEL.STUDY;
+        final String CMoveID = cmd.getString(org.dcm4che2.data.Tag.MessageID);
+        if (CMoveID == null || CMoveID.equals("")) {
+            return new MoveRSP(data, rsp);
         }
 
         CFindBuilder cfind = null;
         try {
             cfind = new CFindBuilder(data, rsp);
         } catch (CFindNotSupportedException ex) {
-            ex.printStackTrace();
+            throw new DicomServiceException(cmd, Status.ProcessingFailure, ex.getMessage());
         }
         String query = cfind.getQueryString();
                
@@ -173,93 +132,71 @@ public class CMoveServiceSCP extends CMoveService {
             if(query.length() > 0 )
                  query += filterQuery;
         }
-        //TODO: FIlter Query;
-        SearchDicomResult search = new SearchDicomResult(query,
-                true, extrafields, SearchDicomResult.QUERYLEVEL.IMAGE);
-        ArrayList<URI> files = new ArrayList<URI>();
-
-
-
-
-        if (search == null) {
-            //DebugManager.getSettings().debug(">> Search is null, so"
-            //        + " somethig is wrong ");
-        } else {
-
-            while (search.hasNext()) {
-                DicomObject obj = search.next();
-                DicomElement e = obj.get(Integer.parseInt("0020000D", 16));
-                String tmp = null;
-                if (e != null) {
-                    tmp = new String(e.getBytes());
-                }
-                if (SOPUID != null && tmp != null) {
-                    //files.add(new File(search.getCurrentFile()));
-                    String uriString = search.getCurrentFile();
-                     
-                    try {
-                        URI nURI = new URI(uriString);
-                        
-                           files.add(nURI);
-                    } catch (URISyntaxException ex) {
-                        LoggerFactory.getLogger(CMoveServiceSCP.class).error(ex.getMessage(), ex);
-                    }
-                }
 
+        /**
+         * What is the destination?
+         *
+         */
+        String hostDest = ip.getHostAddress();
+        ServerSettings.DicomServices ob = ServerSettingsManager.getSettings().getDicomServicesSettings();
+        for (MoveDestination m : ob.getMoveDestinations()) {
+            if (m.getAETitle().equals(destination)) {
+                hostDest = m.getIpAddrs();
+                portAddr = m.getPort();
             }
         }
 
-
-
-
-
-        if (files.size() != 0) {
-
-            /**
-             * What is the destination?
-             *
-             */
-            String hostDest = ip.getHostAddress();
-            ServerSettings.DicomServices ob = ServerSettingsManager.getSettings().getDicomServicesSettings();
-            for (MoveDestination m : ob.getMoveDestinations()) {
-                if (m.getAETitle().equals(destination)) {
-                    hostDest = m.getIpAddrs();
-                    portAddr = m.getPort();
-                }
+        // the query and the transfer run on the retrieve scheduler; the requester
+        // gets pending responses with the progress until the move is done
+        final MoveProgress progress = new MoveProgress();
+        final String moveQuery = query;
+        final String destHost = hostDest;
+        final int destPort = portAddr;
+        final String studyUID = data.getString(Tag.StudyInstanceUID);
+        RetrieveScheduler.getInstance().submit(as.getCallingAET(), destination, progress, () -> {
+            List<SearchResult> files = findFiles(moveQuery);
+            if (files.isEmpty()) {
+                return;
             }
 
-
-
             LogLine ll = new LogLine("cmove", LogLine.getDateTime(), destination,
-                    "Files: " + files.size() + " -- (" + hostDest + ":" + portAddr + ")","studyUID="+data.getString(Tag.StudyInstanceUID));
+                    "Files: " + files.size() + " -- (" + destHost + ":" + destPort + ")", "studyUID=" + studyUID);
             LogDICOM.getInstance().addLine(ll);
 
-            synchronized (LogDICOM.getInstance()) {
-                try {
-                    LogXML l = new LogXML();
-                    l.printXML();
-                } catch (TransformerConfigurationException ex) {
-                    LoggerFactory.getLogger(CMoveServiceSCP.class).error(ex.getMessage(), ex);
-                }
+            try {
+                new CallDCMSend(files, destPort, destHost, destination, CMoveID, progress);
+            } catch (Exception ex) {
+                LoggerFactory.getLogger(CMoveServiceSCP.class).error("C-MOVE to " + destination + " failed", ex);
             }
+        });
 
-            if (CMoveID==null||CMoveID.equals(""))
-            {
-                return null;
-            }
-            try
-            {
-                System.out.println("Destination: " + destination);
-                new CallDCMSend(files, portAddr, hostDest, destination, CMoveID);
-            } catch (Exception ex)
-            {
-                ex.printStackTrace();
-            }
-        }
+        return new MoveRSP(data, rsp, progress);
+    }
 
-        replay = new MoveRSP(data, rsp); // Third Party Move
-        return replay;
+    /**
+     * Locates the instances matched by a C-MOVE, along with what the index knows of them.
+     */
+    private static List<SearchResult> findFiles(String query) {
+        // enough to propose the presentation contexts without opening any instance
+        ArrayList<String> extrafields = new ArrayList<String>();
+        extrafields.add("SOPClassUID");
+        extrafields.add("SOPInstanceUID");
+        extrafields.add("TransferSyntaxUID");
+        SearchDicomResult search = new SearchDicomResult(query,
+                true, extrafields, SearchDicomResult.QUERYLEVEL.IMAGE);
 
+        List<SearchResult> files = new ArrayList<SearchResult>();
+        try {
+            while (search.hasNext()) {
+                SearchResult result = search.nextResult();
+                if (result != null) {
+                    files.add(result);
+                }
+            }
+        } finally {
+            search.close();
+        }
+        return files;
     }
 
     /**
@@ -18,18 +18,17 @@
  */
 package pt.ua.dicoogle.server.queryretrieve;
 
-import com.google.common.io.ByteStreams;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import org.dcm4che2.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
 /**
  *
@@ -37,6 +36,7 @@ import pt.ua.dicoogle.sdk.StorageInterface;
  */
 public class CallDCMSend
 {
+    private static final Logger logger = LoggerFactory.getLogger(CallDCMSend.class);
 
     public CallDCMSend(ArrayList<File> files, int port, String hostname, String AETitle, String cmoveID) throws Exception
     {
@@ -72,65 +72,110 @@ public class CallDCMSend
       
         }
 
-     public CallDCMSend(List<URI> files, int port, String hostname, String AETitle, String cmoveID) throws Exception
+    public CallDCMSend(List<URI> files, int port, String hostname, String AETitle, String cmoveID) throws Exception
     {
+        this(toResults(files), port, hostname, AETitle, cmoveID, null);
+    }
 
-             DcmSndV2 dcmsnd = new DcmSndV2();
-             
+    /**
+     * Sends the given instances. When the index provides their SOPClassUID, SOPInstanceUID
+     * and TransferSyntaxUID, the association is set up without opening them, and each one is
+     * opened once, a few instances ahead of the C-STORE on the wire. The others have their
+     * headers read before the association is opened.
+     *
+     * @param progress receives the sub-operation counts as they change, may be null
+     */
+    public CallDCMSend(List<SearchResult> files, int port, String hostname, String AETitle, String cmoveID,
+            MoveProgress progress) throws Exception
+    {
+        DcmSndV2 dcmsnd = new DcmSndV2();
+        dcmsnd.setRemoteHost(hostname);
+        dcmsnd.setRemotePort(port);
+        dcmsnd.setProgress(progress);
+        dcmsnd.setPooled(true);
+        if (progress != null) {
+            progress.setRemaining(files.size());
+        }
 
-            dcmsnd.setRemoteHost(hostname);
-            dcmsnd.setRemotePort(port);
-            
-            for (URI rui : files)
-            {                
-                System.out.println("Entered Retrieving: "+rui.toString());
+        try {
+            for (SearchResult result : files)
+            {
+                if (progress != null && progress.isCancelled()) {
+                    return;
+                }
+                URI rui = result.getURI();
                 StorageInterface plugin = PluginController.getInstance().getStorageForSchema(rui);
-                System.out.println("Plkugin: " +  plugin);
-                System.out.println("rui.toString: " +  plugin);
-                
-                
-                if(plugin != null)
+                int found = 0;
+                if (plugin != null)
                 {
-                    System.out.println("Retrieving: "+rui.toString());
-                    try{
-                    System.out.println("Retrieving: "+rui.toString());
-                    Iterable<StorageInputStream> it = plugin.at(rui);
-                    
-                    for( StorageInputStream iStream : it)
+                    for (StorageInputStream iStream : plugin.at(rui))
                     {
-                        byte[] byteArr = ByteStreams.toByteArray(new DicomInputStream(iStream.getInputStream()));
-                        dcmsnd.addFile(ByteBuffer.wrap(byteArr));
-                        System.out.println("Added NewFile: "+rui.toString());
+                        if (found++ > 0 && progress != null) {
+                            progress.addRemaining(1);
+                        }
+                        // the index entry describes the instance at that location, not the ones after it
+                        boolean added = found == 1
+                                ? dcmsnd.addFile(iStream, field(result, "SOPClassUID"),
+                                        field(result, "SOPInstanceUID"), field(result, "TransferSyntaxUID"))
+                                : dcmsnd.addFile(iStream);
+                        if (!added && progress != null) {
+                            progress.failed();
+                        }
                     }
-                    
-                    /*InputStream retrievedFile = plugin.retrieve(rui); 
-                    byte[] byteArr = ByteStreams.toByteArray(retrievedFile);
-                    dcmsnd.addFile(ByteBuffer.wrap(byteArr));
-                    System.out.println("Added NewFile: "+rui.toString());*/
-                    }catch(IOException ex){
-                        ex.printStackTrace();
+                }
+                if (found == 0) {
+                    logger.warn("Could not retrieve {} for C-MOVE to {}", rui, AETitle);
+                    if (progress != null) {
+                        progress.failed();
                     }
-                }           
+                }
             }
+            if (dcmsnd.getNumberOfFilesToSend() == 0) {
+                return;
+            }
+
             dcmsnd.setCalledAET(AETitle);
-     
-        dcmsnd.configureTransferCapability();
-//            try {
-//                dcmsnd.initTLS();
-//            } catch (Exception e) {
-//                System.err.println("ERROR: Failed to initialize TLS context:"
-//                        + e.getMessage());
-//                System.exit(2);
-//            }
-        
-         dcmsnd.setMoveOriginatorMessageID(cmoveID);
-         dcmsnd.start();
-         dcmsnd.open();
-         dcmsnd.send();
-         dcmsnd.close();
-         
-      
+            dcmsnd.configureTransferCapability();
+            dcmsnd.setMoveOriginatorMessageID(cmoveID);
+            dcmsnd.start();
+            dcmsnd.open();
+            boolean sent = false;
+            try {
+                dcmsnd.send();
+                sent = true;
+            } finally {
+                if (sent) {
+                    dcmsnd.close();
+                } else {
+                    // C-STOREs may still be outstanding on it, so it does not go back to the pool
+                    dcmsnd.abort();
+                }
+            }
+        } finally {
+            if (progress != null) {
+                progress.finish();
+            }
+        }
+    }
+
+    private static List<SearchResult> toResults(List<URI> files)
+    {
+        List<SearchResult> results = new ArrayList<>(files.size());
+        for (URI uri : files)
+        {
+            results.add(new SearchResult(uri, 0, new HashMap<String, Object>()));
         }
+        return results;
+    }
 
+    private static String field(SearchResult result, String name)
+    {
+        Object value = result.get(name);
+        if (value == null) {
+            return null;
+        }
+        String s = value.toString().trim();
+        return s.isEmpty() ? null : s;
+    }
 
 }
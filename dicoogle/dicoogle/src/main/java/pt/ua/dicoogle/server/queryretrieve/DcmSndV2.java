@@ -32,7 +32,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 
 import org.dcm4che2.data.BasicDicomObject;
@@ -62,7 +65,10 @@ import org.dcm4che2.net.service.StorageCommitmentService;
 import org.dcm4che2.util.CloseUtils;
 import org.dcm4che2.util.StringUtils;
 import org.dcm4che2.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
+import pt.ua.dicoogle.sdk.StorageInputStream;
 
 /**
  * @author gunter zeilinger(gunterze@gmail.com)
@@ -71,12 +77,17 @@ import pt.ua.dicoogle.core.settings.ServerSettingsManager;
  */
 public class DcmSndV2 extends StorageCommitmentService {
 
+    private static final Logger logger = LoggerFactory.getLogger(DcmSndV2.class);
+
     private static final int KB = 1024;
 
     private static final int MB = KB * KB;
 
     private static final int PEEK_LEN = 1024;
 
+    /** marks the end of the read-ahead window */
+    private static final FileInfo END = new FileInfo(ByteBuffer.allocate(0));
+
     private static final String USAGE =
         "dcmsnd [Options] <aet>[@<host>[:<port>]] <file>|<directory>...";
 
@@ -157,6 +168,9 @@ public class DcmSndV2 extends StorageCommitmentService {
 
     private Map<String, Set<String>> as2ts = new HashMap<String, Set<String>>();
 
+    /** transfer syntaxes of the instances to send, by SOP class; a pooled association must accept all of them */
+    private Map<String, Set<String>> needed = new HashMap<String, Set<String>>();
+
     private ArrayList<FileInfo> files = new ArrayList<FileInfo>();
 
     private Association assoc;
@@ -189,6 +203,18 @@ public class DcmSndV2 extends StorageCommitmentService {
     
     private String MoveOriginatorMessageID = null;
 
+    /** sub-operation counters reported back to the C-MOVE requester, may be null */
+    private MoveProgress progress = null;
+
+    /** number of instances opened ahead of the one being sent */
+    private int readAhead = 4;
+
+    /** bytes buffered for each instance opened ahead */
+    private int readAheadBufferSize = 256 * KB;
+
+    /** whether the association is taken from, and given back to, the {@link AssociationPool} */
+    private boolean pooled = false;
+
     public DcmSndV2() {
         remoteAE.setInstalled(true);
         remoteAE.setAssociationAcceptor(true);
@@ -376,6 +402,22 @@ public class DcmSndV2 extends StorageCommitmentService {
         this.transcoderBufferSize = transcoderBufferSize;
     }
 
+    public final void setReadAhead(int readAhead) {
+        this.readAhead = Math.max(1, readAhead);
+    }
+
+    public final void setReadAheadBufferSize(int readAheadBufferSize) {
+        this.readAheadBufferSize = Math.max(KB, readAheadBufferSize);
+    }
+
+    public final void setProgress(MoveProgress progress) {
+        this.progress = progress;
+    }
+
+    public final void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
     public final int getNumberOfFilesToSend() {
         return files.size();
     }
@@ -466,45 +508,75 @@ public class DcmSndV2 extends StorageCommitmentService {
     }
 
     public synchronized void addFile(ByteBuffer bb) {
-      
-        FileInfo info = new FileInfo(bb);
-        InputStream inStream = info.getInputStream();
-        DicomObject dcmObj = new BasicDicomObject();
-        DicomInputStream in = null;
+        addFile(new FileInfo(bb));
+    }
+
+    /**
+     * Adds an instance that is read from storage only when it is sent.
+     * Just the header is peeked here, to learn which presentation contexts to propose.
+     *
+     * @return whether the instance could be parsed and will be sent
+     */
+    public synchronized boolean addFile(StorageInputStream source) {
+        return addFile(new FileInfo(source));
+    }
+
+    /**
+     * Adds an instance already described by the index, so that it is not opened until
+     * it is read ahead of sending. Its header is parsed then, and the values found in the
+     * file take precedence. Falls back to {@link #addFile(StorageInputStream)} if any
+     * value is missing.
+     *
+     * @return whether the instance will be sent
+     */
+    public synchronized boolean addFile(StorageInputStream source, String cuid, String iuid, String tsuid) {
+        if (cuid == null || iuid == null || tsuid == null) {
+            return addFile(source);
+        }
+        FileInfo info = new FileInfo(source);
+        info.cuid = cuid;
+        info.iuid = iuid;
+        info.tsuid = tsuid;
+        info.fmiEndPos = -1;
+        addTransferCapability(cuid, tsuid);
+        files.add(info);
+        return true;
+    }
+
+    private boolean addFile(FileInfo info) {
+        InputStream in = null;
         try {
-            in = new DicomInputStream(inStream);
-            in.setHandler(new StopTagInputHandler(Tag.StudyDate));
-            in.readDicomObject(dcmObj, PEEK_LEN);
-            info.tsuid = in.getTransferSyntax().uid();
-            info.fmiEndPos = in.getEndOfFileMetaInfoPosition();
+            in = info.getInputStream();
+            info.readHeader(in);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("WARNING: Failed to parse - skipped.");
-            System.out.print('F');
-            return;
+            logger.warn("Failed to parse {} - skipped", info, e);
+            return false;
         } finally {
             CloseUtils.safeClose(in);
         }
-               
-        info.cuid = dcmObj.getString(Tag.SOPClassUID);
+
         if (info.cuid == null) {
-            System.err.println("WARNING: Missing SOP Class UID in  - skipped.");
-            System.out.print('F');
-            return;
+            logger.warn("Missing SOP Class UID in {} - skipped", info);
+            return false;
         }
-        info.iuid = dcmObj.getString(Tag.SOPInstanceUID);
         if (info.iuid == null) {
-            System.err.println("WARNING: Missing SOP Instance UID in  - skipped.");
-            System.out.print('F');
-            return;
+            logger.warn("Missing SOP Instance UID in {} - skipped", info);
+            return false;
         }
         
         addTransferCapability(info.cuid, info.tsuid);
         files.add(info);
-        System.out.print('.');
+        return true;
     }
 
     public void addTransferCapability(String cuid, String tsuid) {
+        Set<String> n = needed.get(cuid);
+        if (n == null) {
+            n = new HashSet<String>();
+            needed.put(cuid, n);
+        }
+        n.add(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : tsuid);
+
         Set<String> ts = as2ts.get(cuid);
         if (fileref) {
             if (ts == null) {
@@ -525,15 +597,23 @@ public class DcmSndV2 extends StorageCommitmentService {
 
     public void configureTransferCapability() {
         int off = stgcmt || remoteStgcmtAE != null ? 1 : 0;
-        TransferCapability[] tc = new TransferCapability[off + as2ts.size()];
+        // pooled associations are checked with a C-ECHO before being reused
+        int verify = pooled ? 1 : 0;
+        TransferCapability[] tc = new TransferCapability[off + verify + as2ts.size()];
         if (off > 0) {
             tc[0] = new TransferCapability(
                     UID.StorageCommitmentPushModelSOPClass,
                     ONLY_IVLE_TS,
                     TransferCapability.SCU);
         }
+        if (verify > 0) {
+            tc[off] = new TransferCapability(
+                    UID.VerificationSOPClass,
+                    ONLY_IVLE_TS,
+                    TransferCapability.SCU);
+        }
         Iterator<Map.Entry<String, Set<String>>> iter = as2ts.entrySet().iterator();
-        for (int i = off; i < tc.length; i++) {
+        for (int i = off + verify; i < tc.length; i++) {
             Map.Entry<String, Set<String>> e = iter.next();
             String cuid = e.getKey();
             Set<String> ts = e.getValue();
@@ -565,6 +645,13 @@ public class DcmSndV2 extends StorageCommitmentService {
 
     public void open() throws IOException, ConfigurationException,
             InterruptedException {
+        if (pooled) {
+            assoc = AssociationPool.getInstance().acquire(remoteAE.getAETitle(),
+                    remoteConn.getHostname(), remoteConn.getPort(), needed);
+            if (assoc != null) {
+                return;
+            }
+        }
         assoc = ae.connect(remoteAE, executor);
     }
 
@@ -574,81 +661,146 @@ public class DcmSndV2 extends StorageCommitmentService {
     }
 
     public void send() {
-        for (int i = 0, n = files.size(); i < n; ++i) {
-            FileInfo info = files.get(i);
-            TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
-            if (tc == null) {
-                System.out.println();
-                System.out.println(UIDDictionary.getDictionary().prompt(
-                        info.cuid)
-                        + " not supported by " + remoteAE.getAETitle());
-                System.out.println("skip file " + info.data);
-                continue;
+        ReadAhead window = new ReadAhead();
+        executor.execute(window);
+        try {
+            for (FileInfo info = window.take(); info != END; info = window.take()) {
+                if (progress != null && progress.isCancelled()) {
+                    // stop reading ahead, and drain what was already opened
+                    window.stop();
+                    info.release();
+                    continue;
+                }
+                if (!send(info)) {
+                    info.release();
+                    if (progress != null) {
+                        progress.failed();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while sending to {}", remoteAE.getAETitle());
+            window.stop();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            assoc.waitForDimseRSP();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for C-STORE responses from {}", remoteAE.getAETitle());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Issues the C-STORE of one instance. Its response is handled asynchronously.
+     *
+     * @return false if the sub-operation could not be started
+     */
+    private boolean send(final FileInfo info) {
+        if (info.fmiEndPos < 0) {
+            // described by the index, and its header could not be read ahead
+            info.prefetch(readAheadBufferSize);
+            if (info.fmiEndPos < 0) {
+                logger.warn("Failed to parse {} - skipped", info);
+                return false;
+            }
+        }
+        TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
+        if (tc == null) {
+            logger.warn("{} not supported by {} - skipped {}", UIDDictionary.getDictionary().prompt(info.cuid),
+                    remoteAE.getAETitle(), info);
+            return false;
+        }
+
+        String tsuid = selectTransferSyntax(tc.getTransferSyntax(),
+                fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid);
+        if (tsuid == null) {
+            logger.warn("{} with {} not supported by {} - skipped {}", UIDDictionary.getDictionary().prompt(info.cuid),
+                    UIDDictionary.getDictionary().prompt(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid),
+                    remoteAE.getAETitle(), info);
+            return false;
+        }
+
+        try {
+            DimseRSPHandler rspHandler = new DimseRSPHandler() {
+                @Override
+                public void onDimseRSP(Association as, DicomObject cmd,
+                        DicomObject data) {
+                    DcmSndV2.this.onDimseRSP(cmd, info);
+                }
+            };
+
+            if(MoveOriginatorMessageID!=null)
+            {
+                int messageID = Integer.parseInt(MoveOriginatorMessageID);
+                assoc.cstore(info.cuid, info.iuid, priority, assoc.getCallingAET(), messageID,
+                    new DataWriter(info), tsuid, rspHandler);
             }
-            
-            
-            String tsuid = selectTransferSyntax(tc.getTransferSyntax(),
-                    fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid);
-            if (tsuid == null) {
-                System.out.println();
-                System.out.println(UIDDictionary.getDictionary().prompt(
-                        info.cuid)
-                        + " with "
-                        + UIDDictionary.getDictionary().prompt(
-                                fileref ? DCM4CHEE_URI_REFERENCED_TS_UID
-                                        : info.tsuid)
-                        + " not supported by " + remoteAE.getAETitle());
-                System.out.println("skip file " + info.data);
-                continue;
+            else
+            {
+                assoc.cstore(info.cuid, info.iuid, priority, 
+                    new DataWriter(info), tsuid, rspHandler);
             }
+            return true;
+        } catch (NoPresentationContextException e) {
+            logger.warn("{} - cannot send {}", e.getMessage(), info);
+        } catch (IOException e) {
+            logger.error("Failed to send {}", info, e);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while sending {}", info);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Opens the instances to send ahead of the one on the wire, so storage
+     * latency overlaps with the transfer. At most {@code readAhead} instances,
+     * each with a {@code readAheadBufferSize} buffer, are held at a time.
+     */
+    private class ReadAhead implements Runnable {
+
+        private final BlockingQueue<FileInfo> window =
+                new ArrayBlockingQueue<FileInfo>(readAhead);
+
+        private volatile boolean stopped = false;
 
+        @Override
+        public void run() {
             try {
-                DimseRSPHandler rspHandler = new DimseRSPHandler() {
-                    @Override
-                    public void onDimseRSP(Association as, DicomObject cmd,
-                            DicomObject data) {
-                        DcmSndV2.this.onDimseRSP(cmd);
+                for (FileInfo info : files) {
+                    if (stopped) {
+                        break;
+                    }
+                    info.prefetch(readAheadBufferSize);
+                    if (!offer(info)) {
+                        info.release();
+                        return;
                     }
-                };
-                
-                if(MoveOriginatorMessageID!=null)
-                {
-                    int messageID = Integer.parseInt(MoveOriginatorMessageID);
-                    assoc.cstore(info.cuid, info.iuid, priority, assoc.getCallingAET(), messageID,
-                        new DataWriter(info), tsuid, rspHandler);
-                }
-                else
-                {
-                    assoc.cstore(info.cuid, info.iuid, priority, 
-                        new DataWriter(info), tsuid, rspHandler);
                 }
-                
-                
-                
-                //assoc.cstore(info.cuid, info.iuid, priority, assoc.getCallingAET(), priority, new DataWriter(info), tsuid, rspHandler);
-                
-            } catch (NoPresentationContextException e) {
-                System.err.println("WARNING: " + e.getMessage()
-                        + " - cannot send " + info.data);
-                System.out.print('F');
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.err.println("ERROR: Failed to send - " + info.data + ": "
-                        + e.getMessage());
-                System.out.print('F');
+                offer(END);
             } catch (InterruptedException e) {
-                // should not happen
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
             }
         }
-        try {
-            assoc.waitForDimseRSP();
-        } catch (InterruptedException e) {
-            // should not happen
-            e.printStackTrace();
+
+        /** Waits for room in the window, giving up once stopped and nobody is draining it. */
+        private boolean offer(FileInfo info) throws InterruptedException {
+            while (!window.offer(info, 1, TimeUnit.SECONDS)) {
+                if (stopped) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        FileInfo take() throws InterruptedException {
+            return window.take();
+        }
+
+        void stop() {
+            stopped = true;
         }
-        
-        //TODO: PERHAPS CLEAN THE CLASS:
     }
 
     public boolean commit() {
@@ -697,7 +849,12 @@ public class DcmSndV2 extends StorageCommitmentService {
         return false;
     }
 
-    private String selectTransferSyntax(String[] available, String tsuid) {
+    /**
+     * Chooses the transfer syntax to send an instance with, among those accepted for its SOP class.
+     *
+     * @return the transfer syntax, or null if the instance cannot be sent with any of them
+     */
+    static String selectTransferSyntax(String[] available, String tsuid) {
         if (tsuid.equals(UID.ImplicitVRLittleEndian))
             return selectTransferSyntax(available, IVLE_TS);
         if (tsuid.equals(UID.ExplicitVRLittleEndian))
@@ -710,7 +867,7 @@ public class DcmSndV2 extends StorageCommitmentService {
         return null;
     }
 
-    private String selectTransferSyntax(String[] available, String[] tsuids) {
+    private static String selectTransferSyntax(String[] available, String[] tsuids) {
         for (int i = 0; i < tsuids.length; i++)
             for (int j = 0; j < available.length; j++)
                 if (available[j].equals(tsuids[i]))
@@ -719,6 +876,13 @@ public class DcmSndV2 extends StorageCommitmentService {
     }
 
     public void close() {
+        if (pooled && AssociationPool.getInstance().release(remoteAE.getAETitle(),
+                remoteConn.getHostname(), remoteConn.getPort(), assoc)) {
+            return;
+        }
+        if (!assoc.isReadyForDataTransfer()) {
+            return;
+        }
         try {
             assoc.release(false);
         } catch (InterruptedException e) {
@@ -726,6 +890,15 @@ public class DcmSndV2 extends StorageCommitmentService {
         }
     }
 
+    /**
+     * Aborts the association, after a failure that may have left it in an unknown state.
+     */
+    public void abort() {
+        if (assoc != null) {
+            assoc.abort();
+        }
+    }
+
     /**
      * @return the MoveOriginatorMessageID
      */
@@ -743,6 +916,11 @@ public class DcmSndV2 extends StorageCommitmentService {
     public static final class FileInfo {
         ByteBuffer data;
 
+        StorageInputStream source;
+
+        /** stream opened ahead of sending, handed out once by getInputStream() */
+        InputStream prefetched;
+
         String cuid;
 
         String iuid;
@@ -762,12 +940,102 @@ public class DcmSndV2 extends StorageCommitmentService {
             this.length = data.array().length;
         }
 
-        public InputStream getInputStream(){
+        public FileInfo(StorageInputStream source) {
+            this.source = source;
+            try {
+                this.length = source.getSize();
+            } catch (IOException e) {
+                this.length = 0;
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (prefetched != null) {
+                InputStream in = prefetched;
+                prefetched = null;
+                return in;
+            }
+            if (source != null) {
+                return new BufferedInputStream(source.getInputStream());
+            }
             ByteArrayInputStream inStream = new ByteArrayInputStream(data.array());
             BufferedInputStream buff = new BufferedInputStream(inStream);
             return buff;                   
-    }
+        }
 
+        /**
+         * Reads the transfer syntax, the end of the file meta information and the
+         * SOP class and instance UIDs from the start of the instance.
+         */
+        void readHeader(InputStream stream) throws IOException {
+            DicomObject dcmObj = new BasicDicomObject();
+            DicomInputStream in = new DicomInputStream(stream);
+            in.setHandler(new StopTagInputHandler(Tag.StudyDate));
+            in.readDicomObject(dcmObj, PEEK_LEN);
+            tsuid = in.getTransferSyntax().uid();
+            fmiEndPos = in.getEndOfFileMetaInfoPosition();
+            cuid = dcmObj.getString(Tag.SOPClassUID, cuid);
+            iuid = dcmObj.getString(Tag.SOPInstanceUID, iuid);
+        }
+
+        /**
+         * Opens the instance and fills the first {@code bufferSize} bytes of it.
+         * The header of an instance described by the index is parsed from that buffer.
+         */
+        void prefetch(int bufferSize) {
+            if (source == null || prefetched != null) {
+                return;
+            }
+            BufferedInputStream in = null;
+            try {
+                in = new BufferedInputStream(source.getInputStream(), bufferSize);
+                in.mark(bufferSize);
+                if (fmiEndPos < 0) {
+                    readHeader(new FilterInputStream(in) {
+                        // keeps the parser off our mark, and the stream open
+                        @Override
+                        public boolean markSupported() {
+                            return false;
+                        }
+
+                        @Override
+                        public synchronized void mark(int readlimit) {
+                        }
+
+                        @Override
+                        public synchronized void reset() throws IOException {
+                            throw new IOException("mark/reset not supported");
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    });
+                    in.reset();
+                }
+                long filled = 0, n;
+                while (filled < bufferSize && (n = in.skip(bufferSize - filled)) > 0) {
+                    filled += n;
+                }
+                in.reset();
+                prefetched = in;
+            } catch (IOException e) {
+                // it is opened again when sent, and fails there if it must
+                logger.warn("Could not read ahead {}: {}", this, e.getMessage());
+                CloseUtils.safeClose(in);
+            }
+        }
+
+        /** Closes the stream opened ahead, if it was not consumed. */
+        void release() {
+            CloseUtils.safeClose(prefetched);
+            prefetched = null;
+        }
+
+        @Override
+        public String toString() {
+            return source != null ? String.valueOf(source.getURI()) : "<in memory>";
+        }
     }
     
     
@@ -826,21 +1094,21 @@ public class DcmSndV2 extends StorageCommitmentService {
     private void promptErrRSP(String prefix, int status, FileInfo info,
             DicomObject cmd) {
         System.err.println(prefix + StringUtils.shortToHex(status) + "H for "
-                + info.data + ", cuid=" + info.cuid + ", tsuid=" + info.tsuid);
+                + info + ", cuid=" + info.cuid + ", tsuid=" + info.tsuid);
         System.err.println(cmd.toString());
     }
 
-    private void onDimseRSP(DicomObject cmd) {
+    private void onDimseRSP(DicomObject cmd, FileInfo info) {
         int status = cmd.getInt(Tag.Status);
-        int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
-        FileInfo info = files.get(msgId - 1);
         info.status = status;
         switch (status) {
         case 0:
             info.transferred = true;
             totalSize += info.length;
             ++filesSent;
-            System.out.print('.');
+            if (progress != null) {
+                progress.completed();
+            }
             break;
         case 0xB000:
         case 0xB006:
@@ -851,10 +1119,16 @@ public class DcmSndV2 extends StorageCommitmentService {
             promptErrRSP("WARNING: Received RSP with Status ", status, info,
                     cmd);
             System.out.print('W');
+            if (progress != null) {
+                progress.warning();
+            }
             break;
         default:
             promptErrRSP("ERROR: Received RSP with Status ", status, info, cmd);
             System.out.print('F');
+            if (progress != null) {
+                progress.failed();
+            }
         }
     }
 
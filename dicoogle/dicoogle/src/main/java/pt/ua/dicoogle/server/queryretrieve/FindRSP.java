@@ -270,6 +270,7 @@ public class FindRSP implements DimseRSP
             this.rsp.putInt(Tag.Status, VR.US, Status.Success);
             /** Clean pointers */
             this.mwl = null;
+            this.search.close();
             this.search = null;
             return true ;
             
@@ -307,6 +308,10 @@ public class FindRSP implements DimseRSP
     public void cancel(Association arg0) throws IOException 
     {
 
+        if (search != null)
+        {
+            search.close();
+        }
         search = null ;
         try
         {
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+/**
+ * Sub-operation counters of a C-MOVE, shared between the C-STORE sender
+ * and the {@link MoveRSP} that reports them back to the requesting AE.
+ *
+ * The sender updates the counters as the C-STORE responses arrive, while the
+ * response side blocks in {@link #awaitUpdate(long)} until there is something
+ * new to report.
+ */
+public class MoveProgress {
+
+    private int remaining = 0;
+    private int completed = 0;
+    private int warning = 0;
+    private int failed = 0;
+
+    private boolean finished = false;
+    private boolean cancelled = false;
+    /** bumped on every change, so waiters know whether anything happened */
+    private long version = 0;
+    private long reported = -1;
+
+    public synchronized void setRemaining(int remaining) {
+        this.remaining = remaining;
+        changed();
+    }
+
+    public synchronized void addRemaining(int n) {
+        this.remaining += n;
+        changed();
+    }
+
+    public synchronized void completed() {
+        this.remaining--;
+        this.completed++;
+        changed();
+    }
+
+    public synchronized void warning() {
+        this.remaining--;
+        this.warning++;
+        changed();
+    }
+
+    public synchronized void failed() {
+        this.remaining--;
+        this.failed++;
+        changed();
+    }
+
+    /** Marks the move as done. Sub-operations that were not attempted count as failed. */
+    public synchronized void finish() {
+        if (!cancelled) {
+            this.failed += this.remaining;
+            this.remaining = 0;
+        }
+        this.finished = true;
+        changed();
+    }
+
+    /** Requests that no more sub-operations are started (C-CANCEL). */
+    public synchronized void cancel() {
+        this.cancelled = true;
+        changed();
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Waits until the counters changed since the last call, or the move finished.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return true if the move is finished
+     */
+    public synchronized boolean awaitUpdate(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!finished && version == reported) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+        }
+        reported = version;
+        return finished;
+    }
+
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+
+    public synchronized int getCompleted() {
+        return completed;
+    }
+
+    public synchronized int getWarning() {
+        return warning;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    private void changed() {
+        version++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MoveProgress{remaining=" + remaining + ", completed=" + completed
+                + ", warning=" + warning + ", failed=" + failed
+                + (cancelled ? ", cancelled" : "") + '}';
+    }
+}
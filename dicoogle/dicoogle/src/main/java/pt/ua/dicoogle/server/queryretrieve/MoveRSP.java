@@ -40,11 +40,21 @@ import pt.ua.dicoogle.server.SearchDicomResult;
  */
 public class MoveRSP  implements DimseRSP 
 {
+    /** re-send the pending counts at least this often, in milliseconds */
+    private static final long PENDING_INTERVAL = 5000;
+
+    /** Warning: sub-operations complete, one or more failures */
+    private static final int SUBOPS_ONE_OR_MORE_FAILURES = 0xB000;
+
+    /** Refused: out of resources, unable to perform sub-operations */
+    private static final int SUBOPS_UNABLE_TO_PERFORM = 0xA702;
+
     DicomObject rsp = null ;
     DicomObject keys = null ;
 
     DicomObject current = null ;
     SearchDicomResult search = null ; 
+    MoveProgress progress = null ;
 
 
     public MoveRSP(DicomObject keys, DicomObject rsp)
@@ -75,9 +85,37 @@ public class MoveRSP  implements DimseRSP
             
     }
 
+    /**
+     * Response of a move that is still running: pending responses carrying the
+     * sub-operation counts are produced until {@code progress} is finished.
+     */
+    public MoveRSP(DicomObject keys, DicomObject rsp, MoveProgress progress)
+    {
+        this(keys, rsp);
+        this.progress = progress;
+    }
+
     @Override
     public boolean next() throws IOException, InterruptedException
     {
+            if (this.progress != null)
+            {
+                boolean finished = this.progress.awaitUpdate(PENDING_INTERVAL);
+                this.rsp.putInt(Tag.Status, VR.US, finished ? finalStatus() : Status.Pending);
+                if (!finished || this.progress.isCancelled())
+                {
+                    this.rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, this.progress.getRemaining());
+                }
+                else
+                {
+                    this.rsp.remove(Tag.NumberOfRemainingSuboperations);
+                }
+                this.rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, this.progress.getCompleted());
+                this.rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, this.progress.getFailed());
+                this.rsp.putInt(Tag.NumberOfWarningSuboperations, VR.US, this.progress.getWarning());
+                this.current = null;
+                return true;
+            }
   
             /** Sucess */
             this.rsp.putInt(Tag.Status, VR.US, Status.Success);
@@ -87,6 +125,20 @@ public class MoveRSP  implements DimseRSP
 
     }
 
+    private int finalStatus()
+    {
+        if (this.progress.isCancelled())
+        {
+            return Status.Cancel;
+        }
+        if (this.progress.getFailed() == 0)
+        {
+            return this.progress.getWarning() == 0 ? Status.Success : SUBOPS_ONE_OR_MORE_FAILURES;
+        }
+        return this.progress.getCompleted() + this.progress.getWarning() > 0
+                ? SUBOPS_ONE_OR_MORE_FAILURES : SUBOPS_UNABLE_TO_PERFORM;
+    }
+
     @Override
     public DicomObject getCommand()
     {
@@ -102,7 +154,11 @@ public class MoveRSP  implements DimseRSP
     @Override
     public void cancel(Association arg0) throws IOException
     {
-        // TODO
+        if (this.progress != null)
+        {
+            this.progress.cancel();
+            RetrieveScheduler.getInstance().cancel(this.progress);
+        }
     }
 
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs C-MOVE jobs on a dedicated, bounded pool of threads.
+ *
+ * Jobs are queued per requesting AE and the requesters are served in turn,
+ * so a burst of moves from one AE (e.g. prefetching) does not hold back the
+ * others. At most {@code maxPerDestination} jobs to the same destination AE
+ * run at the same time; jobs to a busy destination wait without blocking
+ * jobs to other destinations.
+ */
+public class RetrieveScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetrieveScheduler.class);
+
+    private static final int THREADS = Integer.parseInt(System.getProperty("dicoogle.retrieve.nThreads", "4"));
+    private static final int MAX_PER_DESTINATION = Integer.parseInt(System.getProperty("dicoogle.retrieve.maxPerDestination", "2"));
+
+    private static RetrieveScheduler instance = null;
+
+    public static synchronized RetrieveScheduler getInstance() {
+        if (instance == null) {
+            instance = new RetrieveScheduler(THREADS, MAX_PER_DESTINATION);
+        }
+        return instance;
+    }
+
+    private static final class Job {
+        final String requester;
+        final String destination;
+        final MoveProgress progress;
+        final Runnable task;
+
+        Job(String requester, String destination, MoveProgress progress, Runnable task) {
+            this.requester = requester;
+            this.destination = destination;
+            this.progress = progress;
+            this.task = task;
+        }
+    }
+
+    /** pending jobs of each requesting AE, in the order the requesters are served */
+    private final LinkedHashMap<String, Deque<Job>> queues = new LinkedHashMap<>();
+    /** number of running jobs of each destination AE */
+    private final Map<String, Integer> running = new HashMap<>();
+    private final int maxPerDestination;
+    private final ExecutorService pool;
+    private int queued = 0;
+
+    RetrieveScheduler(int threads, int maxPerDestination) {
+        this.maxPerDestination = Math.max(1, maxPerDestination);
+        threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "retrieve-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            pool.execute(this::work);
+        }
+    }
+
+    /**
+     * Queues a move. {@code progress} is finished once the task returns,
+     * or right away if the move is cancelled before it starts.
+     *
+     * @param requester the AE title that requested the move
+     * @param destination the AE title the instances are sent to
+     * @param progress the progress reported to the requester
+     * @param task the work of the move
+     */
+    public synchronized void submit(String requester, String destination, MoveProgress progress, Runnable task) {
+        Deque<Job> queue = queues.get(requester);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(requester, queue);
+        }
+        queue.add(new Job(requester, destination, progress, task));
+        queued++;
+        notifyAll();
+    }
+
+    /**
+     * Drops a move that did not start yet. A running move stops by itself
+     * once its progress is cancelled.
+     */
+    public synchronized void cancel(MoveProgress progress) {
+        for (Iterator<Deque<Job>> it = queues.values().iterator(); it.hasNext();) {
+            Deque<Job> queue = it.next();
+            for (Iterator<Job> jobs = queue.iterator(); jobs.hasNext();) {
+                Job job = jobs.next();
+                if (job.progress == progress) {
+                    jobs.remove();
+                    queued--;
+                    if (queue.isEmpty()) {
+                        it.remove();
+                    }
+                    progress.finish();
+                    return;
+                }
+            }
+        }
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized int getRunning(String destination) {
+        Integer n = running.get(destination);
+        return n == null ? 0 : n;
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job = take();
+                try {
+                    if (!job.progress.isCancelled()) {
+                        job.task.run();
+                    }
+                } catch (RuntimeException ex) {
+                    logger.error("C-MOVE from " + job.requester + " to " + job.destination + " failed", ex);
+                } finally {
+                    job.progress.finish();
+                    done(job);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // shutting down
+        }
+    }
+
+    /** Takes the next job in turn whose destination has a free slot. */
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            for (Iterator<Map.Entry<String, Deque<Job>>> it = queues.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Deque<Job>> e = it.next();
+                Deque<Job> queue = e.getValue();
+                for (Iterator<Job> jobs = queue.iterator(); jobs.hasNext();) {
+                    Job job = jobs.next();
+                    if (getRunning(job.destination) < maxPerDestination) {
+                        jobs.remove();
+                        queued--;
+                        // this requester goes to the back of the line
+                        it.remove();
+                        if (!queue.isEmpty()) {
+                            queues.put(e.getKey(), queue);
+                        }
+                        running.put(job.destination, getRunning(job.destination) + 1);
+                        return job;
+                    }
+                }
+            }
+            wait();
+        }
+    }
+
+    private synchronized void done(Job job) {
+        int n = getRunning(job.destination) - 1;
+        if (n > 0) {
+            running.put(job.destination, n);
+        } else {
+            running.remove(job.destination);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetrieveScheduler{queued=" + queued + ", running=" + running + '}';
+    }
+}
@@ -208,6 +208,8 @@ public class DicoogleWeb {
             createServletHandler(new UnindexServlet(), "/management/tasks/unindex"),
             createServletHandler(new RemoveServlet(), "/management/tasks/remove"),
             createServletHandler(new ServicesServlet(ServicesServlet.STORAGE), "/management/dicom/storage"),
+            createServletHandler(new IndexQueueServlet(), "/management/dicom/storage/queue"),
+            createServletHandler(new ImageCacheServlet(cache), "/management/cache/images"),
             createServletHandler(new ServicesServlet(ServicesServlet.QUERY), "/management/dicom/query"),
             createServletHandler(new ServicesServlet(ServicesServlet.PLUGIN), "/management/plugins/"),
             createServletHandler(new AETitleServlet(), "/management/settings/dicom"),
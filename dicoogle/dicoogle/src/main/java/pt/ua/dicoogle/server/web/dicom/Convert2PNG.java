@@ -18,22 +18,26 @@
  */
 package pt.ua.dicoogle.server.web.dicom;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriter;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.dcm4che2.imageio.plugins.dcm.DicomImageReadParam;
 
 import pt.ua.dicoogle.sdk.StorageInputStream;
 
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Iterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +53,19 @@ import pt.ua.dicoogle.server.web.utils.ImageLoader;
 public class Convert2PNG
 {	
     private static final Logger logger = LoggerFactory.getLogger(Convert2PNG.class);
+
+    /** format of the images rendered for the web: "png" or "jpeg" */
+    public static final String RENDER_FORMAT = System.getProperty("dicoogle.render.format", "png");
+    /**
+     * compression quality of the rendered images, from 0 to 1, or negative (the default) for the encoder's own setting.
+     * For PNG it only trades speed for size, the images staying lossless: 0 compresses the most, 1 encodes the fastest.
+     * For JPEG it is the quality of the lossy encoding: 0 gives the smallest images and 1 the most faithful ones.
+     * Ignored by encoders without a setting for it.
+     */
+    private static final float RENDER_QUALITY = Float.parseFloat(System.getProperty("dicoogle.render.quality", "-1"));
+
+    /** scaled images of the renderings in progress, kept per thread to be drawn over by the next one of the same size */
+    private static final ThreadLocal<BufferedImage> scaledBuffer = new ThreadLocal<>();
     
     private synchronized static ImageReader createDICOMImageReader() {
         Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("DICOM"); // gets the first registered ImageReader that can read DICOM data
@@ -63,6 +80,21 @@ public class Convert2PNG
         ImageWriter sWriter = it.next();
         return sWriter;
     }
+
+    private synchronized static ImageWriter createImageWriter(String format) throws IOException {
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+        if (!it.hasNext()) {
+            throw new IOException("No image writer for " + format);
+        }
+        return it.next();
+    }
+
+    /**
+     * @return the MIME type of the images rendered for the web
+     */
+    public static String getContentType() {
+        return "image/" + RENDER_FORMAT.toLowerCase();
+    }
     
 	// Transformations that can be applied on each conversion.
 	/**
@@ -192,23 +224,9 @@ public class Convert2PNG
      * @throws IOException if the I/O operations on the images fail
 	 */
 	public static ByteArrayOutputStream DICOM2PNGStream(InputStream iStream, int frameIndex) throws IOException {
-		// setup the PNG writer
-		ImageWriter writer = createPNGImageWriter();
-
-		ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it (height, weight, alpha)
-		writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
-		
-        BufferedImage image = ImageLoader.loadImage(iStream);
-
         // mount the resulting memory stream
         ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-        // write the specified frame to the resulting stream
-        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
-            writer.setOutput(outStream);
-            writer.write(image);
-        }
-
+        render(iStream, frameIndex, 0, 0, "png", result);
         return result;
 	}
 
@@ -237,24 +255,58 @@ public class Convert2PNG
             throw new IllegalArgumentException("bad height");
         }
         
-		// setup the PNG writer
-        BufferedImage image = ImageLoader.loadImage(inStream);
-        
-        image = scaleImage(image, width, height);
-
         // mount the resulting memory stream
         ByteArrayOutputStream result = new ByteArrayOutputStream();
+        render(inStream, frameIndex, width, height, "png", result);
+        return result;
+	}
 
-        // write the specified frame to the resulting stream
-        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
-            ImageWriter writer = createPNGImageWriter();
-            ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it
-            writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
-            writer.setOutput(outStream);
-            writer.write(image);
+	/**
+	 * Reads an input DICOM file and writes the desired frame, fitted into the given dimensions,
+     * straight to an output stream, in the format and compression configured for the web.
+     * The frame is decoded at the lowest resolution that still covers the dimensions.
+	 *
+	 * @param inStream an input stream for the DICOM File.
+	 * @param frameIndex the index of the frame wanted (starting with #0).
+     * @param width the maximum width of the resulting image, or 0 to keep the original size
+     * @param height the maximum height of the resulting image, or 0 to keep the original size
+     * @param out the stream to write the encoded image to, which is left open
+     * @throws IOException if the I/O operations on the images fail
+     * @see #getContentType()
+	 */
+	public static void render(InputStream inStream, int frameIndex, int width, int height, OutputStream out) throws IOException {
+        render(inStream, frameIndex, width, height, RENDER_FORMAT, out);
+	}
+
+	private static void render(InputStream inStream, int frameIndex, int width, int height, String format, OutputStream out) throws IOException {
+        BufferedImage image = ImageLoader.loadImage(inStream, frameIndex, width, height);
+        if (image == null) {
+            throw new IOException("No image in frame " + frameIndex);
+        }
+        if (width > 0 && height > 0) {
+            image = fit(image, width, height, true);
         }
 
-        return result;
+        ImageWriter writer = createImageWriter(format);
+        ImageWriteParam writeParams = writer.getDefaultWriteParam();
+        if (writeParams.canWriteProgressive()) {
+            // interlacing makes the encoding slower and the images larger
+            writeParams.setProgressiveMode(ImageWriteParam.MODE_DISABLED);
+        }
+        if (RENDER_QUALITY >= 0 && writeParams.canWriteCompressed()) {
+            writeParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (writeParams.getCompressionType() == null) {
+                writeParams.setCompressionType(writeParams.getCompressionTypes()[0]);
+            }
+            writeParams.setCompressionQuality(Math.min(1.0f, RENDER_QUALITY));
+        }
+        // buffered in memory rather than in a temporary file
+        try (ImageOutputStream outStream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(outStream);
+            writer.write(null, new IIOImage(image, null, null), writeParams);
+        } finally {
+            writer.dispose();
+        }
 	}
 
 	/**
@@ -311,12 +363,7 @@ public class Convert2PNG
 		if (width <= 0)
 			return image;
 
-		Image scaledImage = image.getScaledInstance(width, -1, Image.SCALE_SMOOTH); // scale the input, smooth scaled
-		BufferedImage result = new BufferedImage(scaledImage.getWidth(null), scaledImage.getHeight(null), BufferedImage.TYPE_INT_RGB); // create the output image
-
-		result.getGraphics().drawImage(scaledImage, 0, 0, null); // draw the scaled image onto the output
-
-		return result;
+		return resize(image, width, Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth())), false);
 	}
 
 	/**
@@ -331,11 +378,7 @@ public class Convert2PNG
 		if (height <= 0)
 			return image;
 
-		Image scaledImage = image.getScaledInstance(-1, height, Image.SCALE_SMOOTH); // scale the input, smooth scaled
-		BufferedImage result = new BufferedImage(scaledImage.getWidth(null), scaledImage.getHeight(null), BufferedImage.TYPE_INT_RGB); // create the output image
-		result.getGraphics().drawImage(scaledImage, 0, 0, null); // draw the scaled image onto the output
-
-		return result;
+		return resize(image, Math.max(1, (int) Math.round((double) image.getWidth() * height / image.getHeight())), height, false);
 	}
 
 	/**
@@ -350,12 +393,7 @@ public class Convert2PNG
 		if ((percent <= 0.0F) || (percent == 1.0F)) // if the scale is either null, negative or none at all return the original image
 			return image;
 
-		Image scaledImage = image.getScaledInstance((int) (percent * image.getWidth()), -1, Image.SCALE_SMOOTH); // scale the input, smooth scaled
-		BufferedImage result = new BufferedImage(scaledImage.getWidth(null), scaledImage.getHeight(null), BufferedImage.TYPE_INT_RGB); // create the output image
-
-		result.getGraphics().drawImage(scaledImage, 0, 0, null); // draw the scaled image onto the output
-
-		return result;
+		return scaleImageByWidth(image, Math.max(1, (int) (percent * image.getWidth())));
 	}
 
     /**
@@ -382,10 +420,51 @@ public class Convert2PNG
             throw new IllegalArgumentException("illegal height dimension: " + height);
         }
         
-        if (width < height) {
-            return scaleImageByHeight(image, height);
-        } else {
-            return scaleImageByWidth(image, width);
-        }
+        return fit(image, width, height, false);
 	}
+
+    private static BufferedImage fit(BufferedImage image, int width, int height, boolean reuse) {
+        double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+        int w = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        if (w == image.getWidth() && h == image.getHeight()) {
+            return image;
+        }
+        return resize(image, w, h, reuse);
+    }
+
+    /**
+     * Resizes an image with bilinear interpolation. Large reductions are done in halving steps,
+     * so that every source pixel still counts. Grayscale images stay grayscale.
+     *
+     * @param reuse whether the result may be drawn over the buffer of the previous call in this thread;
+     *   only for images that are encoded right away
+     */
+    private static BufferedImage resize(BufferedImage image, int width, int height, boolean reuse) {
+        int type = image.getColorModel().getNumComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = draw(current, new BufferedImage(current.getWidth() / 2, current.getHeight() / 2, type));
+        }
+
+        BufferedImage result = reuse ? scaledBuffer.get() : null;
+        if (result == null || result.getWidth() != width || result.getHeight() != height || result.getType() != type) {
+            result = new BufferedImage(width, height, type);
+            if (reuse) {
+                scaledBuffer.set(result);
+            }
+        }
+        return draw(current, result);
+    }
+
+    private static BufferedImage draw(BufferedImage source, BufferedImage target) {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, target.getWidth(), target.getHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
 }
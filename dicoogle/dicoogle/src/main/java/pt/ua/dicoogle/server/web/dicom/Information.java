@@ -23,7 +23,6 @@ import java.io.StringWriter;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 
 import org.jdom2.Document;
@@ -34,6 +33,7 @@ import org.jdom2.output.XMLOutputter;
 import com.google.common.base.CharMatcher;
 import java.util.List;
 
+import pt.ua.dicoogle.core.query.UIDResolver;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
@@ -72,92 +72,21 @@ public class Information
 	 */
 	public static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers)
 	{
-        System.err.printf("getFileFromSOPInstanceUID(%s, %s)\n", sopInstanceUID, providers);
-		if (sopInstanceUID == null)
+		URI uri = UIDResolver.getInstance().resolve(sopInstanceUID, providers);
+		if (uri == null)
 			return null;
-        
-        if (providers == null) {
-            providers = PluginController.getInstance().getQueryProvidersName(true);
-        }
-
-		String query = "SOPInstanceUID:" + sopInstanceUID;
-
-		CountDownLatch latch = new CountDownLatch(1);	
-		MyHolder holder= new MyHolder(latch);
-		PluginController.getInstance().query(holder, providers, query, new HashMap<String, String>());
 
-		try {
-			latch.await();
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		
-		try {
-			latch.await();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		StorageInterface str = PluginController.getInstance().getStorageForSchema(uri);
+		if (str == null)
+			return null;
+		for (StorageInputStream r : str.at(uri)) {
+			return r;
 		}
-		
-        return holder.getRet();
+		// the file is gone, do not point to it again
+		UIDResolver.getInstance().invalidate(uri);
+		return null;
 	}
-	
-	private static class MyHolder extends JointQueryTask{
-		private StorageInputStream ret = null;
-		private CountDownLatch latch;		
-		
-		@Override
-		public void onReceive(Task<Iterable<SearchResult>> e) {
-			try {		
-				URI uri= null;
-				 Iterable<SearchResult> itResults = e.get();
-				 
-				 for(SearchResult r : itResults){
-			        	if(uri == null)
-			        		uri = r.getURI();
-			            System.out.println("URI: "+uri.toString());
-			        }
-			        
-			        if(uri != null){
-			        	StorageInterface str = PluginController.getInstance().getStorageForSchema(uri);
-			            if(str != null){
-			            	Iterable<StorageInputStream> stream = str.at(uri);
-			            	for( StorageInputStream r : stream){
-			            		ret = r;
-			            		
-			            		stopAllTaks();
-			            		
-			            		latch.countDown();
-			            		
-				            	return;
-				            }
-			            }
-			        }
-			} catch (InterruptedException | ExecutionException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			}
-		}
-		
-		public MyHolder(CountDownLatch latch) {
-			super();
-			this.latch = latch;
-		}
-
-		private void stopAllTaks() {
-			this.cancel(true);
-		}
 
-		@Override
-		public void onCompletion() {
-			latch.countDown();
-		}
-
-		public StorageInputStream getRet() {
-			return ret;
-		}
-	}
 	/**
 	 * Based on a SOP Instance UID returns a hash table containing all name and value tag pairs for the respective .dcm file.
      * This method issues all available query providers, see {@link Information#getFileFromSOPInstanceUID(java.lang.String, java.util.List)}
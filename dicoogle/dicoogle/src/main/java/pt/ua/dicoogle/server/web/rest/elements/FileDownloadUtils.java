@@ -27,8 +27,6 @@ package pt.ua.dicoogle.server.web.rest.elements;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -38,12 +36,9 @@ import org.apache.commons.io.IOUtils;
 import org.restlet.data.Disposition;
 import org.restlet.data.MediaType;
 import org.restlet.representation.OutputRepresentation;
+import pt.ua.dicoogle.core.query.UIDResolver;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
-import pt.ua.dicoogle.server.web.rest.RestDimResource;
 import pt.ua.dicoogle.server.web.rest.RestFileResource;
 
 /**
@@ -53,34 +48,17 @@ import pt.ua.dicoogle.server.web.rest.RestFileResource;
 public class FileDownloadUtils {
     
     public static OutputRepresentation gerFileRepresentation(String SOPInstanceUID) {
-        String query = "SOPInstanceUID:" + SOPInstanceUID;
-        
-        HashMap<String, String> extraFields = new HashMap<>();
-        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
-        
         PluginController pc = PluginController.getInstance();
-        JointQueryTask task = new MyHolder();
-        pc.queryAll(task, query, extraFields);
-        Iterable<SearchResult> queryResults = null;
-        try {
-            queryResults = task.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            LoggerFactory.getLogger(RestFileResource.class).error(ex.getMessage(), ex);
+        URI fileURI = UIDResolver.getInstance().resolve(SOPInstanceUID);
+        if (fileURI == null)
             return null;
-        }
-        
-        if(!queryResults.iterator().hasNext())
-            return null;
-        
-        URI fileURI = null;
-        for (SearchResult r : queryResults) {
-            LoggerFactory.getLogger(RestDimResource.class).error(r.getURI().toString());
-            fileURI = r.getURI();
-        }
 
         Iterable<StorageInputStream> str = pc.resolveURI(fileURI);
-        if(!str.iterator().hasNext())
+        if(!str.iterator().hasNext()) {
+            // the file is gone, do not point to it again
+            UIDResolver.getInstance().invalidate(fileURI);
             return null;
+        }
         
         for(StorageInputStream s : str){
             MyOutput out = new MyOutput(s, MediaType.register("application/dicom", 
@@ -101,16 +79,6 @@ public class FileDownloadUtils {
         return null;
     }
         
-    private static class MyHolder extends JointQueryTask {
-         
-        @Override
-        public void onCompletion() {
-        }
-
-        @Override
-        public void onReceive(Task<Iterable<SearchResult>> e) {
-        }
-    }    
      
      private static class MyOutput extends OutputRepresentation{
 
@@ -18,7 +18,6 @@
  */
 package pt.ua.dicoogle.server.web.servlets;
 
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 
 import javax.servlet.ServletException;
@@ -28,12 +27,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
 import javax.servlet.ServletOutputStream;
 
@@ -41,18 +40,17 @@ import net.sf.json.JSONObject;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.query.UIDResolver;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.sdk.utils.QueryParseException;
 import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
 import pt.ua.dicoogle.server.web.dicom.Information;
 import pt.ua.dicoogle.server.web.utils.LocalImageCache;
 import pt.ua.dicoogle.server.web.utils.ResponseUtil;
+import pt.ua.dicoogle.server.web.utils.ThumbnailStore;
 
 /**
  * Handles the requests for DICOM frames, returning them as PNG images.
@@ -108,6 +106,21 @@ public class ImageServlet extends HttpServlet
         } else {
             frame = Integer.parseInt(sFrame);
         }
+
+        // thumbnails rendered when the instance was received need no query nor decoding
+        if (thumbnail && frame == 0 && sopInstanceUID != null
+                && ServerSettingsManager.getSettings().getArchiveSettings().getSaveThumbnails()) {
+            int thumbSize = ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize();
+            byte[] stored = ThumbnailStore.getInstance().get(sopInstanceUID, thumbSize, Convert2PNG.RENDER_FORMAT);
+            if (stored != null) {
+                response.setContentType(Convert2PNG.getContentType());
+                response.setContentLength(stored.length);
+                try (ServletOutputStream out = response.getOutputStream()) {
+                    out.write(stored);
+                }
+                return;
+            }
+        }
         
         StorageInputStream imgFile;
         if (sopInstanceUID != null) {
@@ -147,7 +160,7 @@ public class ImageServlet extends HttpServlet
 
             try {
                 InputStream istream = cache.get(imgFile.getURI(), frame, thumbnail);
-                response.setContentType("image/png");
+                response.setContentType(Convert2PNG.getContentType());
                 try(ServletOutputStream out = response.getOutputStream()) {
                     IOUtils.copy(istream, out);
                 }
@@ -160,14 +173,11 @@ public class ImageServlet extends HttpServlet
             }
             
         } else {
-            // if the cache is invalid or not running convert the image and return it "on-the-fly"
+            // if the cache is invalid or not running convert the image and stream it "on-the-fly"
             try {
-                ByteArrayOutputStream pngStream = getPNGStream(imgFile, frame, thumbnail);
-                response.setContentType("image/png"); // set the appropriate type for the PNG image
-                response.setContentLength(pngStream.size()); // set the image size
+                response.setContentType(Convert2PNG.getContentType()); // set the appropriate type for the rendered image
                 try (ServletOutputStream out = response.getOutputStream()) {
-                    pngStream.writeTo(out);
-                    pngStream.flush();
+                    render(imgFile, frame, thumbnail, out);
                 }
             } catch (IOException ex) {
                 logger.warn("Could not convert the image", ex);
@@ -176,16 +186,14 @@ public class ImageServlet extends HttpServlet
         }
     }
     
-    private ByteArrayOutputStream getPNGStream(StorageInputStream imgFile, int frame, boolean thumbnail) throws IOException {
-        ByteArrayOutputStream pngStream;
+    private void render(StorageInputStream imgFile, int frame, boolean thumbnail, OutputStream out) throws IOException {
         if (thumbnail) {
             // retrieve thumbnail dimension settings
             int thumbSize = ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize();
-            pngStream = Convert2PNG.DICOM2ScaledPNGStream(imgFile, frame, thumbSize, thumbSize);
+            Convert2PNG.render(imgFile.getInputStream(), frame, thumbSize, thumbSize, out);
         } else {
-            pngStream = Convert2PNG.DICOM2PNGStream(imgFile, frame);
+            Convert2PNG.render(imgFile.getInputStream(), frame, 0, 0, out);
         }
-        return pngStream;
     }
 
 	@Override
@@ -221,35 +229,20 @@ public class ImageServlet extends HttpServlet
 
     private static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers) throws IOException {
         // TODO use only DIM sources?
-        JointQueryTask qt = new JointQueryTask() {
-            @Override
-            public void onCompletion() {
-            }
-            @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {
-            }
-        };
-        try {
-            if (providers == null) {
-                providers = PluginController.getInstance().getQueryProvidersName(true);
-            }
-            Iterator<SearchResult> it = PluginController.getInstance()
-                    .query(qt, providers, "SOPInstanceUID:" + sopInstanceUID).get().iterator();
-            if (!it.hasNext()) {
-                throw new IOException("No such image of SOPInstanceUID " + sopInstanceUID);
-            }
-            SearchResult res = it.next();
-            StorageInterface storage = PluginController.getInstance().getStorageForSchema(res.getURI());
-            if (storage == null) {
-                throw new IOException("Unsupported file scheme");
-            }
-            Iterator<StorageInputStream> store = storage.at(res.getURI()).iterator();
-            if (!store.hasNext()) {
-                throw new IOException("No storage item found");
-            }
-            return store.next();
-        } catch (InterruptedException | ExecutionException ex) {
-            throw new IOException(ex);
-        }        
+        URI uri = UIDResolver.getInstance().resolve(sopInstanceUID, providers);
+        if (uri == null) {
+            throw new IOException("No such image of SOPInstanceUID " + sopInstanceUID);
+        }
+        StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+        if (storage == null) {
+            throw new IOException("Unsupported file scheme");
+        }
+        Iterator<StorageInputStream> store = storage.at(uri).iterator();
+        if (!store.hasNext()) {
+            // the file is gone, do not point to it again
+            UIDResolver.getInstance().invalidate(uri);
+            throw new IOException("No storage item found");
+        }
+        return store.next();
     }
 }
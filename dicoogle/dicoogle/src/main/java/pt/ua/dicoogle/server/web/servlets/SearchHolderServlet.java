@@ -28,12 +28,11 @@ import org.apache.commons.collections.KeyValue;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimBuilder;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.server.web.dicom.SearchHolder;
 import pt.ua.dicoogle.server.web.utils.DIM2JSONConverter;
@@ -78,16 +77,12 @@ public class SearchHolderServlet extends HttpServlet
 
 		int eventID = 0;
 		for(KeyValue resp : it){
-			List<SearchResult> results = new ArrayList<>();
-			
 			String provider = resp.getKey().toString();
 			@SuppressWarnings("unchecked")
 			Iterable<SearchResult> result = (Iterable<SearchResult>) resp.getValue();
-			for(SearchResult r : result )
-				results.add(r);
 			
 			try {
-				DIMGeneric generic = new DIMGeneric(results);
+				DIMGeneric generic = new DIMGeneric(new DimBuilder().addAll(result));
 				
 				JSONObject obj = new JSONObject();
 				obj.put("provider", provider);
@@ -24,12 +24,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 
-import com.google.common.collect.ImmutableList;
 import jdk.nashorn.internal.ir.annotations.Immutable;
 import net.sf.json.JSONArray;
 import org.apache.commons.collections.ArrayStack;
@@ -44,6 +44,9 @@ import org.apache.commons.lang3.StringUtils;
 
 import pt.ua.dicoogle.core.QueryExpressionBuilder;
 import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimBuilder;
+import pt.ua.dicoogle.core.query.QueryPage;
+import pt.ua.dicoogle.core.query.UIDResolver;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
@@ -60,6 +63,11 @@ public class SearchServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory.getLogger(SearchServlet.class);
 
     private static final long serialVersionUID = 1L;
+
+    /** Page size of cursor-based searches when psize is not given */
+    private static final int DEFAULT_PAGE_SIZE = Integer.parseInt(System.getProperty("dicoogle.search.pageSize", "100"));
+    /** Results of one request handed to the UID resolver at most, so that a broad listing does not evict its working set */
+    private static final int MAX_REMEMBERED = Integer.parseInt(System.getProperty("dicoogle.search.maxRemembered", "1000"));
   
     private final Collection<String> DEFAULT_FIELDS = Arrays.asList(
             "SOPInstanceUID", "StudyInstanceUID", "SeriesInstanceUID", "PatientID",
@@ -85,6 +93,10 @@ public class SearchServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         /*
          Example: http://localhost:8080/search?query=wrix&provider=lucene&psize=10&offset=10
+         Cursor-based: http://localhost:8080/search?query=wrix&psize=10&cursor=
+           then pass the nextCursor of each response as the cursor of the following request.
+           Only the first page is counted unless count is given. Providers which cannot page
+           their results are traversed up to the cursor, so with those a page costs O(offset).
          */
         response.setContentType("application/json");
 
@@ -132,6 +144,37 @@ public class SearchServlet extends HttpServlet {
             depth = 4;
         }
 
+        String paramCursor = request.getParameter("cursor");
+        if (paramCursor != null) {
+            if (this.searchType != SearchType.ALL) {
+                sendError(response, 400, "Parameter cursor is only applicable to /search endpoint");
+                return;
+            }
+            if (request.getParameter("offset") != null) {
+                sendError(response, 400, "Parameters offset and cursor cannot be used together");
+                return;
+            }
+            if (request.getParameter("psize") != null && psize == 0) {
+                sendError(response, 400, "Invalid parameter psize: must be a positive integer when paging with a cursor");
+                return;
+            }
+        }
+        final boolean count;
+        final boolean exactCount;
+        String paramCount = request.getParameter("count");
+        if (paramCount == null) {
+            // the total does not change from page to page, so by default it is only counted once
+            paramCount = paramCursor == null || paramCursor.isEmpty() ? "exact" : "none";
+        }
+        switch (paramCount.toLowerCase()) {
+            case "exact": count = true; exactCount = true; break;
+            case "estimate": count = true; exactCount = false; break;
+            case "none": count = false; exactCount = false; break;
+            default:
+            sendError(response, 400, "Invalid parameter count: must be 'exact', 'estimate' or 'none'");
+            return;
+        }
+
         // retrieve desired fields
         final Set<String> actualFields;
         if (fields == null || fields.length == 0) {
@@ -202,6 +245,32 @@ public class SearchServlet extends HttpServlet {
             }
         }
         
+        if (paramCursor != null) {
+            PageCursor cursor;
+            if (paramCursor.isEmpty()) {
+                cursor = new PageCursor(providerList);
+            } else {
+                try {
+                    cursor = PageCursor.decode(paramCursor);
+                } catch (RuntimeException ex) {
+                    sendError(response, 400, "Invalid parameter cursor");
+                    return;
+                }
+            }
+            int limit = request.getParameter("psize") != null ? psize : DEFAULT_PAGE_SIZE;
+            try {
+                this.writePagedResponse(response, query, extraFields, cursor, limit, count, exactCount);
+            } catch (QueryParseException ex) {
+                sendError(response, 400, ex.getMessage());
+            } catch (RuntimeException ex) {
+                logger.error("Failed to retrieve results", ex);
+                sendError(response, 500, "Could not generate results");
+            } catch (JSONException e) {
+                logger.error("Failed to serialize results", e);
+            }
+            return;
+        }
+
         JointQueryTask queryTaskHolder = new JointQueryTask() {
 
             @Override
@@ -219,7 +288,7 @@ public class SearchServlet extends HttpServlet {
 
             if (this.searchType == SearchType.PATIENT) {
                 try {
-                    DIMGeneric dimModel = new DIMGeneric(ImmutableList.copyOf(results));
+                    DIMGeneric dimModel = new DIMGeneric(new DimBuilder().addAll(results));
                     elapsedTime = System.currentTimeMillis() - elapsedTime;
                     response.getWriter().write(dimModel.getJSON());
                     //dimModel.writeJSON(response.getWriter(), elapsedTime, depth, offset, psize);
@@ -253,13 +322,7 @@ public class SearchServlet extends HttpServlet {
         for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); ++count) {
             SearchResult res = it.next();
             if (count < offset || count >= offset + psize) continue;
-            writer.object() // begin result
-                    .key("uri").value(res.getURI().toString())
-                    .key("fields").object();
-            for (Map.Entry<String, Object> e : res.getExtraData().entrySet()) {
-                writer.key(e.getKey()).value(String.valueOf(e.getValue()).trim());
-            }
-            writer.endObject().endObject(); // end result
+            writeResult(writer, res, count - offset < MAX_REMEMBERED);
         }
         // other fields
         writer.endArray() // end results
@@ -268,6 +331,121 @@ public class SearchServlet extends HttpServlet {
         writer.endObject(); // end output
     }
 
+    /**
+     * Writes one page of results, fetched from one query provider after the other, starting at the given cursor.
+     * Only the results in the page are retrieved, and they are flushed to the client as each provider returns them.
+     * The total number of results is counted in the background while the page is written.
+     */
+    private void writePagedResponse(HttpServletResponse resp, String query, HashMap<String, String> extraFields,
+            PageCursor cursor, int limit, boolean count, boolean exactCount) throws IOException, JSONException {
+        long elapsedTime = System.currentTimeMillis();
+        PluginController pc = PluginController.getInstance();
+        // fetched before writing anything, so that an invalid cursor can still be reported
+        QueryPage page = cursor.index < cursor.providers.size()
+                ? pc.queryPage(cursor.providers.get(cursor.index), query, cursor.cursor, limit, extraFields)
+                : new QueryPage(Collections.emptyList(), null);
+        Task<Long> countTask = count ? pc.count(cursor.providers, query, exactCount, extraFields) : null;
+
+        JSONWriter writer = new JSONWriter(resp.getWriter());
+        writer.object(); //begin output
+        writer.key("results").array(); // begin results
+        int remaining = limit;
+        int written = 0;
+        while (true) {
+            for (SearchResult res : page.getResults()) {
+                writeResult(writer, res, written++ < MAX_REMEMBERED);
+            }
+            resp.getWriter().flush();
+            remaining -= page.getResults().size();
+            if (page.isLast()) {
+                cursor.index++;
+                cursor.cursor = null;
+            } else if (page.getResults().isEmpty()) {
+                break; // no progress, leave it for the next request
+            } else {
+                cursor.cursor = page.getNextCursor();
+            }
+            if (remaining <= 0 || cursor.index >= cursor.providers.size()) {
+                break;
+            }
+            page = pc.queryPage(cursor.providers.get(cursor.index), query, cursor.cursor, remaining, extraFields);
+        }
+        writer.endArray() // end results
+                .key("nextCursor").value(cursor.index < cursor.providers.size() ? cursor.encode() : null);
+
+        if (countTask != null) {
+            try {
+                long total = countTask.get();
+                if (total >= 0) {
+                    writer.key("numResults").value(total)
+                            .key("numResultsExact").value(exactCount);
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                logger.warn("Failed to count results", ex);
+            }
+        }
+        elapsedTime = System.currentTimeMillis() - elapsedTime;
+        writer.key("elapsedTime").value(elapsedTime);
+        writer.endObject(); // end output
+    }
+
+    /**
+     * @param remember whether to let the UID resolver remember the location of the result
+     */
+    private static void writeResult(JSONWriter writer, SearchResult res, boolean remember) throws JSONException {
+        if (remember) {
+            UIDResolver.getInstance().remember(res);
+        }
+        writer.object() // begin result
+                .key("uri").value(res.getURI().toString())
+                .key("fields").object();
+        for (Map.Entry<String, Object> e : res.getExtraData().entrySet()) {
+            writer.key(e.getKey()).value(String.valueOf(e.getValue()).trim());
+        }
+        writer.endObject().endObject(); // end result
+    }
+
+    /**
+     * Position of a cursor-based search: the providers being queried, the one currently being paged through,
+     * and that provider's own cursor. Clients see it as an opaque token.
+     */
+    private static final class PageCursor {
+        private final List<String> providers;
+        private int index;
+        private String cursor;
+
+        PageCursor(List<String> providers) {
+            this.providers = new ArrayList<>(providers);
+        }
+
+        String encode() {
+            JSONObject obj = new JSONObject();
+            obj.put("providers", providers);
+            obj.put("index", index);
+            if (cursor != null) {
+                obj.put("cursor", cursor);
+            }
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(obj.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        static PageCursor decode(String token) {
+            JSONObject obj = JSONObject.fromObject(
+                    new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            List<String> providers = new ArrayList<>();
+            for (Object p : obj.getJSONArray("providers")) {
+                providers.add(p.toString());
+            }
+            PageCursor c = new PageCursor(providers);
+            c.index = obj.getInt("index");
+            if (c.index < 0 || c.index > providers.size()) {
+                throw new IllegalArgumentException("Invalid provider index " + c.index);
+            }
+            c.cursor = obj.has("cursor") ? obj.getString("cursor") : null;
+            return c;
+        }
+    }
+
     private int getReqParameter(HttpServletRequest req, String name, int defaultValue) throws NumberFormatException {
         String param = req.getParameter(name);
         int val = defaultValue;
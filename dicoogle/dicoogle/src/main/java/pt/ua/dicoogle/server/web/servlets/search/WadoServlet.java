@@ -19,9 +19,7 @@
 package pt.ua.dicoogle.server.web.servlets.search;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.ExecutionException;
+import java.net.URI;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -30,10 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 
-import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.core.query.UIDResolver;
 
 /**
  * @author Frederico Silva <fredericosilva@ua.pt>
@@ -52,43 +47,12 @@ public class WadoServlet extends HttpServlet{
             return;
         }
 		
-		String query = "SOPInstanceUID:" + uid;
-		
-		HashMap<String, String> extraFields = new HashMap<>();
-        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
-		
-		PluginController pc = PluginController.getInstance();
-        JointQueryTask task = new MyHolder();
-        
-        Iterable<SearchResult> results = null;
-        try {
-			results = pc.queryAll(task, query, extraFields).get();
-		} catch (InterruptedException | ExecutionException e) {
-			e.printStackTrace();
-		}
-        
+		URI resolved = UIDResolver.getInstance().resolve(uid);
         
-        String uri ="not";
-        
-        ArrayList<SearchResult> resultsArr = new ArrayList<>();
-        for (SearchResult r : results) {
-            resultsArr.add(r);
-            
-            uri = r.getURI().toURL().toString();
-        }
+        String uri = resolved == null ? "not" : resolved.toURL().toString();
         
         resp.getWriter().print(uri);
 	}
 	
-	 private static class MyHolder extends JointQueryTask {
-         
-	        @Override
-	        public void onCompletion() {
-	        }
-
-	        @Override
-	        public void onReceive(Task<Iterable<SearchResult>> e) {
-	        }
-	    }    
 
 }
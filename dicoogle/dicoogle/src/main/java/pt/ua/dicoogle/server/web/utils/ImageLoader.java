@@ -54,6 +54,22 @@ public class ImageLoader {
      * @throws IOException if the image format is not supported or another IO issue occurred
      */
     public static BufferedImage loadImage(InputStream inputStream) throws IOException {
+        return loadImage(inputStream, 0, 0, 0);
+    }
+
+    /**
+     * Obtain a frame of an image from an ordinary input stream, to be shown within the given dimensions.
+     * When the image is much larger than that, only every n-th pixel is decoded, so the result is at
+     * least as large as the dimensions but may need a final resize.
+     *
+     * @param inputStream the input stream to retrieve the image from
+     * @param frame the index of the frame wanted (starting with #0)
+     * @param width the width the image is meant for, or 0 for the full resolution
+     * @param height the height the image is meant for, or 0 for the full resolution
+     * @return a buffered image
+     * @throws IOException if the image format is not supported or another IO issue occurred
+     */
+    public static BufferedImage loadImage(InputStream inputStream, int frame, int width, int height) throws IOException {
         BufferedImage image;
         try (ImageInputStream imageInputStream
                 = ImageIO.createImageInputStream(inputStream)) {
@@ -64,18 +80,35 @@ public class ImageLoader {
             }
             ImageReader reader = readers.next();
             reader.setInput(imageInputStream, false);
-            if (reader.getFormatName().equalsIgnoreCase("DICOM")) {
-                ImageReadParam param = reader.getDefaultReadParam();
-                image = reader.read(0, param);
-            } else {
-                image = reader.read(0);
-            }
+            image = read(reader, frame, width, height);
         } catch (org.dcm4che2.data.ConfigurationError | IOException ex) {
             LoggerFactory.getLogger(ImageLoader.class).debug("Failed to load image reader, attempting special DICOM reading mechanism", ex);
-            image = loadDICOMImage(inputStream);
+            image = loadDICOMImage(inputStream, frame, width, height);
         }
         return image;
     }
+
+    private static BufferedImage read(ImageReader reader, int frame, int width, int height) throws IOException {
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (width > 0 && height > 0) {
+                int subsampling = getSubsampling(reader.getWidth(frame), reader.getHeight(frame), width, height);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+            }
+            return reader.read(frame, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @return the largest subsampling of the source that still covers the given dimensions
+     */
+    static int getSubsampling(int sourceWidth, int sourceHeight, int width, int height) {
+        return Math.max(1, Math.min(sourceWidth / width, sourceHeight / height));
+    }
     
     /**
      * Obtain an image from a Dicoogle storage input stream. This method will attempt to automatically use the
@@ -98,14 +131,27 @@ public class ImageLoader {
      * @throws IOException if the image format is not DICOM or another IO issue occurred
      */
     public static BufferedImage loadDICOMImage(InputStream inputStream) throws IOException {
+        return loadDICOMImage(inputStream, 0, 0, 0);
+    }
+
+    /**
+     * Obtain a frame of a DICOM image from an orginary input stream, to be shown within the given dimensions.
+     *
+     * @param inputStream the input stream to retrieve the DICOM image from
+     * @param frame the index of the frame wanted (starting with #0)
+     * @param width the width the image is meant for, or 0 for the full resolution
+     * @param height the height the image is meant for, or 0 for the full resolution
+     * @return a buffered image
+     * @throws IOException if the image format is not DICOM or another IO issue occurred
+     * @see #loadImage(InputStream, int, int, int)
+     */
+    public static BufferedImage loadDICOMImage(InputStream inputStream, int frame, int width, int height) throws IOException {
         try (ImageInputStream imageInputStream
                 = ImageIO.createImageInputStream(inputStream)) {
             Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName("DICOM");
             ImageReader reader = iter.next();
-            ImageReadParam param = reader.getDefaultReadParam();
             reader.setInput(imageInputStream, false);
-            BufferedImage img = reader.read(0, param);
-            return img;
+            return read(reader, frame, width, height);
         }
     }
     
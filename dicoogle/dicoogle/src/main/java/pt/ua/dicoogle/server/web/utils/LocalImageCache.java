@@ -19,34 +19,54 @@
 package pt.ua.dicoogle.server.web.utils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collection;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.sf.json.JSONObject;
 import org.apache.commons.codec.digest.DigestUtils;
-import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Handles the caching of PNG images generated by the Image Servlet.
- * The cached images are kept inside a temporary directory created inside the user (or system) temporary directory.
- * These are maintained for a maximum period of time if they are not used, and deleted on a regular basis to save disk space while not hurting the cache performance.
+ *
+ * The images rendered by the underlying retriever, either full size or thumbnails, are kept in two tiers:
+ * the most recently used ones in memory, up to {@code dicoogle.imageCache.memorySize} bytes,
+ * and the others in a temporary directory created inside the user (or system) temporary directory,
+ * spread over 256 sub-directories, up to {@code dicoogle.imageCache.diskSize} bytes.
+ * The least recently used images are evicted first, and the ones not used for a maximum period of time
+ * are deleted on a regular basis. Concurrent requests for an image that is not cached share a single rendering.
  *
  * @author António Novo <antonio.novo@ua.pt>
  */
 public class LocalImageCache extends Thread implements ImageRetriever
 {
+	private static final Logger logger = LoggerFactory.getLogger(LocalImageCache.class);
+
+	private static final long MEMORY_SIZE = Long.parseLong(System.getProperty("dicoogle.imageCache.memorySize", String.valueOf(64L * 1024 * 1024)));
+	private static final long DISK_SIZE = Long.parseLong(System.getProperty("dicoogle.imageCache.diskSize", String.valueOf(1024L * 1024 * 1024)));
+	private static final String SUFFIX = ".png";
+
 	/**
 	 * The number of milliseconds to wait between pool cache directory pooling.
 	 */
@@ -59,9 +79,39 @@ public class LocalImageCache extends Thread implements ImageRetriever
 	private final File cacheFolder;
 	private volatile boolean running;
 
-	private final ConcurrentMap<String,File> filesBeingWritten;
-    
-    private final ImageRetriever under;
+	/** rendered images kept in memory, in order of access */
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes = 0;
+
+	/** rendered images kept on disk, in order of access */
+	private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long diskBytes = 0;
+
+	/** renderings in progress, shared by the requests for the same image */
+	private final ConcurrentMap<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong memoryEvictions = new AtomicLong();
+	private final AtomicLong diskEvictions = new AtomicLong();
+
+	private final ImageRetriever under;
+	/** the capacity of each tier, in bytes */
+	private final long memorySize;
+	private final long diskSize;
+
+	private static class DiskEntry
+	{
+		final long size;
+		long lastAccess;
+
+		DiskEntry(long size, long lastAccess) {
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
 
 	/**
 	 * Creates a local image cache that pools its cache directory at interval rates and deletes files older than maxAge.
@@ -69,12 +119,17 @@ public class LocalImageCache extends Thread implements ImageRetriever
 	 * @param name the name of the cache directory.
 	 * @param interval the number of seconds to wait between pool cache directory pooling.
 	 * @param maxAge the number of seconds that a file can stay in the cache without being used/read.
-     * @param under the underlying image retriever
+	 * @param under the underlying image retriever
 	 */
 	public LocalImageCache(String name, int interval, int maxAge, ImageRetriever under)
 	{
-        super("cache-" + name);
-        Objects.requireNonNull(under);
+		this(name, interval, maxAge, under, MEMORY_SIZE, DISK_SIZE);
+	}
+
+	LocalImageCache(String name, int interval, int maxAge, ImageRetriever under, long memorySize, long diskSize)
+	{
+		super("cache-" + name);
+		Objects.requireNonNull(under);
 
 		if (interval < 1) {
 			this.interval = 1;
@@ -84,16 +139,17 @@ public class LocalImageCache extends Thread implements ImageRetriever
 		this.interval *= 1000;
 
 		if (maxAge < 1) {
-            throw new IllegalArgumentException("Illegal maxAge");
-        }
-        this.maxAge = maxAge * 1000;
+			throw new IllegalArgumentException("Illegal maxAge");
+		}
+		this.maxAge = maxAge * 1000;
 
-		filesBeingWritten = new ConcurrentSkipListMap<>();
 		running = false;
-        
-        this.setDaemon(true);
-        this.under = under;
-        
+
+		this.setDaemon(true);
+		this.under = under;
+		this.memorySize = memorySize;
+		this.diskSize = diskSize;
+
 		// create the temporary directory
 		File sysTmpDir = new File(System.getProperty("java.io.tmpdir"));
 		cacheFolder = new File(sysTmpDir, name);
@@ -135,6 +191,9 @@ public class LocalImageCache extends Thread implements ImageRetriever
 				return;
 		cacheFolder.deleteOnExit();
 
+		// take in the images left by a previous run
+		loadDiskIndex();
+
 		// start running
 		super.start();
 	}
@@ -172,36 +231,75 @@ public class LocalImageCache extends Thread implements ImageRetriever
 		// if needed wake the thread from its sleeping state
 		this.interrupt();
 
+		synchronized (memory) {
+			memory.clear();
+			memoryBytes = 0;
+		}
+		synchronized (disk) {
+			disk.clear();
+			diskBytes = 0;
+		}
+
 		// clear and delete the temporary folder
 		deleteDirectory(cacheFolder);
 	}
 
-	/**
-	 * Loops through the cache folder and tries to removes old/un-used files.
-	 */
-	private synchronized void checkAndRemoveOldFiles()
+	private void loadDiskIndex()
 	{
-		// if the cache isn't setup abort
-		if (! cacheFolder.exists())
-			return;
-
-		long currentTime = System.currentTimeMillis();
-
-		// go through all the files inside the temp folder and check their last access
-		File[] files = cacheFolder.listFiles();
-		if (files == null) {
-			cacheFolder.mkdirs();
+		File[] shards = cacheFolder.listFiles();
+		if (shards == null)
 			return;
-		}
-		for (File f : files)
-		{
-			// skip if the current file is a folder
-			if (f.isDirectory())
+		List<File> images = new ArrayList<>();
+		for (File shard : shards) {
+			File[] files = shard.isDirectory() ? shard.listFiles() : null;
+			if (files == null)
 				continue;
+			for (File f : files) {
+				if (f.getName().endsWith(SUFFIX)) {
+					images.add(f);
+				} else {
+					// an image left half written
+					f.delete();
+				}
+			}
+		}
+		Collections.sort(images, Comparator.comparingLong(File::lastModified));
+		synchronized (disk) {
+			for (File f : images) {
+				String fileName = f.getName();
+				String key = fileName.substring(0, fileName.length() - SUFFIX.length());
+				disk.put(key, new DiskEntry(f.length(), f.lastModified()));
+				diskBytes += f.length();
+			}
+			evictFromDisk();
+		}
+	}
 
-			// check the last access done to the file, and if it's "past its due" tries to delete it
-			if (currentTime - f.lastModified() > maxAge)
-				f.delete();
+	/**
+	 * Removes the images that were not used for longer than the maximum age.
+	 */
+	private void checkAndRemoveOldFiles()
+	{
+		long oldest = System.currentTimeMillis() - maxAge;
+		List<String> expired = new ArrayList<>();
+		synchronized (disk) {
+			// in order of access, so the first recent one ends the search
+			for (Iterator<Map.Entry<String, DiskEntry>> it = disk.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, DiskEntry> e = it.next();
+				if (e.getValue().lastAccess >= oldest)
+					break;
+				it.remove();
+				diskBytes -= e.getValue().size;
+				expired.add(e.getKey());
+				toFile(e.getKey()).delete();
+			}
+		}
+		synchronized (memory) {
+			for (String key : expired) {
+				byte[] data = memory.remove(key);
+				if (data != null)
+					memoryBytes -= data.length;
+			}
 		}
 	}
 
@@ -243,56 +341,181 @@ public class LocalImageCache extends Thread implements ImageRetriever
 			this.maxAge = maxAge;
 		}
 	}
-    
-    protected static String toFileName(String imageUri, int frameNumber, boolean thumbnail) {
-        String filecode = imageUri + ':' + frameNumber + ':' + (thumbnail ? '1' : '0');
-        return DigestUtils.sha256Hex(filecode) + ".png";
-    }
-    
-    @Override
-    public InputStream get(URI uri, final int frameNumber, final boolean thumbnail) throws IOException {
-        File f = this.implGetFile(toFileName(uri.toString(), frameNumber, thumbnail));
-        synchronized(f) {
-            if (f.exists()) {
-                return new FileInputStream(f);
-            }
-        }
-        this.implCreateFile(f);
-        byte[] imageArray;
-        synchronized (f) {
-            InputStream istream = this.under.get(uri, frameNumber, thumbnail);
-            ByteArrayOutputStream result = Convert2PNG.DICOM2PNGStream(istream, frameNumber);
-            imageArray = result.toByteArray();
-
-            // create new cache file with the converted image
-            try (FileOutputStream fout = new FileOutputStream(f)) {
-                fout.write(imageArray);
-            }
-            filesBeingWritten.remove(f.getAbsolutePath());
-        }
-        
-        // and return it
-        return new ByteArrayInputStream(imageArray);
-    }
-
-	private File implGetFile(String fileName) throws IOException {
-		// check if the file is currently being written to
-        String thatFilePath = new File(fileName).getAbsolutePath();
-        File f = this.filesBeingWritten.get(thatFilePath);
-        if (f == null) {
-            f = new File(cacheFolder, fileName);
-        }
-        return f;
+
+	protected static String toKey(String imageUri, int frameNumber, boolean thumbnail) {
+		String filecode = imageUri + ':' + frameNumber + ':' + (thumbnail ? '1' : '0');
+		return DigestUtils.sha256Hex(filecode);
+	}
+
+	@Override
+	public InputStream get(URI uri, final int frameNumber, final boolean thumbnail) throws IOException {
+		String key = toKey(uri.toString(), frameNumber, thumbnail);
+
+		byte[] image = fromMemory(key);
+		if (image != null) {
+			memoryHits.incrementAndGet();
+			// or the disk copy would expire, or be evicted, while the image is in use
+			touchDisk(key);
+			return new ByteArrayInputStream(image);
+		}
+		image = fromDisk(key);
+		if (image != null) {
+			diskHits.incrementAndGet();
+			toMemory(key, image);
+			return new ByteArrayInputStream(image);
+		}
+
+		CompletableFuture<byte[]> mine = new CompletableFuture<>();
+		CompletableFuture<byte[]> other = rendering.putIfAbsent(key, mine);
+		if (other != null) {
+			// someone else is rendering it
+			coalesced.incrementAndGet();
+			return new ByteArrayInputStream(await(other));
+		}
+		try {
+			// it may have been rendered in the meantime
+			image = fromMemory(key);
+			if (image == null) {
+				misses.incrementAndGet();
+				try (InputStream istream = this.under.get(uri, frameNumber, thumbnail)) {
+					image = IOUtils.toByteArray(istream);
+				}
+				toMemory(key, image);
+				toDisk(key, image);
+			}
+			mine.complete(image);
+		} catch (IOException | RuntimeException ex) {
+			mine.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			rendering.remove(key);
+		}
+
+		// and return it
+		return new ByteArrayInputStream(image);
+	}
+
+	private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the image");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException("Failed to render the image", ex.getCause());
+		}
+	}
+
+	private byte[] fromMemory(String key) {
+		synchronized (memory) {
+			return memory.get(key);
+		}
+	}
+
+	private void toMemory(String key, byte[] image) {
+		// an image taking a good part of the memory tier would only push the others out
+		if (image.length > memorySize / 8)
+			return;
+		synchronized (memory) {
+			byte[] old = memory.put(key, image);
+			memoryBytes += image.length - (old == null ? 0 : old.length);
+			for (Iterator<byte[]> it = memory.values().iterator(); memoryBytes > memorySize && it.hasNext(); ) {
+				memoryBytes -= it.next().length;
+				it.remove();
+				memoryEvictions.incrementAndGet();
+			}
+		}
+	}
+
+	private File toFile(String key) {
+		return new File(new File(cacheFolder, key.substring(0, 2)), key + SUFFIX);
+	}
+
+	/**
+	 * Records an access to an image on disk, moving it to the end of the order of access.
+	 *
+	 * @return whether the image is on disk
+	 */
+	private boolean touchDisk(String key) {
+		synchronized (disk) {
+			DiskEntry entry = disk.get(key);
+			if (entry == null)
+				return false;
+			entry.lastAccess = System.currentTimeMillis();
+			return true;
+		}
+	}
+
+	private byte[] fromDisk(String key) {
+		if (!touchDisk(key))
+			return null;
+		try {
+			return Files.readAllBytes(toFile(key).toPath());
+		} catch (IOException ex) {
+			// evicted meanwhile, or lost
+			logger.debug("Could not read the cached image {}", key, ex);
+			return null;
+		}
+	}
+
+	private void toDisk(String key, byte[] image) {
+		if (image.length > diskSize)
+			return;
+		File f = toFile(key);
+		File tmp = new File(f.getParentFile(), key + '.' + Thread.currentThread().getId() + ".tmp");
+		try {
+			f.getParentFile().mkdirs();
+			try (FileOutputStream fout = new FileOutputStream(tmp)) {
+				fout.write(image);
+			}
+			synchronized (disk) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				DiskEntry old = disk.put(key, new DiskEntry(image.length, System.currentTimeMillis()));
+				diskBytes += image.length - (old == null ? 0 : old.size);
+				evictFromDisk();
+			}
+		} catch (IOException ex) {
+			logger.warn("Could not cache the image {} on disk", key, ex);
+			tmp.delete();
+		}
+	}
+
+	/** Removes the least recently used images until the disk tier fits its size. Holds the disk lock. */
+	private void evictFromDisk() {
+		for (Iterator<Map.Entry<String, DiskEntry>> it = disk.entrySet().iterator(); diskBytes > diskSize && it.hasNext(); ) {
+			Map.Entry<String, DiskEntry> e = it.next();
+			diskBytes -= e.getValue().size;
+			it.remove();
+			toFile(e.getKey()).delete();
+			diskEvictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the cache counters and sizes, in JSON
+	 */
+	public String toJson() {
+		JSONObject obj = new JSONObject();
+		obj.element("memoryHits", memoryHits.get());
+		obj.element("diskHits", diskHits.get());
+		obj.element("misses", misses.get());
+		obj.element("coalesced", coalesced.get());
+		obj.element("memoryEvictions", memoryEvictions.get());
+		obj.element("diskEvictions", diskEvictions.get());
+		synchronized (memory) {
+			obj.element("memoryEntries", memory.size());
+			obj.element("memoryBytes", memoryBytes);
+		}
+		obj.element("memoryCapacity", memorySize);
+		synchronized (disk) {
+			obj.element("diskEntries", disk.size());
+			obj.element("diskBytes", diskBytes);
+		}
+		obj.element("diskCapacity", diskSize);
+		return obj.toString();
 	}
-    
-    private File implCreateFile(File f) throws IOException {
-        //f.createNewFile();
-        f.deleteOnExit();
-		// if it does not exist add it to the list of files being written (because new content is going to be written to it outside this class) and create the empty file
-		filesBeingWritten.put(f.getAbsolutePath(), f);
-		// return the common handle to the currently created and empty file
-        return f;
-    }
 
 	/**
 	 * @return if the caching mechanism for checking and removing old/un-used cache files is still running
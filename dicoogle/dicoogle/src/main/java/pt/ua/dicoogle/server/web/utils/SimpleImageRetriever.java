@@ -57,13 +57,13 @@ public class SimpleImageRetriever implements ImageRetriever {
     }
 
     private static ByteArrayInputStream getPNGStream(StorageInputStream imgFile, int frame, boolean thumbnail) throws IOException {
-        ByteArrayOutputStream pngStream;
+        ByteArrayOutputStream pngStream = new ByteArrayOutputStream();
         if (thumbnail) {
             // retrieve thumbnail dimension settings
             int thumbSize = ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize();
-            pngStream = Convert2PNG.DICOM2ScaledPNGStream(imgFile, frame, thumbSize, thumbSize);
+            Convert2PNG.render(imgFile.getInputStream(), frame, thumbSize, thumbSize, pngStream);
         } else {
-            pngStream = Convert2PNG.DICOM2PNGStream(imgFile, frame);
+            Convert2PNG.render(imgFile.getInputStream(), frame, 0, 0, pngStream);
         }
         return new ByteArrayInputStream(pngStream.toByteArray());
     }}
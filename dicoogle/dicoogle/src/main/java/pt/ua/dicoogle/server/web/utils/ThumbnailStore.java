@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store of the thumbnails rendered when instances are received, keyed by SOP Instance UID.
+ *
+ * Thumbnails are appended to memory-mapped segment files under {@code dicoogle.thumbnails.dir},
+ * and only the position of each one is kept in memory, so serving a thumbnail is a plain read
+ * of the mapped file. A record is laid out as: length (int), thumbnail size (short),
+ * format (byte length + ASCII), SOP Instance UID (short length + ASCII), URI of the file
+ * (short length + UTF-8) and the encoded image (int length + bytes). The length is written
+ * last, so a record cut short by a crash reads as the end of the segment. A thumbnail rendered
+ * again is appended, and the older copy is left unused; a removed one is marked by a record
+ * without an image (length -1).
+ *
+ * Once the unused records outweigh both the thumbnails in use and a segment, the thumbnails
+ * in use are copied to new segments and the old ones are deleted. Readers wait meanwhile.
+ */
+public class ThumbnailStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailStore.class);
+
+    private static final File DIR = new File(System.getProperty("dicoogle.thumbnails.dir", "./thumbnails"));
+    private static final int SEGMENT_SIZE = Integer.parseInt(System.getProperty("dicoogle.thumbnails.segmentSize", String.valueOf(16 * 1024 * 1024)));
+    private static final String SUFFIX = ".thumbs";
+
+    private static ThumbnailStore instance = null;
+
+    private final File dir;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<File> segmentFiles = new ArrayList<>();
+    /** segment (high 32 bits) and offset (low 32 bits) of the record of each SOP Instance UID */
+    private final Map<String, Long> index = new HashMap<>();
+    /** SOP Instance UID of the thumbnail of each file, to remove them by location */
+    private final TreeMap<String, String> byUri = new TreeMap<>();
+    private MappedByteBuffer current = null;
+    private boolean open = false;
+    /** number of the next segment file; segments are read back in this order */
+    private int nextFile = 0;
+    /** bytes of the records in use, and of all records */
+    private long liveBytes = 0;
+    private long totalBytes = 0;
+
+    public static synchronized ThumbnailStore getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailStore(DIR);
+            try {
+                instance.open();
+            } catch (IOException ex) {
+                logger.error("Could not open the thumbnail store at " + DIR + ", thumbnails are rendered on request", ex);
+            }
+        }
+        return instance;
+    }
+
+    ThumbnailStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Maps the existing segments and indexes their thumbnails.
+     */
+    synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the thumbnail directory " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                int number;
+                try {
+                    number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()), 16);
+                } catch (NumberFormatException ex) {
+                    logger.warn("Ignoring {}, not a thumbnail segment", file);
+                    continue;
+                }
+                MappedByteBuffer segment = map(file, Math.max(file.length(), SEGMENT_SIZE));
+                segments.add(segment);
+                segmentFiles.add(file);
+                scan(segment, segments.size() - 1);
+                current = segment;
+                nextFile = Math.max(nextFile, number + 1);
+            }
+        }
+        if (current == null) {
+            newSegment(SEGMENT_SIZE);
+        }
+        open = true;
+        logger.info("{} thumbnails in the thumbnail store", index.size());
+    }
+
+    /** Indexes the records of a segment, leaving its position after the last one. */
+    private void scan(MappedByteBuffer segment, int n) {
+        int pos = 0;
+        while (pos + 4 <= segment.capacity()) {
+            int length = segment.getInt(pos);
+            if (length <= 0 || pos + 4 + length > segment.capacity()) {
+                break;
+            }
+            long position = ((long) n << 32) | pos;
+            String uid = uid(segment, pos);
+            if (segment.getInt(dataOffset(segment, pos)) < 0) {
+                forget(uid);
+            } else {
+                remember(uid, position, 4 + length);
+            }
+            totalBytes += 4 + length;
+            pos += 4 + length;
+        }
+        segment.position(pos);
+    }
+
+    /**
+     * @param sopInstanceUID the SOP Instance UID of the image
+     * @param size the size wanted, in pixels
+     * @param format the image format wanted
+     * @return the encoded thumbnail, or null if there is none in that size and format
+     */
+    public byte[] get(String sopInstanceUID, int size, String format) {
+        MappedByteBuffer segment;
+        int pos;
+        synchronized (this) {
+            Long position = open ? index.get(sopInstanceUID) : null;
+            if (position == null) {
+                return null;
+            }
+            segment = segments.get((int) (position >>> 32));
+            pos = (int) (long) position;
+        }
+        // records are never overwritten, and segments are deleted but never unmapped,
+        // so they can be read without the lock
+        if (segment.getShort(pos + 4) != size) {
+            return null;
+        }
+        int p = pos + 6;
+        if (!format.equalsIgnoreCase(string(segment, p + 1, segment.get(p), StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        p = dataOffset(segment, pos);
+        byte[] data = new byte[segment.getInt(p)];
+        ByteBuffer view = segment.duplicate();
+        view.position(p + 4);
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Stores the thumbnail of an image, replacing any previous one.
+     *
+     * @param uri the location of the image's file, by which the thumbnail is removed
+     */
+    public synchronized void put(String sopInstanceUID, URI uri, int size, String format, byte[] data) throws IOException {
+        if (!open) {
+            throw new IOException("The thumbnail store is not open");
+        }
+        byte[] record = record(sopInstanceUID, uri, size, format, data);
+        long position = append(record);
+        remember(sopInstanceUID, position, 4 + record.length);
+        compactIfWasteful();
+    }
+
+    /**
+     * Removes the thumbnail of an image, if there is one.
+     */
+    public synchronized void remove(String sopInstanceUID) {
+        if (!open || !index.containsKey(sopInstanceUID)) {
+            return;
+        }
+        try {
+            append(record(sopInstanceUID, null, 0, "", null));
+        } catch (IOException ex) {
+            // it would come back after a restart
+            logger.warn("Could not record the removal of the thumbnail of {}", sopInstanceUID, ex);
+        }
+        forget(sopInstanceUID);
+        compactIfWasteful();
+    }
+
+    /**
+     * Removes the thumbnails of the images whose files are at, or under, the given location.
+     */
+    public synchronized void remove(URI location) {
+        String prefix = location.toString();
+        String dirPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        List<String> uids = new ArrayList<>();
+        String uid = byUri.get(prefix);
+        if (uid != null) {
+            uids.add(uid);
+        }
+        uids.addAll(byUri.subMap(dirPrefix, dirPrefix + Character.MAX_VALUE).values());
+        for (String u : uids) {
+            remove(u);
+        }
+    }
+
+    /**
+     * @return whether there is a thumbnail for the image, in any size
+     */
+    public synchronized boolean contains(String sopInstanceUID) {
+        return index.containsKey(sopInstanceUID);
+    }
+
+    /** Indexes a record, replacing the previous one of the same image. */
+    private void remember(String sopInstanceUID, long position, int bytes) {
+        forget(sopInstanceUID);
+        index.put(sopInstanceUID, position);
+        String uri = uri(segments.get((int) (position >>> 32)), (int) position);
+        if (!uri.isEmpty()) {
+            byUri.put(uri, sopInstanceUID);
+        }
+        liveBytes += bytes;
+    }
+
+    /** Drops an image from the index, leaving its record unused. */
+    private void forget(String sopInstanceUID) {
+        Long position = index.remove(sopInstanceUID);
+        if (position == null) {
+            return;
+        }
+        MappedByteBuffer segment = segments.get((int) (position >>> 32));
+        int pos = (int) (long) position;
+        byUri.remove(uri(segment, pos), sopInstanceUID);
+        liveBytes -= 4 + segment.getInt(pos);
+    }
+
+    /** Builds a record, but for its length. A null image marks a removal. */
+    private static byte[] record(String sopInstanceUID, URI uri, int size, String format, byte[] data) {
+        byte[] f = format.getBytes(StandardCharsets.US_ASCII);
+        byte[] uid = sopInstanceUID.getBytes(StandardCharsets.US_ASCII);
+        byte[] u = uri == null ? new byte[0] : uri.toString().getBytes(StandardCharsets.UTF_8);
+        int dataLength = data == null ? 0 : data.length;
+        ByteBuffer record = ByteBuffer.allocate(2 + 1 + f.length + 2 + uid.length + 2 + u.length + 4 + dataLength);
+        record.putShort((short) size);
+        record.put((byte) f.length);
+        record.put(f);
+        record.putShort((short) uid.length);
+        record.put(uid);
+        record.putShort((short) u.length);
+        record.put(u);
+        if (data == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(data.length);
+            record.put(data);
+        }
+        return record.array();
+    }
+
+    /**
+     * Appends a record to the current segment, or to a new one if it does not fit.
+     *
+     * @return the position of the record
+     */
+    private long append(byte[] record) throws IOException {
+        if (current.position() + 4 + record.length > current.capacity()) {
+            newSegment(Math.max(SEGMENT_SIZE, 4 + record.length + 4));
+        }
+        int pos = current.position();
+        current.position(pos + 4);
+        current.put(record);
+        current.putInt(pos, record.length);
+        totalBytes += 4 + record.length;
+        return ((long) (segments.size() - 1) << 32) | pos;
+    }
+
+    private void compactIfWasteful() {
+        if (totalBytes - liveBytes <= Math.max(SEGMENT_SIZE, liveBytes)) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException ex) {
+            logger.error("Could not compact the thumbnail store", ex);
+        }
+    }
+
+    /** Copies the records in use to new segments, and deletes the old ones. */
+    private void compact() throws IOException {
+        long before = totalBytes;
+        List<MappedByteBuffer> oldSegments = new ArrayList<>(segments);
+        List<File> oldFiles = new ArrayList<>(segmentFiles);
+        Map<String, Long> live = new HashMap<>(index);
+        segments.clear();
+        segmentFiles.clear();
+        index.clear();
+        byUri.clear();
+        liveBytes = 0;
+        totalBytes = 0;
+        newSegment(SEGMENT_SIZE);
+        for (Map.Entry<String, Long> e : live.entrySet()) {
+            MappedByteBuffer segment = oldSegments.get((int) (e.getValue() >>> 32));
+            int pos = (int) (long) e.getValue();
+            byte[] record = new byte[segment.getInt(pos)];
+            ByteBuffer view = segment.duplicate();
+            view.position(pos + 4);
+            view.get(record);
+            remember(e.getKey(), append(record), 4 + record.length);
+        }
+        // the new segments are read after the old ones, so a crash before this point loses nothing
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        for (File file : oldFiles) {
+            if (!file.delete()) {
+                logger.warn("Could not delete the old thumbnail segment {}", file);
+            }
+        }
+        logger.info("Compacted the thumbnail store from {} to {} bytes", before, totalBytes);
+    }
+
+    private static String uid(ByteBuffer segment, int pos) {
+        int p = pos + 6;
+        p += 1 + segment.get(p);
+        return string(segment, p + 2, segment.getShort(p), StandardCharsets.US_ASCII);
+    }
+
+    private static String uri(ByteBuffer segment, int pos) {
+        int p = pos + 6;
+        p += 1 + segment.get(p);
+        p += 2 + segment.getShort(p);
+        return string(segment, p + 2, segment.getShort(p), StandardCharsets.UTF_8);
+    }
+
+    /** @return the offset of the image length in the record at the given position */
+    private static int dataOffset(ByteBuffer segment, int pos) {
+        int p = pos + 6;
+        p += 1 + segment.get(p);
+        p += 2 + segment.getShort(p);
+        return p + 2 + segment.getShort(p);
+    }
+
+    private static String string(ByteBuffer segment, int p, int length, Charset charset) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = segment.get(p + i);
+        }
+        return new String(b, charset);
+    }
+
+    private void newSegment(int size) throws IOException {
+        File file = new File(dir, String.format("%08x%s", nextFile++, SUFFIX));
+        current = map(file, size);
+        segments.add(current);
+        segmentFiles.add(file);
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.DicomLog;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LogWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRotatedFilesAreOrderedBySequenceWithinASecond() {
+        String[] names = {
+            "DICOM_Services_Log.20240102-101010-10.log",
+            "DICOM_Services_Log.20240102-101010-2.log",
+            "DICOM_Services_Log.20240102-101011.log",
+            "DICOM_Services_Log.20240102-101010.log",
+            "DICOM_Services_Log.20240101-235959-1.log"
+        };
+        Arrays.sort(names, LogWriter::compareRotated);
+        assertEquals(Arrays.asList(
+                "DICOM_Services_Log.20240101-235959-1.log",
+                "DICOM_Services_Log.20240102-101010.log",
+                "DICOM_Services_Log.20240102-101010-2.log",
+                "DICOM_Services_Log.20240102-101010-10.log",
+                "DICOM_Services_Log.20240102-101011.log"), Arrays.asList(names));
+    }
+
+    @Test
+    public void testSyncWaitsForQueuedRecords() throws Exception {
+        File dir = folder.newFolder("log");
+        LogWriter writer = new LogWriter(dir);
+        try {
+            assertTrue(writer.isEmpty());
+            for (int i = 0; i < 100; i++) {
+                writer.put(new LogLine("cfind", "2024/01/02 10:10:10", "AE" + i, "", ""));
+            }
+            assertTrue(writer.sync());
+            assertFalse(writer.isEmpty());
+
+            List<LogLine> tail = writer.readTail(10);
+            assertEquals(10, tail.size());
+            assertEquals("AE90", tail.get(0).getAe());
+            assertEquals("AE99", tail.get(9).getAe());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testRotatedFilesCountAsRecords() throws Exception {
+        File dir = folder.newFolder("rotated");
+        LogWriter writer = new LogWriter(dir);
+        try {
+            assertTrue(new File(dir, "DICOM_Services_Log.20240102-101010.log").createNewFile());
+            assertFalse(writer.isEmpty());
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+import static org.junit.Assert.*;
+
+public class DimGroupAggregatorTest {
+
+    /** Enough studies that most of them are still incomplete long after their first instance */
+    private static final int STUDIES = 2500;
+
+    private static SearchResult instance(int study, int instance) {
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("PatientID", "P" + (study % 100));
+        data.put("StudyInstanceUID", "1.2.3." + study);
+        // two instances in the first series, one in the second
+        data.put("SeriesInstanceUID", "1.2.3." + study + (instance < 2 ? ".1" : ".2"));
+        data.put("Modality", instance < 2 ? "CT" : "MR");
+        data.put("StudyDescription", "study " + study);
+        return new SearchResult(URI.create("file:/" + study + "/" + instance), 1, data);
+    }
+
+    /** Every study's instances, one from each study at a time, so that each study ends near the end. */
+    private static List<SearchResult> interleaved() {
+        List<SearchResult> results = new ArrayList<>();
+        for (int instance = 0; instance < 3; instance++) {
+            for (int study = 0; study < STUDIES; study++) {
+                results.add(instance(study, instance));
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void testInterleavedStudiesAreEmittedOnce() {
+        DimGroupAggregator groups = new DimGroupAggregator(interleaved().iterator(), false, null);
+        Set<String> seen = new HashSet<>();
+        while (groups.hasNext()) {
+            DimGroupAggregator.StudyGroup study = (DimGroupAggregator.StudyGroup) groups.next();
+            assertTrue(seen.add(study.get("StudyInstanceUID")));
+            assertEquals(3, study.getInstances());
+            assertEquals(2, study.getSeriesCount());
+            assertEquals(Arrays.asList("CT", "MR"), new ArrayList<>(study.getModalities()));
+        }
+        assertEquals(STUDIES, seen.size());
+    }
+
+    @Test
+    public void testInterleavedSeriesAreEmittedOnce() {
+        DimGroupAggregator groups = new DimGroupAggregator(interleaved().iterator(), true, null);
+        Set<String> seen = new HashSet<>();
+        while (groups.hasNext()) {
+            DimGroupAggregator.SeriesGroup series = (DimGroupAggregator.SeriesGroup) groups.next();
+            String uid = series.get("SeriesInstanceUID");
+            assertTrue(seen.add(uid));
+            assertEquals(uid.endsWith(".1") ? 2 : 1, series.getInstances());
+            assertEquals(3, series.getStudy().getInstances());
+        }
+        assertEquals(2 * STUDIES, seen.size());
+    }
+
+    @Test
+    public void testGroupedResultsCountTheirInstances() {
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SearchResult r = instance(7, i * 2);
+            r.getExtraData().put(DimGroupAggregator.SERIES_COUNT_FIELD, "12");
+            results.add(r);
+        }
+        DimGroupAggregator groups = new DimGroupAggregator(results.iterator(), false, null);
+        assertTrue(groups.hasNext());
+        DimGroupAggregator.StudyGroup study = (DimGroupAggregator.StudyGroup) groups.next();
+        assertEquals(24, study.getInstances());
+        assertEquals(2, study.getSeriesCount());
+        assertFalse(groups.hasNext());
+    }
+
+    @Test
+    public void testNoResults() {
+        DimGroupAggregator groups = new DimGroupAggregator(new ArrayList<SearchResult>().iterator(), true, null);
+        assertFalse(groups.hasNext());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IndexJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DicomStorage.ImageElement element(String uri, String aet, boolean priority) {
+        DicomStorage.ImageElement element = new DicomStorage.ImageElement();
+        element.setUri(URI.create(uri));
+        element.setCallingAET(aet);
+        element.setPriority(priority);
+        return element;
+    }
+
+    private static int journalFiles(File dir) {
+        return dir.list((d, name) -> name.endsWith(".journal")).length;
+    }
+
+    @Test
+    public void testPendingFilesAreReadBack() throws IOException {
+        File dir = folder.newFolder("journal");
+        IndexJournal journal = new IndexJournal(dir);
+        assertTrue(journal.open().isEmpty());
+
+        DicomStorage.ImageElement a = element("file:/data/a.dcm", "MODALITY", false);
+        DicomStorage.ImageElement b = element("file:/data/b.dcm", "URGENT", true);
+        DicomStorage.ImageElement c = element("file:/data/c.dcm", null, false);
+        journal.append(a, false);
+        journal.append(b, false);
+        journal.append(c, true);
+        assertEquals(3, journal.getPending());
+
+        journal.done(Arrays.asList(a, c));
+        assertEquals(1, journal.getPending());
+        journal.close();
+
+        IndexJournal reopened = new IndexJournal(dir);
+        List<DicomStorage.ImageElement> pending = reopened.open();
+        assertEquals(1, pending.size());
+        assertEquals(URI.create("file:/data/b.dcm"), pending.get(0).getUri());
+        assertEquals("URGENT", pending.get(0).getCallingAET());
+        assertTrue(pending.get(0).isPriority());
+
+        // done once indexed after the restart, it is not read back again
+        reopened.done(pending);
+        reopened.close();
+        assertTrue(new IndexJournal(dir).open().isEmpty());
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        File dir = folder.newFolder("journal");
+        IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+        journal.append(element("file:/data/a.dcm", "MODALITY", false), false);
+        journal.append(element("file:/data/b.dcm", "MODALITY", false), false);
+        journal.close();
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".journal"));
+        assertEquals(1, files.length);
+        // a crash while appending leaves the body of the record, but not its length, which is written last
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            int pos = 0;
+            while (raf.length() >= pos + 4) {
+                raf.seek(pos);
+                int length = raf.readInt();
+                if (length == 0) {
+                    break;
+                }
+                pos += 4 + length;
+            }
+            raf.seek(pos + 4);
+            raf.write(new byte[] {1, 0, 0, 0, 0, 0, 0, 42});
+        }
+
+        List<DicomStorage.ImageElement> pending = new IndexJournal(dir).open();
+        assertEquals(2, pending.size());
+        assertEquals(URI.create("file:/data/a.dcm"), pending.get(0).getUri());
+        assertEquals(URI.create("file:/data/b.dcm"), pending.get(1).getUri());
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceDone() throws IOException {
+        File dir = folder.newFolder("journal");
+        IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+
+        // long URIs fill a few segments quickly
+        char[] padding = new char[256 * 1024];
+        Arrays.fill(padding, 'x');
+        List<DicomStorage.ImageElement> elements = new ArrayList<>();
+        while (journalFiles(dir) < 3) {
+            DicomStorage.ImageElement element = element("file:/data/" + elements.size() + "/" + new String(padding), "MODALITY", false);
+            journal.append(element, false);
+            elements.add(element);
+        }
+
+        // the oldest segment goes as soon as all of its files are done
+        journal.done(elements.subList(0, 1));
+        assertEquals(3, journalFiles(dir));
+        int n = elements.size();
+        journal.done(elements.subList(1, n - 1));
+        assertEquals(1, journalFiles(dir));
+        assertEquals(1, journal.getPending());
+
+        // the current segment is kept while in use, and dropped on close once done
+        journal.done(elements.subList(n - 1, n));
+        assertEquals(1, journalFiles(dir));
+        journal.close();
+        assertEquals(0, journalFiles(dir));
+    }
+}
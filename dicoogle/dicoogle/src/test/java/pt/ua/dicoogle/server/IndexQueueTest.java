@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IndexQueueTest {
+
+    private static DicomStorage.ImageElement element(String name, boolean priority) {
+        DicomStorage.ImageElement element = new DicomStorage.ImageElement();
+        element.setUri(URI.create("file:/data/" + name));
+        element.setPriority(priority);
+        return element;
+    }
+
+    private static String next(IndexQueue queue) throws InterruptedException {
+        DicomStorage.ImageElement element = queue.poll(1, TimeUnit.SECONDS);
+        assertNotNull(element);
+        return element.getUri().getPath();
+    }
+
+    @Test
+    public void testPriorityFirstThenArrivalOrder() throws InterruptedException {
+        IndexQueue queue = new IndexQueue(10);
+        queue.put(element("a", false));
+        queue.put(element("b", false));
+        queue.put(element("p1", true));
+        queue.put(element("c", false));
+        queue.put(element("p2", true));
+        assertEquals(5, queue.size());
+
+        assertEquals("/data/p1", next(queue));
+        assertEquals("/data/p2", next(queue));
+        assertEquals("/data/a", next(queue));
+        assertEquals("/data/b", next(queue));
+        assertEquals("/data/c", next(queue));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPutBlocksWhenFull() throws InterruptedException {
+        final IndexQueue queue = new IndexQueue(2);
+        queue.put(element("a", false));
+        queue.put(element("b", false));
+
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(element("c", false));
+                added.countDown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+
+        assertEquals("/data/a", next(queue));
+        assertTrue(added.await(1, TimeUnit.SECONDS));
+        assertEquals("/data/b", next(queue));
+        assertEquals("/data/c", next(queue));
+        producer.join();
+    }
+
+    @Test
+    public void testOldestWaitIsNotTheHead() throws InterruptedException {
+        IndexQueue queue = new IndexQueue(10);
+        queue.put(element("a", false));
+        Thread.sleep(100);
+        // goes ahead of the older file
+        queue.put(element("p", true));
+
+        long oldestWait = JSONObject.fromObject(queue.toJson()).getLong("oldestWaitMillis");
+        assertTrue("oldest wait " + oldestWait, oldestWait >= 100);
+
+        assertEquals("/data/p", next(queue));
+        assertEquals("/data/a", next(queue));
+        assertEquals(0, JSONObject.fromObject(queue.toJson()).getLong("oldestWaitMillis"));
+    }
+}
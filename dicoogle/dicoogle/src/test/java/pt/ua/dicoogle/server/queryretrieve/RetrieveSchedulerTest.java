@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetrieveSchedulerTest {
+
+    /** A job that records its name when it runs, and then waits until released. */
+    private static Runnable job(final String name, final List<String> log, final CountDownLatch release) {
+        return () -> {
+            log.add(name);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private static void awaitSize(List<String> log, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, log.size());
+    }
+
+    @Test
+    public void testRequestersAreServedInTurn() throws InterruptedException {
+        RetrieveScheduler scheduler = new RetrieveScheduler(1, 4);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch none = new CountDownLatch(0);
+
+        // keeps the only thread busy while the others are queued
+        scheduler.submit("X", "DEST", new MoveProgress(), job("X", log, blocker));
+        awaitSize(log, 1);
+        scheduler.submit("A", "DEST", new MoveProgress(), job("A1", log, none));
+        scheduler.submit("A", "DEST", new MoveProgress(), job("A2", log, none));
+        scheduler.submit("A", "DEST", new MoveProgress(), job("A3", log, none));
+        scheduler.submit("B", "DEST", new MoveProgress(), job("B1", log, none));
+        assertEquals(4, scheduler.getQueued());
+
+        blocker.countDown();
+        awaitSize(log, 5);
+        assertEquals(Arrays.asList("X", "A1", "B1", "A2", "A3"), log);
+    }
+
+    @Test
+    public void testBusyDestinationDoesNotHoldBackOthers() throws InterruptedException {
+        RetrieveScheduler scheduler = new RetrieveScheduler(2, 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch none = new CountDownLatch(0);
+
+        scheduler.submit("A", "D1", new MoveProgress(), job("D1-first", log, release));
+        awaitSize(log, 1);
+        scheduler.submit("A", "D1", new MoveProgress(), job("D1-second", log, none));
+        scheduler.submit("A", "D2", new MoveProgress(), job("D2", log, none));
+
+        // the second move to D1 waits for the first, the one to D2 goes ahead
+        awaitSize(log, 2);
+        assertEquals("D2", log.get(1));
+        assertEquals(1, scheduler.getRunning("D1"));
+        assertEquals(1, scheduler.getQueued());
+
+        release.countDown();
+        awaitSize(log, 3);
+        assertEquals("D1-second", log.get(2));
+    }
+
+    @Test
+    public void testCancelBeforeStart() throws InterruptedException {
+        RetrieveScheduler scheduler = new RetrieveScheduler(1, 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch none = new CountDownLatch(0);
+
+        scheduler.submit("A", "DEST", new MoveProgress(), job("first", log, blocker));
+        awaitSize(log, 1);
+        MoveProgress progress = new MoveProgress();
+        progress.setRemaining(3);
+        scheduler.submit("A", "DEST", progress, job("cancelled", log, none));
+        scheduler.submit("B", "DEST", new MoveProgress(), job("last", log, none));
+
+        scheduler.cancel(progress);
+        assertTrue(progress.isFinished());
+        assertEquals(1, scheduler.getQueued());
+
+        blocker.countDown();
+        awaitSize(log, 2);
+        assertEquals(Arrays.asList("first", "last"), log);
+    }
+
+    @Test
+    public void testCancelledWhileQueuedIsSkipped() throws InterruptedException {
+        RetrieveScheduler scheduler = new RetrieveScheduler(1, 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch none = new CountDownLatch(0);
+
+        scheduler.submit("A", "DEST", new MoveProgress(), job("first", log, blocker));
+        awaitSize(log, 1);
+        // a C-CANCEL only flags the progress; the job is dropped when its turn comes
+        MoveProgress progress = new MoveProgress();
+        scheduler.submit("A", "DEST", progress, job("cancelled", log, none));
+        progress.cancel();
+        scheduler.submit("A", "DEST", new MoveProgress(), job("last", log, none));
+
+        blocker.countDown();
+        awaitSize(log, 2);
+        assertEquals(Arrays.asList("first", "last"), log);
+        assertTrue(progress.isFinished());
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocalImageCacheTest {
+
+    /** Renders 100 byte images, and records which were asked for. */
+    private static class CountingRetriever implements ImageRetriever {
+        final List<String> rendered = new ArrayList<>();
+
+        @Override
+        public InputStream get(URI uri, int frame, boolean thumbnail) throws IOException {
+            rendered.add(uri.toString());
+            return new ByteArrayInputStream(new byte[100]);
+        }
+    }
+
+    private final CountingRetriever under = new CountingRetriever();
+    private LocalImageCache cache;
+
+    private void read(String name) throws IOException {
+        try (InputStream in = cache.get(URI.create(name), 0, false)) {
+            assertEquals(100, in.available());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.terminate();
+        }
+    }
+
+    @Test
+    public void testMemoryEvictsLeastRecentlyUsed() throws IOException {
+        // room for 8 images in memory, none on disk
+        cache = new LocalImageCache("image-cache-test-" + System.nanoTime(), 60, 60, under, 800, 0);
+        for (int i = 0; i < 8; i++) {
+            read("file:/" + i);
+        }
+        read("file:/0");
+        assertEquals(8, under.rendered.size());
+
+        read("file:/8");
+        read("file:/0");
+        assertEquals(9, under.rendered.size());
+        read("file:/1");
+        assertEquals(10, under.rendered.size());
+        assertEquals("file:/1", under.rendered.get(9));
+    }
+
+    @Test
+    public void testDiskEvictsLeastRecentlyUsed() throws IOException {
+        // no memory tier, room for 2 images on disk
+        cache = new LocalImageCache("image-cache-test-" + System.nanoTime(), 60, 60, under, 0, 250);
+        read("file:/a");
+        read("file:/b");
+        read("file:/a");
+        assertEquals(2, under.rendered.size());
+
+        read("file:/c");
+        read("file:/a");
+        read("file:/c");
+        assertEquals(3, under.rendered.size());
+        read("file:/b");
+        assertEquals(4, under.rendered.size());
+        assertEquals("file:/b", under.rendered.get(3));
+    }
+
+    @Test
+    public void testTerminateClearsTheCache() throws IOException {
+        String name = "image-cache-test-" + System.nanoTime();
+        cache = new LocalImageCache(name, 60, 60, under, 800, 250);
+        read("file:/a");
+        assertTrue(new File(System.getProperty("java.io.tmpdir"), name).exists());
+
+        cache.terminate();
+        assertFalse(new File(System.getProperty("java.io.tmpdir"), name).exists());
+        read("file:/a");
+        assertEquals(2, under.rendered.size());
+    }
+}
@@ -45,6 +45,9 @@ public interface IndexerInterface extends DicooglePlugin {
      * Indexes multiple file paths to the database. Indexation procedures are asynchronous, and will return
      * immediately after the call. The outcomes are aggregated into a single report and can be retrieved from
      * the given task as a future.
+     * <p>
+     * Dicoogle uses this method to index batches of recently received files, so implementations should
+     * persist the whole batch at once (e.g. with a single commit) rather than once per file.
      *
      * @param files a collection of directories and/or files to index
      * @return a representation of the asynchronous indexation task
@@ -40,10 +40,26 @@ public interface QueryInterface extends DicooglePlugin
      * iterator implementation can be redefined to wait for more results at the caller. Furthermore, the
      * resulting iterable is expected to be traversed only once.
      *
+     * <p>
+     * Dicoogle may ask for a single page of the results, or only for their number, through the third
+     * parameter, which is then a mutable {@code Map<String, Object>}. Plugins which do not support this
+     * simply ignore it, and the core pages or counts the full results itself. The map holds either:
+     * <ul>
+     * <li>"cursor" (a String, null for the first page) and "limit" (an Integer): the plugin returns at most
+     * "limit" results following the cursor, and puts the cursor of the following page in the map as
+     * "nextCursor", or null after the last page. Cursors are opaque to the core, which only hands back
+     * those produced by the plugin.</li>
+     * <li>"count" (a Boolean, whether an exact count is required): the plugin may return no results, and
+     * puts their number in the map as "totalHits", a Long.</li>
+     * </ul>
+     * A malformed query or cursor in a paging request is reported with an {@link IllegalArgumentException}.
+     *
      * @param query a string describing the query. The underlying plugin is currently free to follow any
      * query format, but only those based on Lucene with work with the search user interface.
      * @param parameters A variable list of parameters of the query. The plugin can use them to establish
-     * their own API's, which may require more complex data structures (e.g. images).
+     * their own API's, which may require more complex data structures (e.g. images). The first is usually
+     * the map of extra fields to return, the second the DIM level of the query, and the third the paging
+     * request described above.
      * 
      * @return the results of the query as a (possibly lazy) iterable. The consumption of its iterator can
      * result in a {@link RetrievalException} being throw in the event of a failure in the retrieval process.
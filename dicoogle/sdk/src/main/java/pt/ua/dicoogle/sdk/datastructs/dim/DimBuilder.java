@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs.dim;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/**
+ * Builds a DIM model out of search results, one result at a time.
+ *
+ * Each result is first looked up in the patient, study and series it belongs
+ * to, and only the nodes that do not exist yet are created, reading just the
+ * attributes of the levels being created. The values repeated across nodes
+ * (modalities, dates, descriptions, ...) are shared, and the series keep only
+ * a reference to each instance. The results do not need to be held in memory
+ * as a whole, so large result sets can be grouped as they are iterated.
+ */
+public class DimBuilder {
+
+    private final ConcatTags tags;
+
+    private final ArrayList<Patient> patients = new ArrayList<>();
+    private final HashMap<String, Patient> patientsHash = new HashMap<>();
+    /** pool of the attribute values seen so far */
+    private final HashMap<String, String> values = new HashMap<>();
+    private int instances = 0;
+
+    public DimBuilder() {
+        this(null);
+    }
+
+    /**
+     * @param tags rules to compose the study description from other attributes, may be null
+     */
+    public DimBuilder(ConcatTags tags) {
+        this.tags = tags;
+    }
+
+    public DimBuilder addAll(Iterable<SearchResult> results) {
+        for (SearchResult r : results) {
+            add(r);
+        }
+        return this;
+    }
+
+    public DimBuilder add(SearchResult result) {
+        return add(result.getExtraData(), result.getURI());
+    }
+
+    /**
+     * Adds an instance, given its attributes and location.
+     */
+    public DimBuilder add(Map<String, Object> extra, URI uri) {
+        String patientID = value(extra, "PatientID", false);
+        String patientName = value(extra, "PatientName", false);
+        // Real data does not have Patient Id - sometimes.
+        String patientIdentifier = patientID.isEmpty() ? patientName : patientID;
+
+        Patient p = patientsHash.get(patientIdentifier);
+        if (p == null) {
+            p = new Patient(patientID, patientName);
+            p.setPatientSex(value(extra, "PatientSex", false));
+            p.setPatientBirthDate(value(extra, "PatientBirthDate", false));
+            patients.add(p);
+            patientsHash.put(patientIdentifier, p);
+        }
+
+        String studyUID = value(extra, "StudyInstanceUID", false);
+        String studyDescription = studyDescription(extra);
+        Study s = p.getStudy(studyUID);
+        if (s == null) {
+            s = new Study(p, studyUID, value(extra, "StudyDate", false));
+            s.setStudyID(value(extra, "StudyID", false));
+            s.setStudyTime(value(extra, "StudyTime", true));
+            s.setAccessionNumber(value(extra, "AccessionNumber", false));
+            s.setStudyDescription(studyDescription);
+            s.setInstitutuionName(value(extra, "InstitutionName", false));
+            s.setPatientName(patientName);
+            s.setOperatorsName(value(extra, "OperatorsName", false));
+            s.setRequestingPhysician(value(extra, "RequestingPhysician", false));
+            p.addStudy(s);
+        } else {
+            // as when merging studies, the latest description holds
+            s.setStudyDescription(studyDescription);
+        }
+
+        String seriesUID = value(extra, "SeriesInstanceUID", false);
+        Series series = s.getSeries(seriesUID);
+        if (series == null) {
+            series = newSeries(s, seriesUID, extra);
+            s.addSerie(series);
+        }
+
+        //TODO:Error checking here... but according to standard, all images
+        //must have one of these...
+        String sopInstUID = toTrimmedString(extra.get("SOPInstanceUID"), true);
+        series.addImage(uri, sopInstUID == null ? "no uid" : sopInstUID);
+        instances++;
+        return this;
+    }
+
+    private Series newSeries(Study s, String seriesUID, Map<String, Object> extra) {
+        Series series = new Series(s, seriesUID, value(extra, "Modality", false));
+        String seriesNumber = toTrimmedString(extra.get("SeriesNumber"), true);
+        try {
+            if (seriesNumber != null) {
+                series.setSeriesNumber((int) Float.parseFloat(seriesNumber));
+            }
+        } catch (NumberFormatException ex) {
+            // nothing to do anyway
+        }
+        series.setSeriesDescription(value(extra, "SeriesDescription", false));
+        series.setProtocolName(value(extra, "ProtocolName", false));
+        series.setSeriesDate(value(extra, "SeriesDate", false));
+        series.setBodyPartThickness(value(extra, "BodyPartThickness", true));
+        series.setViewPosition(value(extra, "ViewPosition", false));
+        series.setImageLaterality(value(extra, "ImageLaterality", false));
+        series.setAcquisitionDeviceProcessingDescription(value(extra, "AcquisitionDeviceProcessingDescription", false));
+        series.setViewCodeSequence_CodeMeaning(value(extra, "ViewCodeSequence_CodeMeaning", false));
+        series.setViewCodeSequence_CodeValue(value(extra, "ViewCodeSequence_CodeValue", false));
+        series.setViewCodeSequence_CodingSchemeDesignator(value(extra, "ViewCodeSequence_CodingSchemeDesignator", false));
+        series.setViewCodeSequence_CodingSchemeVersion(value(extra, "ViewCodeSequence_CodingSchemeVersion", false));
+        return series;
+    }
+
+    /**
+     * The study description, composed from the {@link ConcatTags} rules of the
+     * modality when the study has none (or a generic one).
+     */
+    private String studyDescription(Map<String, Object> extra) {
+        String description = value(extra, "StudyDescription", false);
+        if (this.tags == null || !(description.isEmpty() || description.toLowerCase().contains("fuji"))) {
+            return description;
+        }
+        String modality = value(extra, "Modality", false);
+        StringBuilder composed = new StringBuilder();
+        for (ConcatTags.Rule rule : this.tags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                Object valueTagToReplace = extra.get(rule.getTagToReplace());
+                if (valueTagToReplace != null) {
+                    // Required to production enviroment.
+                    composed.append(valueTagToReplace.toString().trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", ""))
+                            .append("; ");
+                }
+            }
+        }
+        return intern(composed.toString());
+    }
+
+    /** @return a trimmed attribute value, shared with the equal values seen before */
+    private String value(Map<String, Object> extra, String name, boolean allowNull) {
+        return intern(toTrimmedString(extra.get(name), allowNull));
+    }
+
+    private String intern(String s) {
+        if (s == null || s.isEmpty()) {
+            return s;
+        }
+        String shared = values.putIfAbsent(s, s);
+        return shared == null ? s : shared;
+    }
+
+    static String toTrimmedString(Object o, boolean allowNull) {
+        if (o == null) {
+            return allowNull ? null : "";
+        }
+        if (allowNull) {
+            return StringUtils.trimToNull(o.toString());
+        }
+        return StringUtils.trimToEmpty(o.toString());
+    }
+
+    /**
+     * @return the patients built so far
+     */
+    public ArrayList<Patient> getPatients() {
+        return patients;
+    }
+
+    /**
+     * @return the number of instances added
+     */
+    public int getInstanceCount() {
+        return instances;
+    }
+
+    /**
+     * Releases the spare room of the instance lists, once no more results are added.
+     */
+    public void trimToSize() {
+        for (Patient p : patients) {
+            for (Study s : p.getStudies()) {
+                for (Series series : s.getSeries()) {
+                    series.trimToSize();
+                }
+            }
+        }
+    }
+}
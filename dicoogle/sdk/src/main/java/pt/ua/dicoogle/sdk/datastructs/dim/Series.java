@@ -82,6 +82,21 @@ public class Series implements SeriesInterface
         this.imageList.remove(imagePath);
     }
 
+    /**
+     * @return the number of instances in this series
+     */
+    public int getInstanceCount() {
+        return this.imageList.size();
+    }
+
+    /**
+     * Releases the spare room of the instance lists.
+     */
+    public void trimToSize() {
+        this.imageList.trimToSize();
+        this.UIDList.trimToSize();
+    }
+
 
     /**
      * @return the SerieInstanceUID
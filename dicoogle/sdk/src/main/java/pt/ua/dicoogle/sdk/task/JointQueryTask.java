@@ -18,10 +18,18 @@
  */
 package pt.ua.dicoogle.sdk.task;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
 /**
@@ -29,10 +37,15 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  * 
  * This class helps dicoogle to deal with multiple providers simultaneously.
  * 
+ * Results which are {@link Closeable}, such as result streams holding index resources, are closed once
+ * {@link #get()} has gathered them, or when this task is closed.
+ * 
  * @author Tiago Marques Godinho, tmgodinho@ua.pt
  *
  */
-public abstract class JointQueryTask {
+public abstract class JointQueryTask implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(JointQueryTask.class);
 
 	private boolean cancelled;
 	private int numberOfCompletedTasks;
@@ -69,11 +82,62 @@ public abstract class JointQueryTask {
 		
 		for(Task<Iterable<SearchResult>> task : searchTasks){
 			Iterable<SearchResult> res = task.get();
-			for(SearchResult i : res)
-				list.add(i);
+			try {
+				for(SearchResult i : res)
+					list.add(i);
+			} finally {
+				closeResults(res);
+			}
 		}
 		return list;
-	}	
+	}
+
+	/**
+	 * Obtains the results of all sub-tasks without gathering them in memory. Each sub-task is only
+	 * waited for when its results are reached, and its results are traversed as they are consumed.
+	 * Sub-tasks which fail are logged and skipped. Callers which may not consume all of the results
+	 * should {@link #close()} this task afterwards.
+	 *
+	 * @return a lazy iterable over the results of all sub-tasks, in the order the tasks were added
+	 */
+	public Iterable<SearchResult> getLazily() {
+		final List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>(searchTasks);
+		return () -> new Iterator<SearchResult>() {
+			private final Iterator<Task<Iterable<SearchResult>>> taskIt = tasks.iterator();
+			private Iterator<SearchResult> current = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (!taskIt.hasNext()) {
+						return false;
+					}
+					Task<Iterable<SearchResult>> task = taskIt.next();
+					try {
+						Iterable<SearchResult> results = task.get();
+						if (results != null) {
+							current = results.iterator();
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						logger.warn("Interrupted while waiting for query task {}", task.getName());
+						return false;
+					} catch (ExecutionException ex) {
+						logger.warn("Query task {} failed", task.getName(), ex);
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public SearchResult next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
 
 	public float getProgress() {
 		if(isCancelled())
@@ -93,6 +157,39 @@ public abstract class JointQueryTask {
 		return numberOfCompletedTasks == searchTasks.size();
 	}
 
+	/**
+	 * Releases the results of all sub-tasks, cancelling those which are not done yet.
+	 */
+	@Override
+	public void close() {
+		for (Task<Iterable<SearchResult>> task : searchTasks) {
+			if (!task.isDone()) {
+				task.cancel(true);
+				continue;
+			}
+			if (task.isCancelled()) {
+				continue;
+			}
+			try {
+				closeResults(task.get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ex) {
+				// nothing to release
+			}
+		}
+	}
+
+	private static void closeResults(Iterable<SearchResult> results) {
+		if (results instanceof Closeable) {
+			try {
+				((Closeable) results).close();
+			} catch (IOException ex) {
+				logger.warn("Failed to close query results", ex);
+			}
+		}
+	}
+
 	public boolean cancel(boolean mayInterruptIfRunning) {
 		boolean ret = true;
 		for(Task<Iterable<SearchResult>> t : searchTasks){